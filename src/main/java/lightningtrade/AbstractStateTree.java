@@ -0,0 +1,176 @@
+package lightningtrade;
+
+import com.google.common.collect.ImmutableMap;
+import lightningtrade.DependencyGraph.Kind;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Base class of the state tree implementations generated from @StateTree interfaces, with the same semantics as
+// DependencyGraph, but with each node a field (of the generated class) and its dependencies precomputed as indices. A
+// node is 'valid' when it is cached (for derived properties), set (for inputs) or has occurred (for events & actions).
+//
+// NOTE: Not thread-safe.
+public abstract class AbstractStateTree<T> implements StateGraph<T> {
+    private final String[] paths;
+    private final Kind[] kinds;
+    private final int[][][] alternatives;
+    private final int[][] dependents;
+    private final Map<String, Integer> indices;
+    private final BitSet valid = new BitSet();
+
+    protected AbstractStateTree(String[] paths, Kind[] kinds, int[][][] alternatives, int[][] dependents) {
+        this.paths = paths;
+        this.kinds = kinds;
+        this.alternatives = alternatives;
+        this.dependents = dependents;
+        var indices = ImmutableMap.<String, Integer>builderWithExpectedSize(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            indices.put(paths[i], i);
+        }
+        this.indices = indices.build();
+    }
+
+    public int nodeCount() {
+        return paths.length;
+    }
+
+    public int index(String path) {
+        var index = indices.get(path);
+        checkArgument(index != null, "Unknown node: %s", path);
+        return index;
+    }
+
+    public String path(int index) {
+        return paths[index];
+    }
+
+    public Kind kind(int index) {
+        return kinds[index];
+    }
+
+    @Override
+    public Kind kind(String path) {
+        return kinds[index(path)];
+    }
+
+    @Override
+    public List<List<String>> dependencies(String path) {
+        return Arrays.stream(alternatives[index(path)])
+                .map(alternative -> Arrays.stream(alternative).mapToObj(this::path).collect(Collectors.toUnmodifiableList()))
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    @Override
+    public void set(String path, @Nullable Object value) {
+        int index = index(path);
+        checkArgument(kinds[index] == Kind.INPUT, "Not an input: %s", path);
+        try {
+            setValue(index, value);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Wrong type of value for " + path + ": " + value, e);
+        }
+        changed(index);
+    }
+
+    @Override
+    public void fire(String path) {
+        int index = index(path);
+        checkArgument(kinds[index] == Kind.EVENT || kinds[index] == Kind.ACTION, "Not an event or action: %s", path);
+        fire(index);
+    }
+
+    @Override
+    public boolean hasOccurred(String path) {
+        int index = index(path);
+        checkArgument(kinds[index] == Kind.EVENT || kinds[index] == Kind.ACTION, "Not an event or action: %s", path);
+        return valid.get(index);
+    }
+
+    @Override
+    public boolean isAvailable(String path) {
+        return isAvailable(index(path));
+    }
+
+    public boolean isAvailable(int index) {
+        switch (kinds[index]) {
+            case INPUT:
+                // NOTE: A primitive input has a (default) value before it is set, so must not be taken as available:
+                return valid.get(index) && getValue(index) != null;
+            case EVENT:
+            case ACTION:
+                return valid.get(index);
+            default:
+                if (alternatives[index].length == 0) {
+                    return true;
+                }
+                for (int[] alternative : alternatives[index]) {
+                    boolean isAlternativeAvailable = true;
+                    for (int dependency : alternative) {
+                        isAlternativeAvailable &= isAvailable(dependency);
+                    }
+                    if (isAlternativeAvailable) {
+                        return true;
+                    }
+                }
+                return false;
+        }
+    }
+
+    @Override
+    public boolean isCached(String path) {
+        return valid.get(index(path));
+    }
+
+    @Override
+    @Nullable
+    public Object get(String path) {
+        int index = index(path);
+        checkArgument(kinds[index] == Kind.INPUT || kinds[index] == Kind.DERIVED, "Not a property: %s", path);
+        return getValue(index);
+    }
+
+    protected final boolean isValid(int index) {
+        return valid.get(index);
+    }
+
+    protected final void markValid(int index) {
+        valid.set(index);
+    }
+
+    protected final void changed(int index) {
+        invalidateDependents(index);
+        valid.set(index);
+    }
+
+    protected void fire(int index) {
+        if (!valid.get(index)) {
+            changed(index);
+        }
+    }
+
+    private void invalidateDependents(int index) {
+        for (int dependent : dependents[index]) {
+            if (kinds[dependent] == Kind.DERIVED && valid.get(dependent)) {
+                valid.clear(dependent);
+                clearValue(dependent);
+                invalidateDependents(dependent);
+            }
+        }
+    }
+
+    // Reads the property with the given index, evaluating it if necessary:
+    @Nullable
+    protected abstract Object getValue(int index);
+
+    protected abstract void setValue(int index, @Nullable Object value);
+
+    // Drops the cached value of the derived property with the given index:
+    protected abstract void clearValue(int index);
+}
@@ -0,0 +1,187 @@
+package lightningtrade;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// The @Access rules of a tree of state interfaces, such as TradeState, compiled into a table indexed by property. The
+// parties are the children of the root (e.g. "buyer"), each of which owns the properties beneath it and may always see
+// them. An @Access value is either a party (or "ANY") to share the property with, or a rule "<action> => <party>" to
+// share it only once the given event or action has occurred. The occurred guarding actions of a trade are given as a
+// 'progress' bitmask, so that checking visibility is a table lookup and a few bitwise ops.
+//
+// NOTE: Supports at most 31 parties and 64 distinct guarding actions per state tree.
+public final class AccessPolicy {
+    public static final String ANY = "ANY";
+
+    private static final ClassValue<AccessPolicy> POLICIES = new ClassValue<>() {
+        @Override
+        protected AccessPolicy computeValue(Class<?> type) {
+            return new AccessPolicy(type);
+        }
+    };
+
+    private final List<String> parties;
+    private final List<String> guards;
+    private final Map<String, Integer> indices;
+    private final int[] ownerMasks, grantedMasks;
+    private final byte[] guardBits;
+
+    private AccessPolicy(Class<?> rootType) {
+        var parties = new ArrayList<String>();
+        var children = new LinkedHashMap<String, Class<?>>();
+        for (Method method : methods(rootType)) {
+            if (Child.class.isAssignableFrom(method.getReturnType())) {
+                parties.add(method.getName());
+                children.put(method.getName(), method.getReturnType());
+            }
+        }
+        checkArgument(parties.size() < 32, "Too many parties: %s", parties);
+        this.parties = ImmutableList.copyOf(parties);
+
+        var occurrences = new ArrayList<String>();
+        var rules = new LinkedHashMap<String, Method>();
+        var owners = new LinkedHashMap<String, Integer>();
+        addScope(rootType, "", 0, occurrences, rules, owners);
+        children.forEach((party, type) ->
+                addScope(type, party + ".", 1 << this.parties.indexOf(party), occurrences, rules, owners));
+
+        var guards = new ArrayList<String>();
+        var indices = ImmutableMap.<String, Integer>builderWithExpectedSize(rules.size());
+        ownerMasks = new int[rules.size()];
+        grantedMasks = new int[rules.size()];
+        guardBits = new byte[rules.size()];
+        int index = 0;
+        for (var entry : rules.entrySet()) {
+            String path = entry.getKey();
+            var access = entry.getValue().getAnnotation(Access.class);
+            ownerMasks[index] = owners.get(path);
+            guardBits[index] = -1;
+            if (access != null) {
+                var rule = Splitter.on("=>").trimResults().splitToList(access.value());
+                checkArgument(rule.size() <= 2, "Malformed access rule of '%s': %s", path, access.value());
+                if (rule.size() == 2) {
+                    String guard = rule.get(0);
+                    checkArgument(occurrences.contains(guard), "Unknown guarding action of '%s': %s", path, guard);
+                    if (!guards.contains(guard)) {
+                        checkArgument(guards.size() < 64, "Too many guarding actions");
+                        guards.add(guard);
+                    }
+                    guardBits[index] = (byte) guards.indexOf(guard);
+                }
+                grantedMasks[index] = partyMask(rule.get(rule.size() - 1), path);
+                if (rule.size() == 1) {
+                    ownerMasks[index] |= grantedMasks[index];
+                }
+            }
+            indices.put(path, index++);
+        }
+        this.guards = ImmutableList.copyOf(guards);
+        this.indices = indices.build();
+    }
+
+    public static AccessPolicy forType(Class<?> rootType) {
+        return POLICIES.get(rootType);
+    }
+
+    public List<String> parties() {
+        return parties;
+    }
+
+    public int party(String name) {
+        int party = parties.indexOf(name);
+        checkArgument(party >= 0, "Unknown party: %s", name);
+        return party;
+    }
+
+    // The event & action paths corresponding to the bits of a progress mask:
+    public List<String> guards() {
+        return guards;
+    }
+
+    public int index(String path) {
+        var index = indices.get(path);
+        checkArgument(index != null, "Unknown property: %s", path);
+        return index;
+    }
+
+    public long progress(Predicate<String> hasOccurred) {
+        long progress = 0;
+        for (int i = 0; i < guards.size(); i++) {
+            if (hasOccurred.test(guards.get(i))) {
+                progress |= 1L << i;
+            }
+        }
+        return progress;
+    }
+
+    public int visibleParties(int index, long progress) {
+        int guardBit = guardBits[index];
+        if (guardBit < 0) {
+            return ownerMasks[index];
+        }
+        // All ones if the guarding action has occurred, else zero:
+        int guardMask = -(int) (progress >>> guardBit & 1);
+        return ownerMasks[index] | grantedMasks[index] & guardMask;
+    }
+
+    public boolean isVisible(int index, int party, long progress) {
+        return (visibleParties(index, progress) >>> party & 1) != 0;
+    }
+
+    public boolean isVisible(String path, String party, long progress) {
+        return isVisible(index(path), party(party), progress);
+    }
+
+    private int partyMask(String parties, String path) {
+        int mask = 0;
+        for (String party : Splitter.on(',').trimResults().split(parties)) {
+            if (party.equals(ANY)) {
+                mask |= (1 << this.parties.size()) - 1;
+            } else {
+                int i = this.parties.indexOf(party);
+                checkArgument(i >= 0, "Unknown party of '%s': %s", path, party);
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    // Collects the properties (inputs & derived) of the given scope, except for children, which are handled by the
+    // caller, together with the events & actions which may guard them:
+    private static void addScope(Class<?> type, String prefix, int ownerMask, List<String> occurrences,
+                                 Map<String, Method> rules, Map<String, Integer> owners) {
+        for (Method method : methods(type)) {
+            String path = prefix + method.getName();
+            if (method.getReturnType() == void.class) {
+                occurrences.add(path);
+            } else if (!Child.class.isAssignableFrom(method.getReturnType())) {
+                rules.put(path, method);
+                owners.put(path, ownerMask);
+            } else {
+                checkArgument(prefix.isEmpty(), "Nested child states are not supported: %s", path);
+            }
+        }
+    }
+
+    private static List<Method> methods(Class<?> type) {
+        checkArgument(type.isInterface(), "Not an interface: %s", type);
+        var methods = ImmutableList.<Method>builder();
+        for (Method method : type.getMethods()) {
+            if (!Modifier.isStatic(method.getModifiers()) && method.getDeclaringClass() != Child.class) {
+                methods.add(method);
+            }
+        }
+        return methods.build();
+    }
+}
@@ -0,0 +1,171 @@
+package lightningtrade;
+
+import chainrpc.ChainNotifierGrpc;
+import chainrpc.Chainnotifier;
+import com.google.protobuf.ByteString;
+import io.grpc.CallCredentials;
+import io.grpc.Channel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Preconditions.checkState;
+
+// A single block epoch subscription of a node, shared by all the trades, which drives a BlockHeightWheel of their
+// block height deadlines (such as payment timeouts & the notary broadcast cutoff) and fans each new block out to any
+// other listeners. A block arriving at or below the current tip with a different hash is a reorg, which rewinds the
+// wheel before advancing it again. After a failure, the stream is resumed from the last block seen, so that missed
+// blocks are replayed by the node.
+public class BlockEpochScheduler implements AutoCloseable {
+    public static final int DEFAULT_MAX_REORG_DEPTH = 100;
+    private static final long MIN_BACKOFF_MILLIS = 500, MAX_BACKOFF_MILLIS = 60_000;
+
+    private final ChainNotifierGrpc.ChainNotifierStub chainNotifierStub;
+    private final ScheduledExecutorService scheduler;
+    private final Executor callbackExecutor;
+    private final int maxReorgDepth;
+    private final List<Consumer<Chainnotifier.BlockEpoch>> blockListeners = new CopyOnWriteArrayList<>();
+    private final TreeMap<Long, ByteString> recentBlockHashes = new TreeMap<>();
+    @Nullable
+    private BlockHeightWheel wheel;
+    @Nullable
+    private ClientCallStreamObserver<?> requestStream;
+    private long backoffMillis = MIN_BACKOFF_MILLIS;
+    private boolean isClosed;
+
+    public BlockEpochScheduler(Channel channel, CallCredentials callCredentials, ScheduledExecutorService scheduler,
+                               Executor callbackExecutor) {
+        this(channel, callCredentials, scheduler, callbackExecutor, DEFAULT_MAX_REORG_DEPTH);
+    }
+
+    public BlockEpochScheduler(Channel channel, CallCredentials callCredentials, ScheduledExecutorService scheduler,
+                               Executor callbackExecutor, int maxReorgDepth) {
+        this.chainNotifierStub = ChainNotifierGrpc.newStub(channel).withCallCredentials(callCredentials);
+        this.scheduler = scheduler;
+        this.callbackExecutor = callbackExecutor;
+        this.maxReorgDepth = maxReorgDepth;
+    }
+
+    public synchronized void start() {
+        checkState(!isClosed, "Closed");
+        subscribe();
+    }
+
+    public void addBlockListener(Consumer<Chainnotifier.BlockEpoch> listener) {
+        blockListeners.add(listener);
+    }
+
+    // Schedules a callback (run on the callback executor) for when the chain reaches the given height, which happens
+    // immediately if it already has. Must not be called before the first block has been received.
+    public synchronized BlockHeightWheel.Deadline schedule(long height, BlockHeightWheel.Callback callback) {
+        checkState(wheel != null, "No blocks received yet");
+        return wheel.schedule(height, new BlockHeightWheel.Callback() {
+            @Override
+            public void onReached(long height) {
+                callbackExecutor.execute(() -> callback.onReached(height));
+            }
+
+            @Override
+            public void onReverted(long height) {
+                callbackExecutor.execute(() -> callback.onReverted(height));
+            }
+        });
+    }
+
+    public synchronized void cancel(BlockHeightWheel.Deadline deadline) {
+        deadline.cancel();
+    }
+
+    public synchronized long height() {
+        checkState(wheel != null, "No blocks received yet");
+        return wheel.height();
+    }
+
+    public synchronized boolean hasBlocks() {
+        return wheel != null;
+    }
+
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+        if (requestStream != null) {
+            requestStream.cancel("Block epoch scheduler closed", null);
+        }
+    }
+
+    private void subscribe() {
+        var request = Chainnotifier.BlockEpoch.newBuilder();
+        if (!recentBlockHashes.isEmpty()) {
+            var lastBlock = recentBlockHashes.lastEntry();
+            request.setHeight(lastBlock.getKey().intValue()).setHash(lastBlock.getValue());
+        }
+        chainNotifierStub.registerBlockEpochNtfn(request.build(), new ClientResponseObserver<Chainnotifier.BlockEpoch, Chainnotifier.BlockEpoch>() {
+            @Override
+            public void beforeStart(ClientCallStreamObserver<Chainnotifier.BlockEpoch> requestStream) {
+                BlockEpochScheduler.this.requestStream = requestStream;
+            }
+
+            @Override
+            public void onNext(Chainnotifier.BlockEpoch block) {
+                if (onBlock(block)) {
+                    blockListeners.forEach(listener -> callbackExecutor.execute(() -> listener.accept(block)));
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (Status.fromThrowable(t).getCode() != Status.Code.CANCELLED) {
+                    resubscribeLater();
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                resubscribeLater();
+            }
+        });
+    }
+
+    // Advances the wheel to the given block (after rewinding it, for a reorg), returning whether the block is new:
+    private synchronized boolean onBlock(Chainnotifier.BlockEpoch block) {
+        backoffMillis = MIN_BACKOFF_MILLIS;
+        long height = Integer.toUnsignedLong(block.getHeight());
+        if (wheel == null) {
+            wheel = new BlockHeightWheel(height, maxReorgDepth);
+        } else if (height <= wheel.height()) {
+            if (block.getHash().equals(recentBlockHashes.get(height))) {
+                // A block replayed on resubscription:
+                return false;
+            }
+            wheel.rewindTo(Math.max(height - 1, wheel.height() - maxReorgDepth));
+        }
+        recentBlockHashes.tailMap(height, true).clear();
+        recentBlockHashes.put(height, block.getHash());
+        recentBlockHashes.headMap(height - maxReorgDepth, true).clear();
+        wheel.advanceTo(height);
+        return true;
+    }
+
+    private synchronized void resubscribeLater() {
+        if (!isClosed) {
+            long delay = backoffMillis;
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            scheduler.schedule(() -> {
+                synchronized (this) {
+                    if (!isClosed) {
+                        subscribe();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
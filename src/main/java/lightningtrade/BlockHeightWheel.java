@@ -0,0 +1,166 @@
+package lightningtrade;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Hierarchical timing wheel of deadlines keyed by block height, with three levels of 64 slots (covering the next 2^18
+// blocks) and an overflow list beyond that. Scheduling and cancelling are O(1), as is advancing by a block, aside from
+// the amortized cascading of each deadline down the levels (at most three times). Deadlines reached within the last
+// 'maxReorgDepth' blocks are remembered, so that a reorg below them reverts & reschedules them.
+//
+// NOTE: Not thread-safe. Callbacks are invoked synchronously, by 'schedule', 'advanceTo' & 'rewindTo'.
+public class BlockHeightWheel {
+    private static final int SLOT_BITS = 6, SLOT_COUNT = 1 << SLOT_BITS, SLOT_MASK = SLOT_COUNT - 1, LEVEL_COUNT = 3;
+
+    private final List<List<Deadline>> slots = new ArrayList<>(LEVEL_COUNT * SLOT_COUNT);
+    private final List<Deadline> overflow = new ArrayList<>();
+    private final NavigableMap<Long, List<Deadline>> reachedDeadlines = new TreeMap<>();
+    private final int maxReorgDepth;
+    private long height;
+    private int pendingCount;
+
+    public BlockHeightWheel(long height, int maxReorgDepth) {
+        checkArgument(height >= 0 && maxReorgDepth >= 0, "Negative height or reorg depth");
+        this.height = height;
+        this.maxReorgDepth = maxReorgDepth;
+        for (int i = 0; i < LEVEL_COUNT * SLOT_COUNT; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    public interface Callback {
+        void onReached(long height);
+
+        // Called if a reorg takes the chain back below the deadline after it was reached, before it is rescheduled:
+        default void onReverted(long height) {
+        }
+    }
+
+    public final class Deadline {
+        private final long height;
+        private final Callback callback;
+        private boolean isCancelled, isReached;
+
+        private Deadline(long height, Callback callback) {
+            this.height = height;
+            this.callback = callback;
+        }
+
+        public long height() {
+            return height;
+        }
+
+        public void cancel() {
+            if (!isCancelled && !isReached) {
+                pendingCount--;
+            }
+            isCancelled = true;
+        }
+    }
+
+    public long height() {
+        return height;
+    }
+
+    // The number of deadlines not yet reached or cancelled:
+    public int pendingCount() {
+        return pendingCount;
+    }
+
+    public Deadline schedule(long height, Callback callback) {
+        var deadline = new Deadline(height, callback);
+        pendingCount++;
+        insert(deadline);
+        return deadline;
+    }
+
+    // Advances block by block to the given height, cascading the deadlines of each new slot of the upper levels down
+    // before reaching those of the slot of the new height:
+    public void advanceTo(long newHeight) {
+        while (height < newHeight) {
+            height++;
+            if ((height & (1L << SLOT_BITS * LEVEL_COUNT) - 1) == 0) {
+                cascade(overflow);
+            }
+            for (int level = LEVEL_COUNT - 1; level > 0; level--) {
+                if ((height & (1L << SLOT_BITS * level) - 1) == 0) {
+                    cascade(slot(level, height >>> SLOT_BITS * level));
+                }
+            }
+            var slot = slot(0, height);
+            var deadlines = new ArrayList<>(slot);
+            slot.clear();
+            deadlines.forEach(this::reach);
+            reachedDeadlines.headMap(height - maxReorgDepth, true).clear();
+        }
+    }
+
+    // Takes the wheel back to the given height after a reorg, reverting the deadlines reached above it. This is O(n) in
+    // the number of pending deadlines, which must all be re-placed relative to the new height, but reorgs are rare.
+    public void rewindTo(long newHeight) {
+        checkArgument(newHeight <= height, "Cannot rewind forwards");
+        checkArgument(height - newHeight <= maxReorgDepth, "Reorg deeper than %s blocks", maxReorgDepth);
+        var deadlines = new ArrayList<Deadline>();
+        slots.forEach(deadlines::addAll);
+        slots.forEach(List::clear);
+        deadlines.addAll(overflow);
+        overflow.clear();
+        var reverted = reachedDeadlines.tailMap(newHeight, false);
+        var revertedDeadlines = new ArrayList<Deadline>();
+        reverted.descendingMap().values().forEach(revertedDeadlines::addAll);
+        reverted.clear();
+        height = newHeight;
+        for (Deadline deadline : revertedDeadlines) {
+            if (!deadline.isCancelled) {
+                pendingCount++;
+                deadline.isReached = false;
+                deadline.callback.onReverted(deadline.height);
+            }
+        }
+        deadlines.addAll(revertedDeadlines);
+        deadlines.forEach(this::insert);
+    }
+
+    private void insert(Deadline deadline) {
+        if (deadline.isCancelled) {
+            return;
+        }
+        if (deadline.height <= height) {
+            reach(deadline);
+            return;
+        }
+        for (int level = 0; level < LEVEL_COUNT; level++) {
+            int shift = SLOT_BITS * (level + 1);
+            if (deadline.height >>> shift == height >>> shift) {
+                slot(level, deadline.height >>> SLOT_BITS * level).add(deadline);
+                return;
+            }
+        }
+        overflow.add(deadline);
+    }
+
+    private void reach(Deadline deadline) {
+        if (!deadline.isCancelled) {
+            pendingCount--;
+            deadline.isReached = true;
+            if (deadline.height > height - maxReorgDepth) {
+                reachedDeadlines.computeIfAbsent(deadline.height, k -> new ArrayList<>()).add(deadline);
+            }
+            deadline.callback.onReached(height);
+        }
+    }
+
+    private void cascade(List<Deadline> deadlines) {
+        var cascaded = new ArrayList<>(deadlines);
+        deadlines.clear();
+        cascaded.forEach(this::insert);
+    }
+
+    private List<Deadline> slot(int level, long index) {
+        return slots.get(level * SLOT_COUNT + (int) (index & SLOT_MASK));
+    }
+}
@@ -0,0 +1,559 @@
+package lightningtrade;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import io.grpc.CallCredentials;
+import io.grpc.Channel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import lnrpc.LightningGrpc;
+import lnrpc.Rpc;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+// In-memory copy of the public channel graph, loaded with DescribeGraph & kept current with SubscribeChannelGraph, for
+// finding routes locally. Each channel is stored as two directed edges (2k from node1 to node2 & 2k+1 back), with the
+// policy of each edge (set by its source node) held in primitive arrays, and a CSR index of the incoming edges of each
+// node rebuilt lazily after topology changes. Routes are found by a (multi-label) Dijkstra search backwards from the
+// destination, minimising the fees, within the given fee & total CLTV bounds.
+//
+// Thread-safe, with updates applied under a write lock & route searches run under a read lock.
+public class ChannelGraphCache implements AutoCloseable {
+    private static final long MIN_BACKOFF_MILLIS = 500, MAX_BACKOFF_MILLIS = 60_000;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> nodeIndices = new HashMap<>();
+    private final List<String> nodePubkeys = new ArrayList<>();
+    private final Map<Long, Integer> channelIndices = new HashMap<>();
+    private int channelCount;
+    private long[] channelIds = new long[16], capacitiesMsat = new long[16];
+    // The generation of each channel, that is, the number of the latest reload begun before it was last seen:
+    private int[] channelGenerations = new int[16];
+    private int generation;
+    private int[] edgeSources = new int[32], edgeTargets = new int[32], timeLockDeltas = new int[32],
+            policyUpdateTimes = new int[32];
+    private long[] baseFeesMsat = new long[32], feeRates = new long[32], minHtlcsMsat = new long[32],
+            maxHtlcsMsat = new long[32];
+    private final BitSet enabledEdges = new BitSet(), closedChannels = new BitSet();
+    private int[] incomingEdgeOffsets = new int[1], incomingEdges = new int[0];
+    private boolean isAdjacencyStale;
+
+    @Nullable
+    private ClientCallStreamObserver<?> updateStream;
+    private boolean isClosed;
+    private long backoffMillis = MIN_BACKOFF_MILLIS;
+    // The generation of the latest (re)load to have scheduled a restart, so that it only ever schedules one:
+    private int restartGeneration;
+
+    @AutoValue
+    public static abstract class Route {
+        // The hops of the route, excluding the source node:
+        public abstract ImmutableList<String> hopPubkeys();
+
+        public abstract ImmutableList<Long> channelIds();
+
+        // The amount delivered to the destination, excluding fees:
+        public abstract long amountMsat();
+
+        public abstract long feeMsat();
+
+        public abstract int finalCltvDelta();
+
+        // The CLTV delta of the first hop, that is, of the route as a whole:
+        public abstract int cltvDelta();
+
+        public long outgoingChannelId() {
+            return channelIds().get(0);
+        }
+
+        public String lastHopPubkey() {
+            return hopPubkeys().size() > 1 ? hopPubkeys().get(hopPubkeys().size() - 2) : "";
+        }
+    }
+
+    // Loads the graph of the given node & keeps it current, reloading it whenever the update stream fails, since
+    // updates may then have been missed. The subscription is started before the initial load, with policies only ever
+    // replaced by newer ones, so that no update can be lost in between. Likewise, a reload closes every channel neither
+    // in the snapshot nor updated since the reload began.
+    public void start(Channel channel, CallCredentials callCredentials, ScheduledExecutorService scheduler) {
+        var asyncStub = LightningGrpc.newStub(channel).withCallCredentials(callCredentials);
+        var blockingStub = LightningGrpc.newBlockingStub(channel).withCallCredentials(callCredentials);
+        synchronized (this) {
+            checkState(!isClosed, "Closed");
+        }
+        int generation = beginReload();
+        asyncStub.subscribeChannelGraph(Rpc.GraphTopologySubscription.getDefaultInstance(),
+                new ClientResponseObserver<Rpc.GraphTopologySubscription, Rpc.GraphTopologyUpdate>() {
+                    @Override
+                    public void beforeStart(ClientCallStreamObserver<Rpc.GraphTopologySubscription> requestStream) {
+                        synchronized (ChannelGraphCache.this) {
+                            updateStream = requestStream;
+                        }
+                    }
+
+                    @Override
+                    public void onNext(Rpc.GraphTopologyUpdate update) {
+                        apply(update);
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        if (Status.fromThrowable(t).getCode() != Status.Code.CANCELLED) {
+                            restartLater(channel, callCredentials, scheduler, generation);
+                        }
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        restartLater(channel, callCredentials, scheduler, generation);
+                    }
+                });
+        try {
+            apply(blockingStub.describeGraph(Rpc.ChannelGraphRequest.newBuilder().setIncludeUnannounced(true).build()),
+                    generation);
+            synchronized (this) {
+                backoffMillis = MIN_BACKOFF_MILLIS;
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (updateStream != null) {
+                    updateStream.cancel("Graph load failed", e);
+                }
+            }
+            restartLater(channel, callCredentials, scheduler, generation);
+        }
+    }
+
+    private synchronized void restartLater(Channel channel, CallCredentials callCredentials,
+                                           ScheduledExecutorService scheduler, int generation) {
+        if (!isClosed && generation > restartGeneration) {
+            restartGeneration = generation;
+            long delay = backoffMillis;
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            scheduler.schedule(() -> start(channel, callCredentials, scheduler), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        isClosed = true;
+        if (updateStream != null) {
+            updateStream.cancel("Channel graph cache closed", null);
+        }
+    }
+
+    // Applies a snapshot of the whole graph, closing every channel missing from it:
+    public void apply(Rpc.ChannelGraph graph) {
+        apply(graph, beginReload());
+    }
+
+    private int beginReload() {
+        lock.writeLock().lock();
+        try {
+            return ++generation;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // NOTE: Channels seen in updates since the reload began may be newer than the snapshot, so are kept as well:
+    private void apply(Rpc.ChannelGraph graph, int reloadGeneration) {
+        lock.writeLock().lock();
+        try {
+            for (Rpc.ChannelEdge edge : graph.getEdgesList()) {
+                int channel = channel(edge.getChannelId(), edge.getCapacity());
+                int node1 = node(edge.getNode1Pub()), node2 = node(edge.getNode2Pub());
+                setPolicy(2 * channel, node1, node2, edge.hasNode1Policy() ? edge.getNode1Policy() : null);
+                setPolicy(2 * channel + 1, node2, node1, edge.hasNode2Policy() ? edge.getNode2Policy() : null);
+            }
+            for (int channel = 0; channel < channelCount; channel++) {
+                if (channelGenerations[channel] < reloadGeneration) {
+                    close(channel);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void apply(Rpc.GraphTopologyUpdate update) {
+        lock.writeLock().lock();
+        try {
+            for (Rpc.ChannelEdgeUpdate channelUpdate : update.getChannelUpdatesList()) {
+                int channel = channel(channelUpdate.getChanId(), channelUpdate.getCapacity());
+                int source = node(channelUpdate.getAdvertisingNode()), target = node(channelUpdate.getConnectingNode());
+                // The direction of the edge follows the (lexicographic) order of the endpoints, as for node1 & node2:
+                int edge = 2 * channel + (channelUpdate.getAdvertisingNode().compareTo(channelUpdate.getConnectingNode()) < 0 ? 0 : 1);
+                setPolicy(edge, source, target, channelUpdate.getRoutingPolicy());
+            }
+            for (Rpc.ClosedChannelUpdate closedChannel : update.getClosedChansList()) {
+                var channel = channelIndices.get(closedChannel.getChanId());
+                if (channel != null) {
+                    close(channel);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Adds the (private) channels of the given route hints, as from an invoice, along which to reach its destination.
+    // NOTE: The capacities of channels known only from hints are taken to be unlimited, & since no snapshot includes
+    // them, they are kept across reloads, until closed. A hint never replaces a policy from the graph itself:
+    public void addRouteHints(String destination, List<Rpc.RouteHint> routeHints) {
+        lock.writeLock().lock();
+        try {
+            for (Rpc.RouteHint routeHint : routeHints) {
+                var hopHints = routeHint.getHopHintsList();
+                for (int i = 0; i < hopHints.size(); i++) {
+                    var hopHint = hopHints.get(i);
+                    String sourcePubkey = hopHint.getNodeId();
+                    String targetPubkey = i + 1 < hopHints.size() ? hopHints.get(i + 1).getNodeId() : destination;
+                    var channel = channelIndices.get(hopHint.getChanId());
+                    if (channel == null) {
+                        channel = channel(hopHint.getChanId(), 0);
+                        capacitiesMsat[channel] = Long.MAX_VALUE;
+                        channelGenerations[channel] = Integer.MAX_VALUE;
+                    }
+                    int edge = 2 * channel + (sourcePubkey.compareTo(targetPubkey) < 0 ? 0 : 1);
+                    setPolicy(edge, node(sourcePubkey), node(targetPubkey), Rpc.RoutingPolicy.newBuilder()
+                            .setTimeLockDelta(hopHint.getCltvExpiryDelta())
+                            .setFeeBaseMsat(hopHint.getFeeBaseMsat())
+                            .setFeeRateMilliMsat(hopHint.getFeeProportionalMillionths())
+                            .build());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int nodeCount() {
+        lock.readLock().lock();
+        try {
+            return nodePubkeys.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Finds up to 'count' channel-disjoint routes, in order of increasing fees, from the source to the destination,
+    // restricted to the given outgoing channels & last hops (if nonempty):
+    public List<Route> findRoutes(String source, String destination, long amountMsat, int finalCltvDelta,
+                                  long maxFeeMsat, int maxCltvDelta, Set<Long> outgoingChannelIds,
+                                  Set<String> lastHopPubkeys, int count) {
+        lock.readLock().lock();
+        try {
+            checkArgument(nodeIndices.containsKey(source), "Unknown source: %s", source);
+            if (!nodeIndices.containsKey(destination)) {
+                return List.of();
+            }
+            if (isAdjacencyStale) {
+                // Another reader may be searching, so rebuild under the write lock:
+                lock.readLock().unlock();
+                lock.writeLock().lock();
+                try {
+                    rebuildAdjacency();
+                } finally {
+                    lock.readLock().lock();
+                    lock.writeLock().unlock();
+                }
+            }
+            Set<Integer> lastHops = lastHopPubkeys.stream().map(nodeIndices::get).filter(Objects::nonNull)
+                    .collect(HashSet::new, HashSet::add, HashSet::addAll);
+            if (!lastHopPubkeys.isEmpty() && lastHops.isEmpty()) {
+                // NOTE: Dropping every unknown last hop must not lift the restriction altogether:
+                return List.of();
+            }
+            var search = new Search(nodeIndices.get(source), nodeIndices.get(destination), amountMsat,
+                    finalCltvDelta, maxFeeMsat, maxCltvDelta, outgoingChannelIds, lastHops);
+            var routes = new ArrayList<Route>();
+            var excludedChannels = new BitSet();
+            while (routes.size() < count) {
+                var route = search.run(excludedChannels);
+                if (route == null) {
+                    break;
+                }
+                routes.add(route);
+                route.channelIds().forEach(channelId -> excludedChannels.set(channelIndices.get(channelId)));
+            }
+            return routes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int node(String pubkey) {
+        var index = nodeIndices.get(pubkey);
+        if (index == null) {
+            index = nodePubkeys.size();
+            nodeIndices.put(pubkey, index);
+            nodePubkeys.add(pubkey);
+            isAdjacencyStale = true;
+        }
+        return index;
+    }
+
+    private int channel(long channelId, long capacitySat) {
+        var index = channelIndices.get(channelId);
+        if (index == null) {
+            index = channelCount++;
+            channelIndices.put(channelId, index);
+            if (index == channelIds.length) {
+                channelIds = Arrays.copyOf(channelIds, 2 * index);
+                capacitiesMsat = Arrays.copyOf(capacitiesMsat, 2 * index);
+                channelGenerations = Arrays.copyOf(channelGenerations, 2 * index);
+                edgeSources = Arrays.copyOf(edgeSources, 4 * index);
+                edgeTargets = Arrays.copyOf(edgeTargets, 4 * index);
+                timeLockDeltas = Arrays.copyOf(timeLockDeltas, 4 * index);
+                policyUpdateTimes = Arrays.copyOf(policyUpdateTimes, 4 * index);
+                baseFeesMsat = Arrays.copyOf(baseFeesMsat, 4 * index);
+                feeRates = Arrays.copyOf(feeRates, 4 * index);
+                minHtlcsMsat = Arrays.copyOf(minHtlcsMsat, 4 * index);
+                maxHtlcsMsat = Arrays.copyOf(maxHtlcsMsat, 4 * index);
+            }
+            channelIds[index] = channelId;
+            isAdjacencyStale = true;
+        }
+        channelGenerations[index] = generation;
+        if (capacitySat > 0 && !closedChannels.get(index)) {
+            capacitiesMsat[index] = capacitySat * 1000;
+        }
+        return index;
+    }
+
+    private void close(int channel) {
+        enabledEdges.clear(2 * channel, 2 * channel + 2);
+        closedChannels.set(channel);
+        capacitiesMsat[channel] = 0;
+    }
+
+    private void setPolicy(int edge, int source, int target, @Nullable Rpc.RoutingPolicy policy) {
+        if (edgeSources[edge] != source || edgeTargets[edge] != target) {
+            edgeSources[edge] = source;
+            edgeTargets[edge] = target;
+            isAdjacencyStale = true;
+        }
+        if (policy == null || policy.getLastUpdate() < policyUpdateTimes[edge]) {
+            return;
+        }
+        policyUpdateTimes[edge] = policy.getLastUpdate();
+        timeLockDeltas[edge] = policy.getTimeLockDelta();
+        baseFeesMsat[edge] = policy.getFeeBaseMsat();
+        feeRates[edge] = policy.getFeeRateMilliMsat();
+        minHtlcsMsat[edge] = policy.getMinHtlc();
+        maxHtlcsMsat[edge] = policy.getMaxHtlcMsat() > 0 ? policy.getMaxHtlcMsat() : Long.MAX_VALUE;
+        enabledEdges.set(edge, !policy.getDisabled());
+    }
+
+    private void rebuildAdjacency() {
+        if (!isAdjacencyStale) {
+            return;
+        }
+        int nodeCount = nodePubkeys.size(), edgeCount = 2 * channelCount;
+        incomingEdgeOffsets = new int[nodeCount + 1];
+        for (int edge = 0; edge < edgeCount; edge++) {
+            incomingEdgeOffsets[edgeTargets[edge] + 1]++;
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            incomingEdgeOffsets[node + 1] += incomingEdgeOffsets[node];
+        }
+        incomingEdges = new int[edgeCount];
+        var nextOffsets = Arrays.copyOf(incomingEdgeOffsets, nodeCount);
+        for (int edge = 0; edge < edgeCount; edge++) {
+            incomingEdges[nextOffsets[edgeTargets[edge]]++] = edge;
+        }
+        isAdjacencyStale = false;
+    }
+
+    private class Search {
+        final int source, destination;
+        final long amountMsat, maxFeeMsat;
+        final int finalCltvDelta, maxCltvDelta;
+        final Set<Long> outgoingChannelIds;
+        final Set<Integer> lastHops;
+        // Per label (a partial route from some node to the destination): its node, the amount that node must receive
+        // (with all the downstream fees), its CLTV delta, the edge it forwards on & the label it continues with:
+        int[] labelNodes = new int[16], labelCltvDeltas = new int[16], labelEdges = new int[16],
+                labelNexts = new int[16];
+        long[] labelAmounts = new long[16];
+        int labelCount;
+        // Per node: the least CLTV delta of its labels settled so far, which (being settled in order of increasing
+        // amount) dominate any later label with no less a delta:
+        final int[] settledCltvDeltas;
+        // A binary min-heap of labels keyed by amount:
+        int[] heapLabels = new int[16];
+        long[] heapKeys = new long[16];
+        int heapSize;
+
+        Search(int source, int destination, long amountMsat, int finalCltvDelta, long maxFeeMsat, int maxCltvDelta,
+               Set<Long> outgoingChannelIds, Set<Integer> lastHops) {
+            this.source = source;
+            this.destination = destination;
+            this.amountMsat = amountMsat;
+            this.finalCltvDelta = finalCltvDelta;
+            this.maxFeeMsat = maxFeeMsat;
+            this.maxCltvDelta = maxCltvDelta;
+            this.outgoingChannelIds = outgoingChannelIds;
+            this.lastHops = lastHops;
+            settledCltvDeltas = new int[nodePubkeys.size()];
+        }
+
+        // NOTE: Since the CLTV delta is bounded rather than minimised, a single cheapest partial route per node could
+        // shadow a dearer one with a smaller delta, which alone fits the bound. So every node keeps the Pareto front of
+        // its partial routes by (amount, CLTV delta), found in order of increasing amount:
+        @Nullable
+        Route run(BitSet excludedChannels) {
+            if (source != destination) {
+                return run(excludedChannels, -1);
+            }
+            // A circular route (as for a self-payment) is searched for with each last channel in turn, which is excluded
+            // from the rest of the route, so that it cannot just go out & back along one channel:
+            Route bestRoute = null;
+            for (int i = incomingEdgeOffsets[destination]; i < incomingEdgeOffsets[destination + 1]; i++) {
+                int edge = incomingEdges[i];
+                if (enabledEdges.get(edge) && !excludedChannels.get(edge / 2)) {
+                    excludedChannels.set(edge / 2);
+                    var route = run(excludedChannels, edge);
+                    excludedChannels.clear(edge / 2);
+                    if (route != null && (bestRoute == null || route.feeMsat() < bestRoute.feeMsat())) {
+                        bestRoute = route;
+                    }
+                }
+            }
+            return bestRoute;
+        }
+
+        @Nullable
+        private Route run(BitSet excludedChannels, int lastEdge) {
+            Arrays.fill(settledCltvDeltas, Integer.MAX_VALUE);
+            labelCount = heapSize = 0;
+            int destinationLabel = newLabel(destination, amountMsat, finalCltvDelta, -1, -1);
+            if (lastEdge >= 0) {
+                relax(lastEdge, destinationLabel);
+            } else {
+                push(destinationLabel);
+            }
+            while (heapSize > 0) {
+                int label = pop();
+                int node = labelNodes[label];
+                if (labelCltvDeltas[label] >= settledCltvDeltas[node]) {
+                    continue;
+                }
+                settledCltvDeltas[node] = labelCltvDeltas[label];
+                if (node == source) {
+                    return route(label);
+                }
+                for (int i = incomingEdgeOffsets[node]; i < incomingEdgeOffsets[node + 1]; i++) {
+                    int edge = incomingEdges[i];
+                    if (enabledEdges.get(edge) && !excludedChannels.get(edge / 2)) {
+                        relax(edge, label);
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void relax(int edge, int label) {
+            int node = labelNodes[label], previous = edgeSources[edge];
+            long amount = labelAmounts[label];
+            if (node == destination && !lastHops.isEmpty() && !lastHops.contains(previous) ||
+                    amount < minHtlcsMsat[edge] || amount > maxHtlcsMsat[edge] || amount > capacitiesMsat[edge / 2]) {
+                return;
+            }
+            long previousAmount;
+            int previousCltvDelta;
+            if (previous == source) {
+                if (!outgoingChannelIds.isEmpty() && !outgoingChannelIds.contains(channelIds[edge / 2])) {
+                    return;
+                }
+                // We don't pay ourselves any fees or add a time lock delta for the first hop:
+                previousAmount = amount;
+                previousCltvDelta = labelCltvDeltas[label];
+            } else {
+                previousAmount = amount + baseFeesMsat[edge] + amount * feeRates[edge] / 1_000_000;
+                previousCltvDelta = labelCltvDeltas[label] + timeLockDeltas[edge];
+            }
+            if (previousAmount - amountMsat > maxFeeMsat || previousCltvDelta > maxCltvDelta ||
+                    previousCltvDelta >= settledCltvDeltas[previous]) {
+                return;
+            }
+            push(newLabel(previous, previousAmount, previousCltvDelta, edge, label));
+        }
+
+        private int newLabel(int node, long amount, int cltvDelta, int edge, int next) {
+            if (labelCount == labelNodes.length) {
+                labelNodes = Arrays.copyOf(labelNodes, 2 * labelCount);
+                labelAmounts = Arrays.copyOf(labelAmounts, 2 * labelCount);
+                labelCltvDeltas = Arrays.copyOf(labelCltvDeltas, 2 * labelCount);
+                labelEdges = Arrays.copyOf(labelEdges, 2 * labelCount);
+                labelNexts = Arrays.copyOf(labelNexts, 2 * labelCount);
+            }
+            labelNodes[labelCount] = node;
+            labelAmounts[labelCount] = amount;
+            labelCltvDeltas[labelCount] = cltvDelta;
+            labelEdges[labelCount] = edge;
+            labelNexts[labelCount] = next;
+            return labelCount++;
+        }
+
+        private Route route(int sourceLabel) {
+            var hopPubkeys = ImmutableList.<String>builder();
+            var routeChannelIds = ImmutableList.<Long>builder();
+            for (int label = sourceLabel; labelEdges[label] >= 0; label = labelNexts[label]) {
+                int edge = labelEdges[label];
+                hopPubkeys.add(nodePubkeys.get(edgeTargets[edge]));
+                routeChannelIds.add(channelIds[edge / 2]);
+            }
+            return new AutoValue_ChannelGraphCache_Route(hopPubkeys.build(), routeChannelIds.build(), amountMsat,
+                    labelAmounts[sourceLabel] - amountMsat, finalCltvDelta, labelCltvDeltas[sourceLabel]);
+        }
+
+        private void push(int label) {
+            long key = labelAmounts[label];
+            if (heapSize == heapLabels.length) {
+                heapLabels = Arrays.copyOf(heapLabels, 2 * heapSize);
+                heapKeys = Arrays.copyOf(heapKeys, 2 * heapSize);
+            }
+            int i = heapSize++;
+            while (i > 0 && heapKeys[(i - 1) / 2] > key) {
+                heapLabels[i] = heapLabels[(i - 1) / 2];
+                heapKeys[i] = heapKeys[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            heapLabels[i] = label;
+            heapKeys[i] = key;
+        }
+
+        private int pop() {
+            int top = heapLabels[0];
+            int lastLabel = heapLabels[--heapSize];
+            long lastKey = heapKeys[heapSize];
+            int i = 0;
+            while (2 * i + 1 < heapSize) {
+                int child = 2 * i + 1;
+                if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+                    child++;
+                }
+                if (heapKeys[child] >= lastKey) {
+                    break;
+                }
+                heapLabels[i] = heapLabels[child];
+                heapKeys[i] = heapKeys[child];
+                i = child;
+            }
+            heapLabels[i] = lastLabel;
+            heapKeys[i] = lastKey;
+            return top;
+        }
+    }
+}
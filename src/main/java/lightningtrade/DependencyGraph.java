@@ -0,0 +1,417 @@
+package lightningtrade;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Primitives;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+// Memoizing evaluator of a tree of state interfaces, such as TradeState, whose nodes are named by their dotted paths
+// from the root (e.g. "escrow.garbledCircuit"). The @DependsOn (& @DependsOnAlternatives) annotations are read into a
+// DAG. Abstract properties are inputs, which are set from outside, default methods are derived properties, which are
+// evaluated at most once until one of their (transitive) dependencies changes, and void @Event & @Action methods are
+// occurrences, which may be depended on like any other node. Each @DependsOn annotation is one alternative set of
+// dependencies, any of which is enough for a node to become available.
+//
+// NOTE: Derived properties must only read the nodes they declare dependencies on, else they may go stale.
+// NOTE: Not thread-safe, except that derived properties may be evaluated concurrently by 'evaluateAsync' (while no
+// inputs are set and no events are fired).
+public class DependencyGraph<T> implements StateGraph<T> {
+    private final Map<String, Node> nodes;
+    private final Map<Class<?>, Scope> scopesByType = new HashMap<>();
+    private final T root;
+
+    private DependencyGraph(Class<T> rootType) {
+        var nodes = new LinkedHashMap<String, Node>();
+        Scope rootScope = addScope(rootType, "", null, nodes);
+        for (Node node : nodes.values()) {
+            for (List<String> alternative : node.alternatives) {
+                for (String path : alternative) {
+                    var dependency = nodes.get(path);
+                    checkArgument(dependency != null && dependency.kind != Kind.CHILD,
+                            "Unknown dependency '%s' of '%s'", path, node.path);
+                    dependency.dependents.add(node);
+                }
+            }
+        }
+        this.nodes = ImmutableMap.copyOf(nodes);
+        checkAcyclic();
+        this.root = rootType.cast(rootScope.proxy);
+    }
+
+    public static <T> DependencyGraph<T> create(Class<T> rootType) {
+        return new DependencyGraph<>(rootType);
+    }
+
+    @Override
+    public T root() {
+        return root;
+    }
+
+    public Set<String> paths() {
+        return nodes.keySet();
+    }
+
+    @Override
+    public Kind kind(String path) {
+        return node(path).kind;
+    }
+
+    @Override
+    public List<List<String>> dependencies(String path) {
+        return node(path).alternatives;
+    }
+
+    @Override
+    public void set(String path, @Nullable Object value) {
+        var node = node(path);
+        checkArgument(node.kind == Kind.INPUT, "Not an input: %s", path);
+        checkArgument(value == null || boxed(node.method.getReturnType()).isInstance(value),
+                "Wrong type of value for %s: %s", path, value);
+        if (!node.isCached || !Objects.equals(node.value, value)) {
+            invalidateDependents(node);
+            node.value = value;
+            node.isCached = true;
+        }
+    }
+
+    @Override
+    public void fire(String path) {
+        var node = node(path);
+        checkArgument(node.kind == Kind.EVENT || node.kind == Kind.ACTION, "Not an event or action: %s", path);
+        if (!node.isCached) {
+            invalidateDependents(node);
+            node.isCached = true;
+        }
+    }
+
+    @Override
+    public boolean hasOccurred(String path) {
+        var node = node(path);
+        checkArgument(node.kind == Kind.EVENT || node.kind == Kind.ACTION, "Not an event or action: %s", path);
+        return node.isCached;
+    }
+
+    @Override
+    public boolean isAvailable(String path) {
+        return isAvailable(node(path));
+    }
+
+    @Override
+    public boolean isCached(String path) {
+        return node(path).isCached;
+    }
+
+    @Override
+    @Nullable
+    public Object get(String path) {
+        var node = node(path);
+        checkArgument(node.kind == Kind.INPUT || node.kind == Kind.DERIVED, "Not a property: %s", path);
+        return value(node);
+    }
+
+    // Evaluates the given derived properties and the uncached derived properties they depend on, through the first
+    // available alternative of each, on the given (bounded) executor. Each node is submitted as soon as its own
+    // dependencies are evaluated, so that independent branches, such as circuit garbling & oblivious transfer, overlap:
+    public ListenableFuture<Void> evaluateAsync(Collection<String> paths, Executor executor) {
+        var plan = new LinkedHashMap<Node, List<Node>>();
+        for (String path : paths) {
+            var node = node(path);
+            checkArgument(node.kind == Kind.DERIVED, "Not a derived property: %s", path);
+            checkArgument(isAvailable(node), "Unavailable: %s", path);
+            addToPlan(node, plan);
+        }
+        var dependents = new HashMap<Node, List<Node>>();
+        var pendingCounts = new HashMap<Node, AtomicInteger>();
+        plan.forEach((node, dependencies) -> {
+            dependencies.forEach(dependency -> dependents.computeIfAbsent(dependency, k -> new ArrayList<>()).add(node));
+            pendingCounts.put(node, new AtomicInteger(dependencies.size()));
+        });
+        var evaluation = new AsyncEvaluation(executor, ImmutableMap.copyOf(dependents),
+                ImmutableMap.copyOf(pendingCounts));
+        if (plan.isEmpty()) {
+            evaluation.result.set(null);
+        }
+        plan.forEach((node, dependencies) -> {
+            if (dependencies.isEmpty()) {
+                evaluation.submit(node);
+            }
+        });
+        return evaluation.result;
+    }
+
+    private void addToPlan(Node node, Map<Node, List<Node>> plan) {
+        if (node.kind != Kind.DERIVED || node.isCached || plan.containsKey(node)) {
+            return;
+        }
+        var dependencies = new ArrayList<Node>();
+        plan.put(node, dependencies);
+        for (List<String> alternative : node.alternatives) {
+            if (alternative.stream().allMatch(path -> isAvailable(nodes.get(path)))) {
+                for (String path : alternative) {
+                    var dependency = nodes.get(path);
+                    addToPlan(dependency, plan);
+                    if (plan.containsKey(dependency)) {
+                        dependencies.add(dependency);
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    private boolean isAvailable(Node node) {
+        switch (node.kind) {
+            case INPUT:
+                return node.value != null;
+            case EVENT:
+            case ACTION:
+                return node.isCached;
+            default:
+                return node.alternatives.isEmpty() || node.alternatives.stream()
+                        .anyMatch(alternative -> alternative.stream().allMatch(path -> isAvailable(nodes.get(path))));
+        }
+    }
+
+    private Node node(String path) {
+        var node = nodes.get(path);
+        checkArgument(node != null && node.kind != Kind.CHILD, "Unknown node: %s", path);
+        return node;
+    }
+
+    @Nullable
+    private Object value(Node node) {
+        if (node.kind != Kind.DERIVED) {
+            return node.value;
+        }
+        // Locks are only ever taken in the direction of the dependencies, so cannot deadlock:
+        synchronized (node) {
+            if (node.isCached) {
+                return node.value;
+            }
+            checkState(!node.isEvaluating, "Cyclic evaluation of %s", node.path);
+            node.isEvaluating = true;
+            try {
+                node.value = node.scope.invokeDefault(node.method);
+                node.isCached = true;
+                return node.value;
+            } catch (Throwable t) {
+                Throwables.throwIfUnchecked(t);
+                throw new RuntimeException(t);
+            } finally {
+                node.isEvaluating = false;
+            }
+        }
+    }
+
+    private void invalidateDependents(Node node) {
+        for (Node dependent : node.dependents) {
+            if (dependent.kind == Kind.DERIVED && dependent.isCached) {
+                dependent.isCached = false;
+                dependent.value = null;
+                invalidateDependents(dependent);
+            }
+        }
+    }
+
+    private void checkAcyclic() {
+        var visited = new HashSet<Node>();
+        var onStack = new HashSet<Node>();
+        nodes.values().forEach(node -> checkAcyclic(node, visited, onStack));
+    }
+
+    private void checkAcyclic(Node node, Set<Node> visited, Set<Node> onStack) {
+        checkArgument(!onStack.contains(node), "Dependency cycle through '%s'", node.path);
+        if (visited.add(node)) {
+            onStack.add(node);
+            node.dependents.forEach(dependent -> checkAcyclic(dependent, visited, onStack));
+            onStack.remove(node);
+        }
+    }
+
+    private Scope addScope(Class<?> type, String prefix, @Nullable Scope parent, Map<String, Node> nodes) {
+        checkArgument(type.isInterface(), "Not an interface: %s", type);
+        checkArgument(!scopesByType.containsKey(type), "Scope type used more than once: %s", type);
+        var scope = new Scope(type, parent);
+        scopesByType.put(type, scope);
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.getDeclaringClass() == Child.class) {
+                continue;
+            }
+            checkArgument(method.getParameterCount() == 0, "Unexpected parameters: %s", method);
+            String path = prefix + method.getName();
+            Kind kind = kind(method);
+            if (kind == Kind.CHILD) {
+                scope.children.put(method.getName(), addScope(method.getReturnType(), path + ".", scope, nodes));
+            }
+            var alternatives = Arrays.stream(method.getAnnotationsByType(DependsOn.class))
+                    .map(dependsOn -> List.of(dependsOn.value()))
+                    .collect(ImmutableList.<List<String>>toImmutableList());
+            var node = new Node(path, kind, method, scope, alternatives);
+            nodes.put(path, node);
+            scope.nodes.put(method.getName(), node);
+        }
+        return scope;
+    }
+
+    private static Kind kind(Method method) {
+        if (method.getReturnType() == void.class) {
+            checkArgument(method.isAnnotationPresent(Event.class) || method.isAnnotationPresent(Action.class),
+                    "Void method must be an @Event or @Action: %s", method);
+            return method.isAnnotationPresent(Event.class) ? Kind.EVENT : Kind.ACTION;
+        }
+        if (Child.class.isAssignableFrom(method.getReturnType())) {
+            return Kind.CHILD;
+        }
+        return method.isDefault() ? Kind.DERIVED : Kind.INPUT;
+    }
+
+    private static Class<?> boxed(Class<?> type) {
+        return Primitives.wrap(type);
+    }
+
+    public enum Kind {
+        CHILD, INPUT, DERIVED, EVENT, ACTION
+    }
+
+    private class Node {
+        final String path;
+        final Kind kind;
+        final Method method;
+        final Scope scope;
+        final List<List<String>> alternatives;
+        final Set<Node> dependents = new LinkedHashSet<>();
+        @Nullable
+        Object value;
+        boolean isCached, isEvaluating;
+
+        Node(String path, Kind kind, Method method, Scope scope, List<List<String>> alternatives) {
+            this.path = path;
+            this.kind = kind;
+            this.method = method;
+            this.scope = scope;
+            this.alternatives = alternatives;
+        }
+    }
+
+    private class AsyncEvaluation {
+        final Executor executor;
+        final Map<Node, List<Node>> dependents;
+        final Map<Node, AtomicInteger> pendingCounts;
+        final AtomicInteger remainingCount;
+        final SettableFuture<Void> result = SettableFuture.create();
+
+        AsyncEvaluation(Executor executor, Map<Node, List<Node>> dependents, Map<Node, AtomicInteger> pendingCounts) {
+            this.executor = executor;
+            this.dependents = dependents;
+            this.pendingCounts = pendingCounts;
+            this.remainingCount = new AtomicInteger(pendingCounts.size());
+        }
+
+        void submit(Node node) {
+            try {
+                executor.execute(() -> evaluate(node));
+            } catch (RejectedExecutionException e) {
+                result.setException(e);
+            }
+        }
+
+        private void evaluate(Node node) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                value(node);
+            } catch (RuntimeException e) {
+                result.setException(e);
+                return;
+            }
+            for (Node dependent : dependents.getOrDefault(node, List.of())) {
+                if (pendingCounts.get(dependent).decrementAndGet() == 0) {
+                    submit(dependent);
+                }
+            }
+            if (remainingCount.decrementAndGet() == 0) {
+                result.set(null);
+            }
+        }
+    }
+
+    private class Scope {
+        final Class<?> type;
+        @Nullable
+        final Scope parent;
+        final Map<String, Scope> children = new HashMap<>();
+        final Map<String, Node> nodes = new HashMap<>();
+        // NOTE: Concurrent, as derived properties may be evaluated (so their handles looked up) by several threads at once:
+        final Map<Method, MethodHandle> defaultMethodHandles = new ConcurrentHashMap<>();
+        final Object proxy;
+
+        Scope(Class<?> type, @Nullable Scope parent) {
+            this.type = type;
+            this.parent = parent;
+            this.proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (p, method, args) -> {
+                if (method.getDeclaringClass() == Object.class) {
+                    return invokeObjectMethod(method, args);
+                }
+                if (method.getDeclaringClass() == Child.class) {
+                    checkState(this.parent != null, "Root has no parent");
+                    return this.parent.proxy;
+                }
+                var child = children.get(method.getName());
+                if (child != null) {
+                    return child.proxy;
+                }
+                var node = nodes.get(method.getName());
+                if (node.kind == Kind.EVENT || node.kind == Kind.ACTION) {
+                    fire(node.path);
+                    return null;
+                }
+                var value = value(node);
+                checkState(value != null || !method.getReturnType().isPrimitive(), "Unavailable: %s", node.path);
+                return value;
+            });
+        }
+
+        @Nullable
+        Object invokeDefault(Method method) throws Throwable {
+            return defaultMethodHandles.computeIfAbsent(method, this::newDefaultMethodHandle).invoke();
+        }
+
+        private MethodHandle newDefaultMethodHandle(Method method) {
+            try {
+                var lookup = MethodHandles.privateLookupIn(method.getDeclaringClass(), MethodHandles.lookup());
+                return lookup.unreflectSpecial(method, method.getDeclaringClass()).bindTo(proxy);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot access default method: " + method, e);
+            }
+        }
+
+        private Object invokeObjectMethod(Method method, @Nullable Object[] args) {
+            switch (method.getName()) {
+                case "equals":
+                    return args != null && proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return type.getSimpleName() + nodes.keySet();
+            }
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package lightningtrade;
 
+import java.lang.annotation.ElementType;
 import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 
 @Repeatable(DependsOnAlternatives.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
 public @interface DependsOn {
     String[] value();
 }
@@ -0,0 +1,192 @@
+package lightningtrade;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import invoicesrpc.InvoicesGrpc;
+import invoicesrpc.InvoicesOuterClass;
+import io.grpc.CallCredentials;
+import io.grpc.Channel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import lnrpc.Rpc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Tracks the states of many hold invoices of a node, through one SubscribeSingleInvoice stream per invoice, all
+// multiplexed over the node's single gRPC channel (& connection), passing each state change to the listener of the
+// invoice's payment hash, such as one firing the 'receivesPendingBuyerDeposit' event of a trade. Each stream uses
+// manual flow control, only requesting the next update once the listener's future of handling the last one completes,
+// so that slow consumers push back on the node, rather than buffering without bound. Streams which fail (e.g. from the
+// node restarting) are resubscribed with exponential backoff, with any repeated or stale states skipped. Likewise, an
+// update whose handling fails is redelivered with backoff, holding back the stream until it is handled.
+public class InvoiceTracker implements AutoCloseable {
+    private static final long MIN_BACKOFF_MILLIS = 500, MAX_BACKOFF_MILLIS = 60_000;
+
+    private final InvoicesGrpc.InvoicesStub invoicesStub;
+    private final ScheduledExecutorService scheduler;
+    private final Map<ByteString, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    public InvoiceTracker(Channel channel, CallCredentials callCredentials, ScheduledExecutorService scheduler) {
+        this.invoicesStub = InvoicesGrpc.newStub(channel).withCallCredentials(callCredentials);
+        this.scheduler = scheduler;
+    }
+
+    public interface Listener {
+        // Returns a future of the handling of the update, before which no further updates are delivered:
+        ListenableFuture<?> onStateChange(Rpc.Invoice invoice);
+    }
+
+    // A listener firing the given event of a trade once the invoice is accepted, that is, has its HTLCs held. An update
+    // for a trade which is unknown or has already finished is taken as delivered, as no firing could ever succeed, so
+    // retrying it would hold back the stream forever:
+    public static Listener firingOnAccept(TradeScheduler<?> tradeScheduler, String tradeId, String eventPath) {
+        return invoice -> invoice.getState() == Rpc.Invoice.InvoiceState.ACCEPTED && tradeScheduler.isActive(tradeId)
+                ? tradeScheduler.fire(tradeId, eventPath)
+                : Futures.immediateFuture(null);
+    }
+
+    public void track(ByteString paymentHash, Listener listener) {
+        var subscription = new Subscription(paymentHash, listener);
+        checkArgument(subscriptions.putIfAbsent(paymentHash, subscription) == null, "Already tracked: %s", paymentHash);
+        subscription.subscribe();
+    }
+
+    public void untrack(ByteString paymentHash) {
+        var subscription = subscriptions.remove(paymentHash);
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    public int trackedCount() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public void close() {
+        subscriptions.keySet().forEach(this::untrack);
+    }
+
+    // The order in which the states of a hold invoice are reached, settling & cancellation being final:
+    private static int rank(Rpc.Invoice.InvoiceState state) {
+        switch (state) {
+            case OPEN:
+                return 0;
+            case ACCEPTED:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    private class Subscription implements ClientResponseObserver<InvoicesOuterClass.SubscribeSingleInvoiceRequest, Rpc.Invoice> {
+        private final ByteString paymentHash;
+        private final Listener listener;
+        private volatile ClientCallStreamObserver<?> requestStream;
+        private volatile int lastRank = -1, deliveringRank = -1;
+        private volatile boolean isCancelled;
+        private long backoffMillis = MIN_BACKOFF_MILLIS;
+
+        Subscription(ByteString paymentHash, Listener listener) {
+            this.paymentHash = paymentHash;
+            this.listener = listener;
+        }
+
+        void subscribe() {
+            if (!isCancelled) {
+                invoicesStub.subscribeSingleInvoice(InvoicesOuterClass.SubscribeSingleInvoiceRequest.newBuilder()
+                        .setRHash(paymentHash)
+                        .build(), this);
+            }
+        }
+
+        void cancel() {
+            isCancelled = true;
+            var requestStream = this.requestStream;
+            if (requestStream != null) {
+                requestStream.cancel("Invoice untracked", null);
+            }
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<InvoicesOuterClass.SubscribeSingleInvoiceRequest> requestStream) {
+            this.requestStream = requestStream;
+            requestStream.disableAutoRequestWithInitial(1);
+        }
+
+        @Override
+        public void onNext(Rpc.Invoice invoice) {
+            backoffMillis = MIN_BACKOFF_MILLIS;
+            int rank = rank(invoice.getState());
+            // A resubscribed stream starts with the current state, which may already have been delivered (or still be
+            // in the middle of delivery):
+            if (rank <= Math.max(lastRank, deliveringRank)) {
+                requestStream.request(1);
+                return;
+            }
+            deliver(invoice);
+        }
+
+        // Passes the update to the listener, which only counts as delivered once handled successfully. Until then, no
+        // further updates are requested and it is retried with backoff, unless superseded by a later state:
+        private void deliver(Rpc.Invoice invoice) {
+            int rank = rank(invoice.getState());
+            if (isCancelled || rank <= lastRank) {
+                return;
+            }
+            deliveringRank = rank;
+            ListenableFuture<?> handled;
+            try {
+                handled = listener.onStateChange(invoice);
+            } catch (RuntimeException e) {
+                handled = Futures.immediateFailedFuture(e);
+            }
+            Futures.addCallback(handled, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object result) {
+                    lastRank = Math.max(lastRank, rank);
+                    if (rank == 2) {
+                        subscriptions.remove(paymentHash, Subscription.this);
+                        cancel();
+                    } else {
+                        requestStream.request(1);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    long delay = backoffMillis;
+                    backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                    scheduler.schedule(() -> deliver(invoice), delay, TimeUnit.MILLISECONDS);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (isCancelled || Status.fromThrowable(t).getCode() == Status.Code.CANCELLED) {
+                return;
+            }
+            long delay = backoffMillis;
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            scheduler.schedule(this::subscribe, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onCompleted() {
+            // The stream only ends by itself once the invoice is settled or cancelled, else it must be resumed:
+            if (lastRank < 2) {
+                onError(Status.UNAVAILABLE.withDescription("Invoice stream ended early").asRuntimeException());
+            }
+        }
+    }
+}
@@ -1,60 +1,72 @@
 package lightningtrade;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
 import com.google.common.collect.Streams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import invoicesrpc.InvoicesGrpc;
 import invoicesrpc.InvoicesOuterClass;
 import io.grpc.CallCredentials;
 import io.grpc.Channel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
 import lnrpc.Rpc;
 import routerrpc.RouterGrpc;
 import routerrpc.RouterOuterClass;
 
+import java.util.NoSuchElementException;
+
 public class LightningService {
     private final InvoicesGrpc.InvoicesBlockingStub invoicesStub;
     private final RouterGrpc.RouterBlockingStub routerStub;
+    private final InvoicesGrpc.InvoicesFutureStub invoicesFutureStub;
+    private final RouterGrpc.RouterStub routerAsyncStub;
+    private final RouterGrpc.RouterFutureStub routerFutureStub;
 
     public LightningService(Channel channel, CallCredentials callCredentials) {
         invoicesStub = InvoicesGrpc.newBlockingStub(channel).withCallCredentials(callCredentials);
         routerStub = RouterGrpc.newBlockingStub(channel).withCallCredentials(callCredentials);
+        invoicesFutureStub = InvoicesGrpc.newFutureStub(channel).withCallCredentials(callCredentials);
+        routerAsyncStub = RouterGrpc.newStub(channel).withCallCredentials(callCredentials);
+        routerFutureStub = RouterGrpc.newFutureStub(channel).withCallCredentials(callCredentials);
     }
 
     public String addHoldInvoice(String memo, ByteString hash, long valueMsat, long cltvExpiry, Rpc.RouteHint... routeHints) {
-        var response = invoicesStub.addHoldInvoice(
-                InvoicesOuterClass.AddHoldInvoiceRequest.newBuilder()
-                        .setMemo(memo)
-                        .setHash(hash)
-                        .setCltvExpiry(cltvExpiry)
-                        .setValueMsat(valueMsat)
-//                        .setPrivate(true)
-                        .addAllRouteHints(ImmutableList.copyOf(routeHints))
-                        .build()
-        );
+        var response = invoicesStub.addHoldInvoice(addHoldInvoiceRequest(memo, hash, valueMsat, cltvExpiry, routeHints));
         return response.getPaymentRequest();
     }
 
+    public ListenableFuture<String> addHoldInvoiceAsync(String memo, ByteString hash, long valueMsat, long cltvExpiry,
+                                                        Rpc.RouteHint... routeHints) {
+        var response = invoicesFutureStub.addHoldInvoice(addHoldInvoiceRequest(memo, hash, valueMsat, cltvExpiry, routeHints));
+        return Futures.transform(response, InvoicesOuterClass.AddHoldInvoiceResp::getPaymentRequest,
+                MoreExecutors.directExecutor());
+    }
+
+    private static InvoicesOuterClass.AddHoldInvoiceRequest addHoldInvoiceRequest(String memo, ByteString hash,
+                                                                                 long valueMsat, long cltvExpiry,
+                                                                                 Rpc.RouteHint... routeHints) {
+        return InvoicesOuterClass.AddHoldInvoiceRequest.newBuilder()
+                .setMemo(memo)
+                .setHash(hash)
+                .setCltvExpiry(cltvExpiry)
+                .setValueMsat(valueMsat)
+//                .setPrivate(true)
+                .addAllRouteHints(ImmutableList.copyOf(routeHints))
+                .build();
+    }
+
     public Rpc.Payment payInvoice(String invoice, long outgoingChanId, ByteString lastHopPubkey) {
-        var response = routerStub.sendPaymentV2(
-                RouterOuterClass.SendPaymentRequest.newBuilder()
-                        .setPaymentRequest(invoice)
-//                        .setFinalCltvDelta(720)
-                        .addOutgoingChanIds(outgoingChanId)
-                        .setLastHopPubkey(lastHopPubkey)
-                        .setFeeLimitSat(3000)
-                        .setTimeoutSeconds(300)
-                        .setMaxParts(4)
-                        .setAllowSelfPayment(true)
-                        .build()
-        );
+        var response = routerStub.sendPaymentV2(sendPaymentRequest(invoice, outgoingChanId, lastHopPubkey));
         //noinspection UnstableApiUsage
         return Streams.stream(response)
                 .filter(p -> {
-                    if (p.getStatus() == Rpc.Payment.PaymentStatus.SUCCEEDED || p.getStatus() == Rpc.Payment.PaymentStatus.FAILED) {
-                        return true;
-                    }
-                    if (p.getStatus() == Rpc.Payment.PaymentStatus.IN_FLIGHT && p.getHtlcsCount() > 0 &&
-                            p.getHtlcs(p.getHtlcsCount() - 1).getStatus() == Rpc.HTLCAttempt.HTLCStatus.IN_FLIGHT) {
+                    if (isSettledOrLocked(p)) {
                         return true;
                     }
                     System.out.println("GOT PAYMENT UPDATE: " + p);
@@ -65,10 +77,115 @@ public class LightningService {
                 .orElseThrow();
     }
 
+    // Starts a payment without blocking, passing every update to the given observer (on a gRPC thread) and returning a
+    // future of the first update in which the payment has either finished or has its last HTLC in flight, as for the
+    // blocking 'payInvoice'. Cancelling the future cancels the call (but not any HTLC already sent).
+    public ListenableFuture<Rpc.Payment> payInvoiceAsync(String invoice, long outgoingChanId, ByteString lastHopPubkey,
+                                                         StreamObserver<Rpc.Payment> progressObserver) {
+        var result = SettableFuture.<Rpc.Payment>create();
+        routerAsyncStub.sendPaymentV2(sendPaymentRequest(invoice, outgoingChanId, lastHopPubkey),
+                new ClientResponseObserver<RouterOuterClass.SendPaymentRequest, Rpc.Payment>() {
+                    @Override
+                    public void beforeStart(ClientCallStreamObserver<RouterOuterClass.SendPaymentRequest> requestStream) {
+                        result.addListener(() -> {
+                            if (result.isCancelled()) {
+                                requestStream.cancel("Payment future cancelled", null);
+                            }
+                        }, MoreExecutors.directExecutor());
+                    }
+
+                    @Override
+                    public void onNext(Rpc.Payment payment) {
+                        progressObserver.onNext(payment);
+                        if (isSettledOrLocked(payment)) {
+                            result.set(payment);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        progressObserver.onError(t);
+                        result.setException(t);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        progressObserver.onCompleted();
+                        result.setException(new NoSuchElementException("Payment stream ended without a final update"));
+                    }
+                });
+        return result;
+    }
+
+    private static RouterOuterClass.SendPaymentRequest sendPaymentRequest(String invoice, long outgoingChanId,
+                                                                          ByteString lastHopPubkey) {
+        return RouterOuterClass.SendPaymentRequest.newBuilder()
+                .setPaymentRequest(invoice)
+//                .setFinalCltvDelta(720)
+                .addOutgoingChanIds(outgoingChanId)
+                .setLastHopPubkey(lastHopPubkey)
+                .setFeeLimitSat(3000)
+                .setTimeoutSeconds(300)
+                .setMaxParts(4)
+                .setAllowSelfPayment(true)
+                .build();
+    }
+
+    private static boolean isSettledOrLocked(Rpc.Payment p) {
+        if (p.getStatus() == Rpc.Payment.PaymentStatus.SUCCEEDED || p.getStatus() == Rpc.Payment.PaymentStatus.FAILED) {
+            return true;
+        }
+        return p.getStatus() == Rpc.Payment.PaymentStatus.IN_FLIGHT && p.getHtlcsCount() > 0 &&
+                p.getHtlcs(p.getHtlcsCount() - 1).getStatus() == Rpc.HTLCAttempt.HTLCStatus.IN_FLIGHT;
+    }
+
+    // Has the node build the full route (with the amounts & expiries of each hop) along a path found locally, such as by
+    // the ChannelGraphCache, for sending with 'sendToRouteAsync':
+    public ListenableFuture<Rpc.Route> buildRouteAsync(ChannelGraphCache.Route route, ByteString paymentAddr) {
+        var request = RouterOuterClass.BuildRouteRequest.newBuilder()
+                .setAmtMsat(route.amountMsat())
+                .setFinalCltvDelta(route.finalCltvDelta())
+                .setOutgoingChanId(route.outgoingChannelId())
+                .setPaymentAddr(paymentAddr);
+        route.hopPubkeys().forEach(pubkey -> request.addHopPubkeys(ByteString.copyFrom(BaseEncoding.base16().lowerCase().decode(pubkey))));
+        return Futures.transform(routerFutureStub.buildRoute(request.build()),
+                RouterOuterClass.BuildRouteResponse::getRoute, MoreExecutors.directExecutor());
+    }
+
+    // Sends a single HTLC along the given route, returning a future of the attempt once it has either succeeded or
+    // failed (with the failure in the attempt, rather than the future, unless the HTLC could not be sent at all):
+    public ListenableFuture<Rpc.HTLCAttempt> sendToRouteAsync(ByteString paymentHash, Rpc.Route route) {
+        return routerFutureStub.sendToRouteV2(RouterOuterClass.SendToRouteRequest.newBuilder()
+                .setPaymentHash(paymentHash)
+                .setRoute(route)
+                .build());
+    }
+
     public void settleInvoice(ByteString preimage) {
         //noinspection ResultOfMethodCallIgnored
         invoicesStub.settleInvoice(
                 InvoicesOuterClass.SettleInvoiceMsg.newBuilder().setPreimage(preimage).build()
         );
     }
+
+    public ListenableFuture<Void> settleInvoiceAsync(ByteString preimage) {
+        var response = invoicesFutureStub.settleInvoice(
+                InvoicesOuterClass.SettleInvoiceMsg.newBuilder().setPreimage(preimage).build()
+        );
+        return Futures.transform(response, r -> null, MoreExecutors.directExecutor());
+    }
+
+    public void cancelInvoice(ByteString hash) {
+        //noinspection ResultOfMethodCallIgnored
+        invoicesStub.cancelInvoice(
+                InvoicesOuterClass.CancelInvoiceMsg.newBuilder().setPaymentHash(hash).build()
+        );
+    }
+
+    public ListenableFuture<Void> cancelInvoiceAsync(ByteString hash) {
+        var response = invoicesFutureStub.cancelInvoice(
+                InvoicesOuterClass.CancelInvoiceMsg.newBuilder().setPaymentHash(hash).build()
+        );
+        return Futures.transform(response, r -> null, MoreExecutors.directExecutor());
+    }
 }
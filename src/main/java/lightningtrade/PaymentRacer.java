@@ -0,0 +1,219 @@
+package lightningtrade;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import io.grpc.CallCredentials;
+import io.grpc.Channel;
+import lnrpc.LightningGrpc;
+import lnrpc.Rpc;
+import routerrpc.RouterGrpc;
+import routerrpc.RouterOuterClass;
+
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Pays an invoice over the best of several candidate routes, one per combination of the given outgoing channels & last
+// hops, found with the ChannelGraphCache (to which the route hints of the invoice are added). Routes through node pairs which Mission Control has seen fail for the amount
+// (since they last succeeded) are dropped, and the rest are ranked by their success probability, the product of those
+// of their pairs, as estimated by QueryProbability. The best few are then raced, by concurrently probing each with an
+// HTLC of a random payment hash (which the destination can only fail, with INCORRECT_OR_UNKNOWN_PAYMENT_DETAILS, once
+// the HTLC has reached it), and the payment is committed to the route of the first probe to reach the destination,
+// with the other probes cancelled. Only probes are raced, never the payment itself, so it cannot be paid twice.
+//
+// NOTE: As with 'LightningService.sendToRouteAsync', the future of the payment completes once its HTLC has succeeded
+// or failed, so for a hold invoice only once the invoice is settled or cancelled. Acceptance of the HTLC should be
+// tracked with the InvoiceTracker, as for 'payInvoice'.
+public class PaymentRacer {
+    public static final int DEFAULT_MAX_CONCURRENT_PROBES = 3;
+
+    private final LightningGrpc.LightningFutureStub lightningStub;
+    private final RouterGrpc.RouterFutureStub routerStub;
+    private final LightningService lightningService;
+    private final ChannelGraphCache graphCache;
+    private final String sourcePubkey;
+    private final int maxConcurrentProbes;
+    private final SecureRandom rnd = new SecureRandom();
+
+    public PaymentRacer(Channel channel, CallCredentials callCredentials, LightningService lightningService,
+                        ChannelGraphCache graphCache, String sourcePubkey) {
+        this(channel, callCredentials, lightningService, graphCache, sourcePubkey, DEFAULT_MAX_CONCURRENT_PROBES);
+    }
+
+    public PaymentRacer(Channel channel, CallCredentials callCredentials, LightningService lightningService,
+                        ChannelGraphCache graphCache, String sourcePubkey, int maxConcurrentProbes) {
+        checkArgument(maxConcurrentProbes > 0, "Nonpositive probe count: %s", maxConcurrentProbes);
+        this.lightningStub = LightningGrpc.newFutureStub(channel).withCallCredentials(callCredentials);
+        this.routerStub = RouterGrpc.newFutureStub(channel).withCallCredentials(callCredentials);
+        this.lightningService = lightningService;
+        this.graphCache = graphCache;
+        this.sourcePubkey = sourcePubkey;
+        this.maxConcurrentProbes = maxConcurrentProbes;
+    }
+
+    // Pays the invoice through one of the given outgoing channels & last hops (either of which may be empty, to leave
+    // it unconstrained), failing with NoSuchElementException if no candidate route is found or reaches the destination.
+    // Cancelling the returned future before the payment is committed cancels all the probes.
+    public ListenableFuture<Rpc.HTLCAttempt> pay(String invoice, Set<Long> outgoingChannelIds,
+                                                 Set<String> lastHopPubkeys, long maxFeeMsat, int maxCltvDelta) {
+        var payReq = lightningStub.decodePayReq(Rpc.PayReqString.newBuilder().setPayReq(invoice).build());
+        var missionControl = routerStub.queryMissionControl(RouterOuterClass.QueryMissionControlRequest.getDefaultInstance());
+        var candidates = Futures.whenAllSucceed(payReq, missionControl).call(() -> candidateRoutes(
+                Futures.getDone(payReq), Futures.getDone(missionControl), outgoingChannelIds, lastHopPubkeys,
+                maxFeeMsat, maxCltvDelta), MoreExecutors.directExecutor());
+        var rankedCandidates = Futures.transformAsync(candidates, this::rankRoutes, MoreExecutors.directExecutor());
+        var winningRoute = Futures.transformAsync(rankedCandidates, routes -> race(routes,
+                Futures.getDone(payReq).getPaymentAddr()), MoreExecutors.directExecutor());
+        return Futures.transformAsync(winningRoute, route -> lightningService.sendToRouteAsync(
+                hexToByteString(Futures.getDone(payReq).getPaymentHash()), route), MoreExecutors.directExecutor());
+    }
+
+    private List<ChannelGraphCache.Route> candidateRoutes(Rpc.PayReq payReq,
+                                                          RouterOuterClass.QueryMissionControlResponse missionControl,
+                                                          Set<Long> outgoingChannelIds, Set<String> lastHopPubkeys,
+                                                          long maxFeeMsat, int maxCltvDelta) {
+        long amountMsat = payReq.getNumMsat();
+        var failedPairs = new HashSet<List<String>>();
+        for (RouterOuterClass.PairHistory pair : missionControl.getPairsList()) {
+            var history = pair.getHistory();
+            if (history.getFailTime() > history.getSuccessTime() &&
+                    (history.getFailAmtMsat() == 0 || history.getFailAmtMsat() <= amountMsat)) {
+                failedPairs.add(List.of(toHex(pair.getNodeFrom()), toHex(pair.getNodeTo())));
+            }
+        }
+        // NOTE: Without its route hints, a destination reachable only through private channels would have no route:
+        graphCache.addRouteHints(payReq.getDestination(), payReq.getRouteHintsList());
+        var routes = new LinkedHashMap<List<Long>, ChannelGraphCache.Route>();
+        for (Set<Long> outgoingChannelId : singletonsOrEmpty(outgoingChannelIds)) {
+            for (Set<String> lastHopPubkey : singletonsOrEmpty(lastHopPubkeys)) {
+                for (ChannelGraphCache.Route route : graphCache.findRoutes(sourcePubkey, payReq.getDestination(),
+                        amountMsat, (int) payReq.getCltvExpiry(), maxFeeMsat, maxCltvDelta, outgoingChannelId,
+                        lastHopPubkey, 1)) {
+                    if (!route.channelIds().isEmpty() && pairs(route).stream().noneMatch(failedPairs::contains)) {
+                        routes.putIfAbsent(route.channelIds(), route);
+                    }
+                }
+            }
+        }
+        if (routes.isEmpty()) {
+            throw new NoSuchElementException("No candidate route to " + payReq.getDestination());
+        }
+        return ImmutableList.sortedCopyOf(Comparator.comparing(ChannelGraphCache.Route::feeMsat), routes.values());
+    }
+
+    private static <T> List<Set<T>> singletonsOrEmpty(Set<T> elements) {
+        if (elements.isEmpty()) {
+            return List.of(Set.of());
+        }
+        var singletons = new ArrayList<Set<T>>();
+        elements.forEach(element -> singletons.add(Set.of(element)));
+        return singletons;
+    }
+
+    private List<List<String>> pairs(ChannelGraphCache.Route route) {
+        var pairs = new ArrayList<List<String>>();
+        String from = sourcePubkey;
+        for (String to : route.hopPubkeys()) {
+            pairs.add(List.of(from, to));
+            from = to;
+        }
+        return pairs;
+    }
+
+    // Orders the routes by decreasing success probability, querying the probabilities of all their pairs at once:
+    private ListenableFuture<List<ChannelGraphCache.Route>> rankRoutes(List<ChannelGraphCache.Route> routes) {
+        if (routes.size() <= 1) {
+            return Futures.immediateFuture(routes);
+        }
+        var probabilities = new ArrayList<ListenableFuture<Double>>();
+        for (ChannelGraphCache.Route route : routes) {
+            var pairProbabilities = new ArrayList<ListenableFuture<RouterOuterClass.QueryProbabilityResponse>>();
+            for (List<String> pair : pairs(route)) {
+                pairProbabilities.add(routerStub.queryProbability(RouterOuterClass.QueryProbabilityRequest.newBuilder()
+                        .setFromNode(hexToByteString(pair.get(0)))
+                        .setToNode(hexToByteString(pair.get(1)))
+                        .setAmtMsat(route.amountMsat() + route.feeMsat())
+                        .build()));
+            }
+            probabilities.add(Futures.transform(Futures.allAsList(pairProbabilities), responses -> responses.stream()
+                    .mapToDouble(RouterOuterClass.QueryProbabilityResponse::getProbability)
+                    .reduce(1.0, (p, q) -> p * q), MoreExecutors.directExecutor()));
+        }
+        return Futures.transform(Futures.allAsList(probabilities), p -> {
+            var indices = new ArrayList<Integer>();
+            for (int i = 0; i < routes.size(); i++) {
+                indices.add(i);
+            }
+            // NOTE: The sort is stable, so equally likely routes stay in order of increasing fees:
+            indices.sort(Comparator.<Integer, Double>comparing(p::get).reversed());
+            var rankedRoutes = new ArrayList<ChannelGraphCache.Route>();
+            indices.forEach(i -> rankedRoutes.add(routes.get(i)));
+            return rankedRoutes;
+        }, MoreExecutors.directExecutor());
+    }
+
+    // Probes the best routes concurrently, returning the first (fully built) one to reach the destination:
+    private ListenableFuture<Rpc.Route> race(List<ChannelGraphCache.Route> routes, ByteString paymentAddr) {
+        if (routes.isEmpty()) {
+            // Otherwise no probe would ever complete the race:
+            return Futures.immediateFailedFuture(new NoSuchElementException("No route to race"));
+        }
+        var winner = SettableFuture.<Rpc.Route>create();
+        var probes = new ArrayList<ListenableFuture<?>>();
+        var remaining = new AtomicInteger(Math.min(routes.size(), maxConcurrentProbes));
+        for (ChannelGraphCache.Route route : routes.subList(0, remaining.get())) {
+            if (winner.isDone()) {
+                break;
+            }
+            var builtRoute = lightningService.buildRouteAsync(route, paymentAddr);
+            var probe = Futures.transformAsync(builtRoute, r -> lightningService.sendToRouteAsync(randomHash(), r),
+                    MoreExecutors.directExecutor());
+            probes.add(probe);
+            Futures.addCallback(probe, new FutureCallback<>() {
+                @Override
+                public void onSuccess(Rpc.HTLCAttempt attempt) {
+                    // The failure must come from the destination itself, rather than an intermediate node reporting it:
+                    var route = Futures.getUnchecked(builtRoute);
+                    if (attempt.getFailure().getCode() == Rpc.Failure.FailureCode.INCORRECT_OR_UNKNOWN_PAYMENT_DETAILS &&
+                            attempt.getFailure().getFailureSourceIndex() == route.getHopsCount() &&
+                            winner.set(route)) {
+                        return;
+                    }
+                    onFailure(null);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (remaining.decrementAndGet() == 0) {
+                        winner.setException(new NoSuchElementException("No probe reached the destination"));
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+        // Once a route has won (or the race is cancelled), the remaining probes are abandoned:
+        winner.addListener(() -> probes.forEach(probe -> probe.cancel(true)), MoreExecutors.directExecutor());
+        return winner;
+    }
+
+    private ByteString randomHash() {
+        var bytes = new byte[32];
+        rnd.nextBytes(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    private static String toHex(ByteString bytes) {
+        return BaseEncoding.base16().lowerCase().encode(bytes.toByteArray());
+    }
+
+    private static ByteString hexToByteString(String hex) {
+        return ByteString.copyFrom(BaseEncoding.base16().lowerCase().decode(hex));
+    }
+}
@@ -0,0 +1,31 @@
+package lightningtrade;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+// The nodes of a tree of state interfaces, by their dotted paths from the root, as driven by the TradeScheduler. It is
+// implemented reflectively by DependencyGraph, & with generated fields by the StateTree_<Root> classes (through
+// AbstractStateTree), with the same semantics.
+public interface StateGraph<T> {
+    T root();
+
+    DependencyGraph.Kind kind(String path);
+
+    // The alternative sets of dependencies of the node, any of which is enough for it to become available:
+    List<List<String>> dependencies(String path);
+
+    void set(String path, @Nullable Object value);
+
+    void fire(String path);
+
+    boolean hasOccurred(String path);
+
+    // Whether the node has been set or has occurred or, for derived properties, whether all the dependencies of at
+    // least one alternative are available:
+    boolean isAvailable(String path);
+
+    boolean isCached(String path);
+
+    @Nullable
+    Object get(String path);
+}
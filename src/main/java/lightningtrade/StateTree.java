@@ -0,0 +1,13 @@
+package lightningtrade;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Marks the root of a tree of state interfaces, for which a concrete 'StateTree_<Root>' class is generated, by
+// lightningtrade.processor.StateTreeProcessor, with field-backed memoized properties (see AbstractStateTree).
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface StateTree {
+}
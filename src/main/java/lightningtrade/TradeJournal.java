@@ -0,0 +1,418 @@
+package lightningtrade;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+// Append-only, write-ahead journal of the input values & event/action occurrences of many concurrent trades. Each
+// record is framed by its length and CRC32C checksum, so that a torn write at the tail (from a crash) is detected and
+// discarded on recovery. Records are written by a single thread, which group-commits all the records queued while the
+// previous batch was being synced, completing their futures only once durable.
+//
+// The journal is split into numbered segments. Once the current segment grows past a threshold, a new one is started
+// and a compact snapshot of the (latest values of the) active trades is written, after which the older segments &
+// snapshots are deleted, so that recovery time is proportional to the number of active trades, rather than to the
+// total history.
+//
+// NOTE: Only the paths given codecs (e.g. the escrow secrets) may be journaled.
+public class TradeJournal implements AutoCloseable {
+    public static final long DEFAULT_SNAPSHOT_THRESHOLD = 64 << 20;
+
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("(segment|snapshot)-(\\d+)\\.log");
+    private static final byte SET = 1, OCCURRED = 2, FINISHED = 3;
+    private static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+    private final Map<String, Codec<?>> codecs;
+    private final long snapshotThreshold;
+    private final Map<String, TradeEntry> recoveredTrades;
+    private final Map<String, TradeEntry> activeTrades;
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private FileChannel segment;
+    private long segmentIndex;
+    private volatile IOException failure;
+    private volatile boolean isClosed;
+
+    private TradeJournal(Path directory, Map<String, Codec<?>> codecs, long snapshotThreshold) throws IOException {
+        this.directory = directory;
+        this.codecs = ImmutableMap.copyOf(codecs);
+        this.snapshotThreshold = snapshotThreshold;
+        this.activeTrades = recover();
+        this.recoveredTrades = ImmutableMap.copyOf(activeTrades.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().copy())));
+        this.segment = openSegment(++segmentIndex);
+        this.writerThread = new Thread(this::runWriter, "trade-journal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public static TradeJournal open(Path directory, Map<String, Codec<?>> codecs) throws IOException {
+        return open(directory, codecs, DEFAULT_SNAPSHOT_THRESHOLD);
+    }
+
+    public static TradeJournal open(Path directory, Map<String, Codec<?>> codecs, long snapshotThreshold)
+            throws IOException {
+        Files.createDirectories(directory);
+        return new TradeJournal(directory, codecs, snapshotThreshold);
+    }
+
+    public interface Codec<V> {
+        Codec<ByteString> BYTE_STRING = new Codec<>() {
+            @Override
+            public byte[] encode(ByteString value) {
+                return value.toByteArray();
+            }
+
+            @Override
+            public ByteString decode(byte[] bytes) {
+                return ByteString.copyFrom(bytes);
+            }
+        };
+
+        byte[] encode(V value);
+
+        V decode(byte[] bytes);
+    }
+
+    // The trades which were active (not finished) when the journal was opened:
+    public Set<String> recoveredTradeIds() {
+        return recoveredTrades.keySet();
+    }
+
+    // Replays the recovered state of the given trade, e.g. with 'journal.restore(id, graph::set, graph::fire)':
+    public void restore(String tradeId, BiConsumer<String, Object> setFn, Consumer<String> fireFn) {
+        var trade = recoveredTrades.get(tradeId);
+        checkArgument(trade != null, "No recovered trade: %s", tradeId);
+        trade.values.forEach((path, bytes) -> setFn.accept(path, codecs.get(path).decode(bytes)));
+        trade.occurrences.forEach(fireFn);
+    }
+
+    public ListenableFuture<Void> recordSet(String tradeId, String path, @Nullable Object value) {
+        @SuppressWarnings("unchecked")
+        var codec = (Codec<Object>) codecs.get(path);
+        checkArgument(codec != null, "No codec for %s", path);
+        return append(new Record(SET, tradeId, path, value != null ? codec.encode(value) : null));
+    }
+
+    public ListenableFuture<Void> recordOccurrence(String tradeId, String path) {
+        return append(new Record(OCCURRED, tradeId, path, null));
+    }
+
+    // Marks the trade as finished, so that it is left out of subsequent snapshots:
+    public ListenableFuture<Void> recordFinished(String tradeId) {
+        return append(new Record(FINISHED, tradeId, "", null));
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            queue.add(PendingRecord.POISON);
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.close();
+    }
+
+    // NOTE: The closed check & the enqueuing are done under the same lock as the enqueuing of the poison by 'close', so
+    // that every accepted record precedes the poison, and is thus written (or failed) by the writer, rather than being
+    // left in the queue with its future never completed:
+    private ListenableFuture<Void> append(Record record) {
+        var pendingRecord = new PendingRecord(record);
+        synchronized (queue) {
+            checkState(!isClosed, "Journal closed");
+            if (failure == null) {
+                queue.add(pendingRecord);
+                return pendingRecord.result;
+            }
+        }
+        pendingRecord.result.setException(failure);
+        return pendingRecord.result;
+    }
+
+    private void runWriter() {
+        var batch = new ArrayList<PendingRecord>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            boolean isPoisoned = batch.remove(PendingRecord.POISON);
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+            }
+            batch.clear();
+            if (isPoisoned) {
+                return;
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingRecord> batch) {
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            var out = new ByteArrayOutputStream();
+            for (PendingRecord pendingRecord : batch) {
+                pendingRecord.record.writeTo(out);
+            }
+            write(segment, out.toByteArray());
+            segment.force(false);
+            batch.forEach(r -> r.record.applyTo(activeTrades));
+            batch.forEach(r -> r.result.set(null));
+            if (segment.size() > snapshotThreshold) {
+                rollSegment();
+            }
+        } catch (IOException e) {
+            failure = e;
+            batch.forEach(r -> r.result.setException(e));
+        }
+    }
+
+    // Starts a new segment, then snapshots everything before it, then deletes the files the snapshot supersedes. A
+    // crash at any point leaves either the old or the new snapshot with all the segments following it.
+    private void rollSegment() throws IOException {
+        var newSegment = openSegment(segmentIndex + 1);
+        segment.close();
+        segment = newSegment;
+        segmentIndex++;
+
+        var out = new ByteArrayOutputStream();
+        activeTrades.forEach((tradeId, trade) -> trade.writeTo(tradeId, out));
+        var tempFile = directory.resolve("snapshot.tmp");
+        try (var channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, out.toByteArray());
+            channel.force(false);
+        }
+        Files.move(tempFile, file("snapshot", segmentIndex), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        for (List<Path> paths : journalFiles().headMap(segmentIndex).values()) {
+            for (Path path : paths) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private Map<String, TradeEntry> recover() throws IOException {
+        var files = journalFiles();
+        var trades = new LinkedHashMap<String, TradeEntry>();
+        long startIndex = 0;
+        for (long index : files.descendingKeySet()) {
+            var snapshotFile = file("snapshot", index);
+            if (Files.exists(snapshotFile) && readRecords(snapshotFile, trades) == Files.size(snapshotFile)) {
+                startIndex = index;
+                break;
+            }
+            trades.clear();
+        }
+        long lastIndex = files.isEmpty() ? 0 : files.lastKey();
+        for (long index = startIndex; index <= lastIndex; index++) {
+            var segmentFile = file("segment", index);
+            if (Files.exists(segmentFile)) {
+                long validLength = readRecords(segmentFile, trades);
+                if (validLength < Files.size(segmentFile)) {
+                    // Only the last segment can have been torn by a crash, so anything else is real corruption:
+                    if (index < lastIndex) {
+                        throw new IOException("Corrupt journal segment: " + segmentFile);
+                    }
+                    try (var channel = FileChannel.open(segmentFile, StandardOpenOption.WRITE)) {
+                        channel.truncate(validLength);
+                    }
+                }
+            } else if (index > startIndex) {
+                throw new IOException("Missing journal segment: " + segmentFile);
+            }
+        }
+        segmentIndex = lastIndex;
+        return trades;
+    }
+
+    // Applies the records of a segment or snapshot file up to the first torn or corrupt one (if any), returning the
+    // length of the valid prefix of the file:
+    private static long readRecords(Path file, Map<String, TradeEntry> trades) throws IOException {
+        var bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        long validLength = 0;
+        while (bytes.remaining() >= HEADER_SIZE) {
+            int length = bytes.getInt();
+            int checksum = bytes.getInt();
+            if (length < 0 || length > bytes.remaining()) {
+                break;
+            }
+            var crc = new CRC32C();
+            crc.update(bytes.array(), bytes.position(), length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            var record = Record.readFrom(new DataInputStream(
+                    new ByteArrayInputStream(bytes.array(), bytes.position(), length)));
+            bytes.position(bytes.position() + length);
+            validLength = bytes.position();
+            record.applyTo(trades);
+        }
+        return validLength;
+    }
+
+    private FileChannel openSegment(long index) throws IOException {
+        var channel = FileChannel.open(file("segment", index), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        syncDirectory();
+        return channel;
+    }
+
+    // Makes new directory entries durable, where the platform allows it:
+    private void syncDirectory() {
+        try (var directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Path file(String kind, long index) {
+        return directory.resolve(String.format("%s-%016d.log", kind, index));
+    }
+
+    private NavigableMap<Long, List<Path>> journalFiles() throws IOException {
+        var files = new TreeMap<Long, List<Path>>();
+        try (var stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                var matcher = FILE_NAME_PATTERN.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    files.computeIfAbsent(Long.parseLong(matcher.group(2)), k -> new ArrayList<>()).add(path);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void write(FileChannel channel, byte[] bytes) throws IOException {
+        var buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static class Record {
+        final byte type;
+        final String tradeId, path;
+        @Nullable
+        final byte[] value;
+
+        Record(byte type, String tradeId, String path, @Nullable byte[] value) {
+            this.type = type;
+            this.tradeId = tradeId;
+            this.path = path;
+            this.value = value;
+        }
+
+        static Record readFrom(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            String tradeId = in.readUTF();
+            String path = in.readUTF();
+            byte[] value = null;
+            if (type == SET) {
+                int length = in.readInt();
+                if (length >= 0) {
+                    value = in.readNBytes(length);
+                }
+            }
+            return new Record(type, tradeId, path, value);
+        }
+
+        void writeTo(ByteArrayOutputStream out) {
+            try {
+                var payload = new ByteArrayOutputStream();
+                var data = new DataOutputStream(payload);
+                data.writeByte(type);
+                data.writeUTF(tradeId);
+                data.writeUTF(path);
+                if (type == SET) {
+                    data.writeInt(value != null ? value.length : -1);
+                    if (value != null) {
+                        data.write(value);
+                    }
+                }
+                var crc = new CRC32C();
+                crc.update(payload.toByteArray());
+                var header = ByteBuffer.allocate(HEADER_SIZE).putInt(payload.size()).putInt((int) crc.getValue());
+                out.write(header.array());
+                payload.writeTo(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void applyTo(Map<String, TradeEntry> trades) {
+            if (type == FINISHED) {
+                trades.remove(tradeId);
+                return;
+            }
+            var trade = trades.computeIfAbsent(tradeId, k -> new TradeEntry());
+            if (type == SET) {
+                if (value != null) {
+                    trade.values.put(path, value);
+                } else {
+                    trade.values.remove(path);
+                }
+            } else {
+                trade.occurrences.add(path);
+            }
+        }
+    }
+
+    private static class TradeEntry {
+        final Map<String, byte[]> values = new LinkedHashMap<>();
+        final Set<String> occurrences = new LinkedHashSet<>();
+
+        TradeEntry copy() {
+            var copy = new TradeEntry();
+            copy.values.putAll(values);
+            copy.occurrences.addAll(occurrences);
+            return copy;
+        }
+
+        void writeTo(String tradeId, ByteArrayOutputStream out) {
+            values.forEach((path, value) -> new Record(SET, tradeId, path, value).writeTo(out));
+            occurrences.forEach(path -> new Record(OCCURRED, tradeId, path, null).writeTo(out));
+        }
+    }
+
+    private static class PendingRecord {
+        static final PendingRecord POISON = new PendingRecord(null);
+
+        final Record record;
+        final SettableFuture<Void> result = SettableFuture.create();
+
+        PendingRecord(Record record) {
+            this.record = record;
+        }
+    }
+}
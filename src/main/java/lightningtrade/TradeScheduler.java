@@ -0,0 +1,234 @@
+package lightningtrade;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Drives many trades (trees of state interfaces, such as TradeState) concurrently, on a fixed number of single-threaded
+// event loops. Each trade is confined to one loop, so that its (non-thread-safe) StateGraph needs no locking. An
+// action is performed, by its registered handler, as soon as its dependencies are available, and a trade is suspended
+// (without holding any thread) while it waits for an external @Event, being resumed when the event is fired. Handlers
+// must not block, but instead return a future of the completion of the action, after which it is marked as occurred.
+//
+// A trade is complete once all the actions with handlers have occurred.
+//
+// NOTE: The state of each trade is best a generated StateTree_<Root> (for a @StateTree root), rather than a reflective
+// DependencyGraph, which must build its nodes & proxies anew for every trade.
+public class TradeScheduler<T> implements AutoCloseable {
+    private final Supplier<? extends StateGraph<T>> graphFactory;
+    private final Map<String, ActionHandler<T>> actionHandlers;
+    private final List<ScheduledExecutorService> loops;
+    private final ConcurrentMap<String, Trade> trades = new ConcurrentHashMap<>();
+
+    public TradeScheduler(Class<T> rootType, Map<String, ActionHandler<T>> actionHandlers, int loopCount) {
+        this(() -> DependencyGraph.create(rootType), actionHandlers, loopCount);
+    }
+
+    public TradeScheduler(Supplier<? extends StateGraph<T>> graphFactory, Map<String, ActionHandler<T>> actionHandlers,
+                          int loopCount) {
+        checkArgument(loopCount > 0, "Need at least one event loop");
+        var prototype = graphFactory.get();
+        actionHandlers.keySet().forEach(path -> checkArgument(prototype.kind(path) == DependencyGraph.Kind.ACTION,
+                "Not an action: %s", path));
+        this.graphFactory = graphFactory;
+        this.actionHandlers = ImmutableMap.copyOf(actionHandlers);
+        var threadFactory = new ThreadFactoryBuilder().setNameFormat("trade-loop-%d").setDaemon(true).build();
+        var loops = ImmutableList.<ScheduledExecutorService>builderWithExpectedSize(loopCount);
+        for (int i = 0; i < loopCount; i++) {
+            loops.add(Executors.newSingleThreadScheduledExecutor(threadFactory));
+        }
+        this.loops = loops.build();
+    }
+
+    public interface ActionHandler<T> {
+        ListenableFuture<?> perform(T state);
+    }
+
+    // Starts a new trade, after setting its initial inputs (on its event loop), returning a future of its completion:
+    public ListenableFuture<Void> start(String tradeId, Consumer<? super StateGraph<T>> initFn) {
+        var trade = new Trade(tradeId, loops.get(Math.floorMod(tradeId.hashCode(), loops.size())));
+        checkArgument(trades.putIfAbsent(tradeId, trade) == null, "Trade already started: %s", tradeId);
+        trade.submit(() -> {
+            initFn.accept(trade.graph);
+            trade.advance();
+        });
+        return trade.completion;
+    }
+
+    public ListenableFuture<Void> fire(String tradeId, String eventPath) {
+        return trade(tradeId).submit(() -> {
+            var trade = trade(tradeId);
+            checkArgument(trade.graph.kind(eventPath) == DependencyGraph.Kind.EVENT, "Not an event: %s", eventPath);
+            trade.graph.fire(eventPath);
+            trade.advance();
+        });
+    }
+
+    // Fires the given event after a delay, instead of blocking the caller (or a loop) in a sleep:
+    public ScheduledFuture<?> fireAfter(String tradeId, String eventPath, long delay, TimeUnit unit) {
+        return trade(tradeId).loop.schedule(() -> fire(tradeId, eventPath), delay, unit);
+    }
+
+    public ListenableFuture<Void> set(String tradeId, String path, @Nullable Object value) {
+        return trade(tradeId).submit(() -> {
+            var trade = trade(tradeId);
+            trade.graph.set(path, value);
+            trade.advance();
+        });
+    }
+
+    // The events the given trade is currently suspended on, that is, those not yet fired which at least one pending
+    // action (transitively) depends on:
+    public ListenableFuture<Set<String>> pendingEvents(String tradeId) {
+        var trade = trade(tradeId);
+        var result = SettableFuture.<Set<String>>create();
+        trade.submit(() -> result.set(trade.pendingEvents()));
+        return result;
+    }
+
+    public int activeTradeCount() {
+        return trades.size();
+    }
+
+    public boolean isActive(String tradeId) {
+        return trades.containsKey(tradeId);
+    }
+
+    @Override
+    public void close() {
+        loops.forEach(ExecutorService::shutdownNow);
+        trades.values().forEach(trade -> trade.completion.setException(new CancellationException("Scheduler closed")));
+    }
+
+    private Trade trade(String tradeId) {
+        var trade = trades.get(tradeId);
+        checkArgument(trade != null, "No active trade: %s", tradeId);
+        return trade;
+    }
+
+    private class Trade {
+        final String id;
+        final ScheduledExecutorService loop;
+        final StateGraph<T> graph = graphFactory.get();
+        final Set<String> actionsInFlight = new HashSet<>();
+        final SettableFuture<Void> completion = SettableFuture.create();
+
+        Trade(String id, ScheduledExecutorService loop) {
+            this.id = id;
+            this.loop = loop;
+        }
+
+        // Runs the task on the trade's loop, failing the trade as well as the returned future if the task throws, since
+        // the trade may then be left half-updated:
+        ListenableFuture<Void> submit(Runnable task) {
+            var result = SettableFuture.<Void>create();
+            loop.execute(() -> {
+                if (completion.isDone()) {
+                    result.setException(new IllegalStateException("Trade already finished: " + id));
+                    return;
+                }
+                try {
+                    task.run();
+                    result.set(null);
+                } catch (RuntimeException e) {
+                    finish(e);
+                    result.setException(e);
+                }
+            });
+            return result;
+        }
+
+        // Performs every ready action not yet in flight, completing the trade once they have all occurred:
+        void advance() {
+            boolean isComplete = true;
+            for (var entry : actionHandlers.entrySet()) {
+                String path = entry.getKey();
+                if (graph.hasOccurred(path)) {
+                    continue;
+                }
+                isComplete = false;
+                if (!actionsInFlight.contains(path) && isReady(path)) {
+                    actionsInFlight.add(path);
+                    perform(path, entry.getValue());
+                }
+            }
+            if (isComplete) {
+                finish(null);
+            }
+        }
+
+        // Deregisters the trade before completing it, so that it is never found active once its completion is seen:
+        private void finish(@Nullable Throwable t) {
+            trades.remove(id, this);
+            if (t == null) {
+                completion.set(null);
+            } else {
+                completion.setException(t);
+            }
+        }
+
+        private void perform(String path, ActionHandler<T> handler) {
+            ListenableFuture<?> result;
+            try {
+                result = handler.perform(graph.root());
+            } catch (RuntimeException e) {
+                result = Futures.immediateFailedFuture(e);
+            }
+            Futures.addCallback(result, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(@Nullable Object value) {
+                    actionsInFlight.remove(path);
+                    if (!completion.isDone()) {
+                        graph.fire(path);
+                        advance();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    actionsInFlight.remove(path);
+                    finish(t);
+                }
+            }, loop);
+        }
+
+        private boolean isReady(String path) {
+            var alternatives = graph.dependencies(path);
+            return alternatives.isEmpty() || alternatives.stream()
+                    .anyMatch(alternative -> alternative.stream().allMatch(graph::isAvailable));
+        }
+
+        Set<String> pendingEvents() {
+            var pendingEvents = new TreeSet<String>();
+            var visited = new HashSet<String>();
+            actionHandlers.keySet().stream()
+                    .filter(path -> !graph.hasOccurred(path))
+                    .forEach(path -> collectPendingEvents(path, visited, pendingEvents));
+            return pendingEvents;
+        }
+
+        private void collectPendingEvents(String path, Set<String> visited, Set<String> pendingEvents) {
+            if (!visited.add(path) || graph.isAvailable(path)) {
+                return;
+            }
+            if (graph.kind(path) == DependencyGraph.Kind.EVENT) {
+                pendingEvents.add(path);
+                return;
+            }
+            graph.dependencies(path).forEach(alternative ->
+                    alternative.forEach(dependency -> collectPendingEvents(dependency, visited, pendingEvents)));
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.google.common.hash.Hashing;
 import com.google.protobuf.ByteString;
 import lightningtrade.cryptography.*;
 
+@StateTree
 public interface TradeState {
     @Access("buyer")
     BuyerState buyer();
@@ -80,9 +81,10 @@ public interface TradeState {
             return obliviousTransferSpec().encrypt(bitVector(secret()));
         }
 
-        @DependsOn({"seller.obliviousSecret", "escrow.garbledCircuitGenerator"})
+        @DependsOn({"seller.obliviousSecret", "escrow.obliviousTransferSender", "escrow.garbledCircuitGenerator"})
         default ObliviousResponse<GarbledBitVector> obliviousGarbledSecret() {
-            return parent().escrow().garbledCircuitGenerator().garbleInputs(obliviousSecret(), 0);
+            var boundSecret = parent().escrow().obliviousTransferSender().bind(obliviousSecret());
+            return parent().escrow().garbledCircuitGenerator().garbleInputs(boundSecret, 0);
         }
 
         @DependsOn({"seller.obliviousTransferSpec", "seller.obliviousGarbledSecret", "escrow.garbledCircuit"})
@@ -127,6 +129,9 @@ public interface TradeState {
         @Access("escrow.finalizesDeposits => buyer")
         GarbledCircuit.Generator garbledCircuitGenerator();
 
+        @Access("escrow")
+        ObliviousTransferGenerator.Sender obliviousTransferSender();
+
         @Action
         @DependsOn("payoutHash")
         void sendsPayout();
@@ -0,0 +1,115 @@
+package lightningtrade.cryptography;
+
+import com.google.common.collect.ImmutableList;
+import lightningtrade.cryptography.Program.GateData;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.function.LongSupplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Evaluates a Program in the clear, on up to 64 independent sets of inputs at once, by packing the i-th bit of each set
+// into the i-th lane of a long. INPUT gates consume the input words in order (whether or not they are known to the
+// generator) and each RANDOM gate consumes one word from the random source.
+public class BitSlicedEvaluator {
+    public static final int LANES = 64;
+
+    private final Program program;
+
+    public BitSlicedEvaluator(Program program) {
+        this.program = program;
+    }
+
+    public long[] evaluate(long[] inputs, long randomSeed) {
+        return evaluate(inputs, new SplittableRandom(randomSeed)::nextLong);
+    }
+
+    public long[] evaluate(long[] inputs, LongSupplier randomSource) {
+        List<GateData> rawGates = program.rawGates();
+        long[] values = new long[rawGates.size()];
+        int inputIndex = 0;
+        for (int i = 0; i < values.length; i++) {
+            GateData rawGate = rawGates.get(i);
+            List<Integer> inputOffsets = rawGate.inputOffsets();
+            long x = inputOffsets.size() > 0 ? values[i - inputOffsets.get(0)] : 0;
+            long y = inputOffsets.size() > 1 ? values[i - inputOffsets.get(1)] : 0;
+            switch (rawGate.type()) {
+                case INPUT:
+                    checkArgument(inputIndex < inputs.length, "Too few inputs: %s", inputs.length);
+                    values[i] = inputs[inputIndex++];
+                    break;
+                case RANDOM:
+                    values[i] = randomSource.getAsLong();
+                    break;
+                case FALSE:
+                    values[i] = 0;
+                    break;
+                case TRUE:
+                    values[i] = -1;
+                    break;
+                case IDENTITY:
+                    values[i] = x;
+                    break;
+                case NOT:
+                    values[i] = ~x;
+                    break;
+                case XOR:
+                    values[i] = x ^ y;
+                    break;
+                case XNOR:
+                    values[i] = ~(x ^ y);
+                    break;
+                case AND:
+                    values[i] = x & y;
+                    break;
+                case NOT_AND:
+                    values[i] = ~x & y;
+                    break;
+                case AND_NOT:
+                    values[i] = x & ~y;
+                    break;
+                case NOR:
+                    values[i] = ~(x | y);
+                    break;
+                case NAND:
+                    values[i] = ~(x & y);
+                    break;
+                case OR_NOT:
+                    values[i] = x | ~y;
+                    break;
+                case NOT_OR:
+                    values[i] = ~x | y;
+                    break;
+                case OR:
+                    values[i] = x | y;
+                    break;
+            }
+        }
+        checkArgument(inputIndex == inputs.length, "Too many inputs: %s", inputs.length);
+        return program.outputIndices().stream().mapToLong(i -> values[i]).toArray();
+    }
+
+    public List<BitVector> evaluate(List<BitVector> inputSets, long randomSeed) {
+        checkArgument(inputSets.size() <= LANES, "At most %s input sets may be evaluated at once", LANES);
+        int inputLength = inputSets.isEmpty() ? 0 : inputSets.get(0).size();
+        long[] inputs = new long[inputLength];
+        for (int lane = 0; lane < inputSets.size(); lane++) {
+            BitVector inputSet = inputSets.get(lane);
+            checkArgument(inputSet.size() == inputLength, "Input sets must all have the same length");
+            for (int i = 0; i < inputLength; i++) {
+                inputs[i] |= inputSet.getAsBoolean(i) ? 1L << lane : 0;
+            }
+        }
+        long[] outputs = evaluate(inputs, randomSeed);
+        var builder = ImmutableList.<BitVector>builderWithExpectedSize(inputSets.size());
+        for (int lane = 0; lane < inputSets.size(); lane++) {
+            var outputSet = BitVector.builder(outputs.length);
+            for (long word : outputs) {
+                outputSet.add((word >>> lane & 1) != 0);
+            }
+            builder.add(outputSet.build());
+        }
+        return builder.build();
+    }
+}
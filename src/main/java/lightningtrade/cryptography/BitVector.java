@@ -1,13 +1,11 @@
 package lightningtrade.cryptography;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Iterables;
 import lightningtrade.App;
 
 import java.io.ByteArrayOutputStream;
 import java.util.*;
 import java.util.stream.Collector;
-import java.util.stream.Collectors;
 
 public interface BitVector extends List<Boolean> {
     byte[] bytes();
@@ -22,29 +20,65 @@ public interface BitVector extends List<Boolean> {
 
     boolean getAsBoolean(int index);
 
+    // Returns the (up to) 64 bits starting at the given offset, most significant bit first, padded with zeros:
+    default long getLong(int bitOffset) {
+        Preconditions.checkPositionIndex(bitOffset, size());
+        int n = Math.min(64, size() - bitOffset);
+        long result = 0;
+        for (int i = 0; i < n; i++) {
+            result |= getAsBoolean(bitOffset + i) ? Long.MIN_VALUE >>> i : 0;
+        }
+        return result;
+    }
+
     @Override
     BitVector subList(int fromIndex, int toIndex);
 
     BitVector concat(BitVector other);
 
+    default BitVector xor(BitVector other) {
+        Preconditions.checkArgument(size() == other.size(), "Size mismatch: %s vs %s", size(), other.size());
+        long[] words = new long[(size() + 63) >>> 6];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = getLong(i << 6) ^ other.getLong(i << 6);
+        }
+        return new LongArrayBitVector(words, 0, size());
+    }
+
+    default BitVector and(BitVector other) {
+        Preconditions.checkArgument(size() == other.size(), "Size mismatch: %s vs %s", size(), other.size());
+        long[] words = new long[(size() + 63) >>> 6];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = getLong(i << 6) & other.getLong(i << 6);
+        }
+        return new LongArrayBitVector(words, 0, size());
+    }
+
+    default int bitCount() {
+        int count = 0;
+        for (int i = 0; i < size(); i += 64) {
+            count += Long.bitCount(getLong(i));
+        }
+        return count;
+    }
+
     static BitVector copyFrom(byte[] bytes) {
         return new ImmutableArrayBitVector(bytes.clone(), 0, bytes.length * 8);
     }
 
-    private static int get(List<Boolean> list, int i, int x) {
-        return Boolean.TRUE.equals(list.get(i)) ? x : 0;
+    static BitVector copyFrom(long[] words, int length) {
+        Preconditions.checkArgument(length >= 0 && length <= words.length * 64L, "Bad length: %s", length);
+        return new LongArrayBitVector(Arrays.copyOf(words, (length + 63) >>> 6), 0, length);
+    }
+
+    static BitVector zeros(int length) {
+        return new LongArrayBitVector(new long[(length + 63) >>> 6], 0, length);
     }
 
     static BitVector copyFrom(Iterable<Boolean> bits) {
-        var os = new ByteArrayOutputStream();
-        int[] count = new int[1];
-        Iterables.paddedPartition(bits, 8).forEach(list -> {
-            int b = get(list, 0, 128) ^ get(list, 1, 64) ^ get(list, 2, 32) ^ get(list, 3, 16)
-                    ^ get(list, 4, 8) ^ get(list, 5, 4) ^ get(list, 6, 2) ^ get(list, 7, 1);
-            os.write(b);
-            count[0] += list.stream().filter(Objects::nonNull).count();
-        });
-        return copyFrom(os.toByteArray()).subList(0, count[0]);
+        var builder = builder();
+        bits.forEach(builder::add);
+        return builder.build();
     }
 
     static BitVector empty() {
@@ -57,7 +91,112 @@ public interface BitVector extends List<Boolean> {
     }
 
     static Collector<Boolean, ?, BitVector> toBitVector() {
-        return Collectors.collectingAndThen(Collectors.toList(), BitVector::copyFrom);
+        return Collector.of(Builder::new, Builder::add, Builder::addAll, Builder::build);
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    static Builder builder(int expectedSize) {
+        return new Builder(expectedSize);
+    }
+
+    private static long mask(long word, int length) {
+        return length >= 64 ? word : length <= 0 ? 0 : word & -1L << 64 - length;
+    }
+
+    private static byte[] toBytes(BitVector bitVector) {
+        byte[] result = new byte[(bitVector.size() + 7) / 8];
+        for (int i = 0; i < result.length; i += 8) {
+            long word = bitVector.getLong(i * 8);
+            for (int j = 0; j < 8 && i + j < result.length; j++) {
+                result[i + j] = (byte) (word >>> 56 - j * 8);
+            }
+        }
+        return result;
+    }
+
+    // Word-level concatenation at an arbitrary bit offset, shifting each 64-bit chunk of the right-hand side into place:
+    private static BitVector concat(BitVector left, BitVector right) {
+        int n = left.size(), m = right.size();
+        long[] words = new long[(n + m + 63) >>> 6];
+        for (int i = 0; i < n; i += 64) {
+            words[i >>> 6] = left.getLong(i);
+        }
+        for (int i = 0; i < m; i += 64) {
+            long word = right.getLong(i);
+            int bitIndex = n + i, w = bitIndex >>> 6, shift = bitIndex & 63;
+            words[w] |= word >>> shift;
+            if (shift != 0 && w + 1 < words.length) {
+                words[w + 1] |= word << 64 - shift;
+            }
+        }
+        return new LongArrayBitVector(words, 0, n + m);
+    }
+
+    // Growable, word-packed builder, to avoid collecting boxed bits into an intermediate list:
+    class Builder {
+        private long[] words;
+        private int size;
+
+        private Builder() {
+            this(64);
+        }
+
+        private Builder(int expectedSize) {
+            words = new long[Math.max(1, (expectedSize + 63) >>> 6)];
+        }
+
+        public Builder add(boolean bit) {
+            ensureCapacity(size + 1);
+            words[size >>> 6] |= bit ? Long.MIN_VALUE >>> (size & 63) : 0;
+            size++;
+            return this;
+        }
+
+        // Appends the lowest 'n' bits of the given value, most significant first:
+        public Builder addBits(long bits, int n) {
+            Preconditions.checkArgument(n >= 0 && n <= 64, "Bit count out of range: %s", n);
+            if (n == 0) {
+                return this;
+            }
+            ensureCapacity(size + n);
+            long word = bits << 64 - n;
+            int w = size >>> 6, shift = size & 63;
+            words[w] |= word >>> shift;
+            if (shift != 0 && shift + n > 64) {
+                words[w + 1] |= word << 64 - shift;
+            }
+            size += n;
+            return this;
+        }
+
+        public Builder addAll(BitVector bits) {
+            int n = bits.size();
+            for (int i = 0; i < n; i += 64) {
+                addBits(bits.getLong(i) >>> Math.max(0, 64 - (n - i)), Math.min(64, n - i));
+            }
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public BitVector build() {
+            return new LongArrayBitVector(Arrays.copyOf(words, (size + 63) >>> 6), 0, size);
+        }
+
+        private Builder addAll(Builder other) {
+            return addAll(other.build());
+        }
+
+        private void ensureCapacity(int newSize) {
+            if (newSize > words.length * 64L) {
+                words = Arrays.copyOf(words, Math.max(words.length * 2, (newSize + 63) >>> 6));
+            }
+        }
     }
 
     interface BooleanIterator extends Iterator<Boolean> {
@@ -92,6 +231,22 @@ public interface BitVector extends List<Boolean> {
             return end - start;
         }
 
+        @Override
+        public long getLong(int bitOffset) {
+            Preconditions.checkPositionIndex(bitOffset, size());
+            int index = start + bitOffset, byteIndex = index >>> 3, shift = index & 7;
+            long word = 0;
+            for (int i = 0; i < 8; i++) {
+                word = word << 8 | (byteIndex + i < bytes.length ? bytes[byteIndex + i] & 0xff : 0);
+            }
+            if (shift != 0 && byteIndex + 8 < bytes.length) {
+                word = word << shift | (bytes[byteIndex + 8] & 0xff) >>> 8 - shift;
+            } else {
+                word <<= shift;
+            }
+            return mask(word, size() - bitOffset);
+        }
+
         @Override
         public byte[] bytes() {
             if ((start & 7) == 0) {
@@ -101,7 +256,7 @@ public interface BitVector extends List<Boolean> {
                 }
                 return result;
             }
-            throw new UnsupportedOperationException();
+            return toBytes(this);
         }
 
         @Override
@@ -119,7 +274,7 @@ public interface BitVector extends List<Boolean> {
                 os.write((tmp = other.bytes()), 0, tmp.length);
                 return new ImmutableArrayBitVector(os.toByteArray(), 0, size() + other.size());
             }
-            throw new UnsupportedOperationException();
+            return BitVector.concat(this, other);
         }
 
         @Override
@@ -155,4 +310,111 @@ public interface BitVector extends List<Boolean> {
             return "BitVector{size=" + size() + ",bytes=0x" + App.toHexString(bytes()) + "}";
         }
     }
+
+    class LongArrayBitVector extends AbstractList<Boolean> implements BitVector {
+        private final int start, end;
+        private final long[] words;
+
+        LongArrayBitVector(long[] words, int start, int end) {
+            this.start = start;
+            this.end = end;
+            this.words = words;
+        }
+
+        @Override
+        public boolean getAsBoolean(int index) {
+            Preconditions.checkElementIndex(index, size());
+            return (words[(index += start) >>> 6] & (Long.MIN_VALUE >>> (index & 63))) != 0;
+        }
+
+        @Override
+        public long getLong(int bitOffset) {
+            Preconditions.checkPositionIndex(bitOffset, size());
+            int index = start + bitOffset, w = index >>> 6, shift = index & 63;
+            long word = w < words.length ? words[w] << shift : 0;
+            if (shift != 0 && w + 1 < words.length) {
+                word |= words[w + 1] >>> 64 - shift;
+            }
+            return mask(word, size() - bitOffset);
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
+
+        @Override
+        public byte[] bytes() {
+            return toBytes(this);
+        }
+
+        @Override
+        public BitVector concat(BitVector other) {
+            if (other.isEmpty()) {
+                return this;
+            }
+            if (isEmpty()) {
+                return other;
+            }
+            return BitVector.concat(this, other);
+        }
+
+        @Override
+        public LongArrayBitVector subList(int fromIndex, int toIndex) {
+            Preconditions.checkPositionIndexes(fromIndex, toIndex, size());
+            return new LongArrayBitVector(words, this.start + fromIndex, this.start + toIndex);
+        }
+
+        @Override
+        public Boolean get(int index) {
+            return BitVector.super.get(index);
+        }
+
+        @Override
+        public BooleanIterator iterator() {
+            return new BooleanIterator() {
+                private int index;
+
+                @Override
+                public boolean nextBoolean() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return getAsBoolean(index++);
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return index < size();
+                }
+            };
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BitVector)) {
+                return super.equals(o);
+            }
+            var other = (BitVector) o;
+            if (size() != other.size()) {
+                return false;
+            }
+            for (int i = 0; i < size(); i += 64) {
+                if (getLong(i) != other.getLong(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return super.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "BitVector{size=" + size() + ",bytes=0x" + App.toHexString(bytes()) + "}";
+        }
+    }
 }
@@ -1,35 +1,36 @@
 package lightningtrade.cryptography;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
 import lightningtrade.cryptography.Program.GateData;
 import lightningtrade.cryptography.Program.GateType;
 import lightningtrade.cryptography.Program.OutputScope;
-import securecompute.algebra.BooleanField;
-import securecompute.algebra.Ring;
 import securecompute.algebra.polynomial.BasePolynomialExpression;
 import securecompute.algebra.polynomial.PolynomialExpression;
 import securecompute.circuit.BooleanFunction;
 
-import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.function.Function;
+import java.util.*;
 import java.util.function.IntFunction;
 import java.util.function.IntPredicate;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 import static lightningtrade.cryptography.Program.GateType.*;
 import static lightningtrade.cryptography.Program.OutputScope.KNOWN_TO_NEITHER;
 
 public class BooleanFunctionConverter {
+    // NOTE: Bump this whenever the generated Program would change for the same function and options:
+    private static final int FINGERPRINT_VERSION = 1;
     private final Program.Builder programBuilder = Program.builder();
     private final List<Integer> variableGateIndices = new ArrayList<>();
     private IntFunction<OutputScope> outputScopeFn = i -> KNOWN_TO_NEITHER;
     private IntPredicate isRandomInputFn = i -> false;
+    private boolean shareSubterms;
+    private boolean balancedTrees;
+    private final Map<List<Integer>, Integer> emittedSubterms = new HashMap<>();
+    private final List<Integer> gateDepths = new ArrayList<>();
 
     public BooleanFunctionConverter outputScopeFn(IntFunction<OutputScope> outputScopeFn) {
         this.outputScopeFn = outputScopeFn;
@@ -41,6 +42,59 @@ public class BooleanFunctionConverter {
         return this;
     }
 
+    // Emit each distinct subterm (up to reordering of operands) at most once, across all the parity-check terms:
+    public BooleanFunctionConverter shareSubterms(boolean shareSubterms) {
+        this.shareSubterms = shareSubterms;
+        return this;
+    }
+
+    // Emit n-ary sums and products as depth-minimizing binary trees, instead of left-leaning linear chains:
+    public BooleanFunctionConverter balancedTrees(boolean balancedTrees) {
+        this.balancedTrees = balancedTrees;
+        return this;
+    }
+
+    // Stable content hash of the function together with all the options affecting the output of 'buildProgram':
+    public HashCode fingerprint(BooleanFunction fn) {
+        //noinspection UnstableApiUsage
+        var hasher = Hashing.sha256().newHasher()
+                .putInt(FINGERPRINT_VERSION)
+                .putInt(fn.inputLength())
+                .putInt(fn.auxiliaryLength())
+                .putInt(fn.outputLength())
+                .putBoolean(shareSubterms)
+                .putBoolean(balancedTrees);
+        for (int i = 0; i < fn.inputLength(); i++) {
+            hasher.putBoolean(isRandomInputFn.test(i));
+        }
+        for (int i = 0; i < fn.length(); i++) {
+            hasher.putInt(outputScopeFn.apply(i).ordinal());
+        }
+        hasher.putInt(fn.parityCheckTerms().size());
+        for (var expr : fn.parityCheckTerms()) {
+            putExpression(hasher, expr);
+        }
+        return hasher.hash();
+    }
+
+    private static void putExpression(Hasher hasher, PolynomialExpression<Boolean> expr) {
+        hasher.putInt(expr.expressionType().ordinal());
+        switch (expr.expressionType()) {
+            case CONSTANT:
+                hasher.putBoolean(expr.constantValue());
+                return;
+            case VARIABLE:
+                hasher.putInt(expr.variableIndex());
+                return;
+            case SUM:
+            case PRODUCT:
+                hasher.putInt(expr.subTerms().size());
+                expr.subTerms().forEach(subExpr -> putExpression(hasher, subExpr));
+                return;
+        }
+        throw new AssertionError(expr.expressionType()); // unreachable
+    }
+
     // TODO: Method can't be safely re-invoked - improve this API:
     public Program buildProgram(BooleanFunction fn) {
         for (int i = 0; i < fn.inputLength(); i++) {
@@ -67,24 +121,110 @@ public class BooleanFunctionConverter {
     }
 
     private void addRawGate(GateType type, int... inputOffsets) {
-        programBuilder.addGate(GateData.create(type, outputScopeFn.apply(variableGateIndices.size()), inputOffsets));
+        addGate(GateData.create(type, outputScopeFn.apply(variableGateIndices.size()), inputOffsets));
+    }
+
+    private void addGate(GateData rawGate) {
+        int currentIndex = programBuilder.rawGates().size();
+        int depth = rawGate.inputOffsets().stream().mapToInt(i -> gateDepths.get(currentIndex - i)).max().orElse(0);
+        gateDepths.add(rawGate.inputOffsets().size() == 2 ? depth + 1 : depth);
+        programBuilder.addGate(rawGate);
     }
 
-    // FIXME: In fields of nonzero characteristic, taking partial derivatives is not a valid way to determine linearity in a given variable.
-    private static int checkLinearInLastVariable(PolynomialExpression<Boolean> expr) {
-        int lvIndex = variableIndices(expr).max()
-                .orElseThrow(() -> new IllegalArgumentException("Unexpected constant expression"));
-        var derivative = partialDerivative(expr, lvIndex, BooleanField.INSTANCE);
-        var derivativeAsConstant = asConstant(derivative);
-        Preconditions.checkNotNull(derivativeAsConstant,
+    // Checks that the expression has the form 'x + f', where 'x' is its last variable and 'f' doesn't depend on 'x'.
+    // Since x^2 = x for Boolean variables, the test is that the difference expr[x:=1] - expr[x:=0] is identically one.
+    static int checkLinearInLastVariable(PolynomialExpression<Boolean> expr) {
+        long form = lastVariableForm(expr);
+        int lvIndex = lastVariable(form);
+        Preconditions.checkArgument(lvIndex >= 0, "Unexpected constant expression");
+        Preconditions.checkArgument(gradient(form) != UNKNOWN,
                 "Should be linear with constant gradient in last variable, but got variable gradient for %s", expr);
-        Preconditions.checkArgument(derivativeAsConstant,
+        Preconditions.checkArgument(gradient(form) == ONE,
                 "Should be linear with nonzero gradient in last variable, but got zero gradient for %s", expr);
         return lvIndex;
     }
 
-    private static Boolean asConstant(PolynomialExpression<Boolean> expr) {
-        return expr.evaluate(new NullableRing<>(BooleanField.INSTANCE), i -> null);
+    // Tri-state values of a subexpression, where UNKNOWN means not (provably) constant:
+    private static final int ZERO = 0, ONE = 1, UNKNOWN = 2;
+
+    // To avoid building any intermediate expressions, each subexpression is summarised by a packed long holding its
+    // last variable index 'x', its value, its value at x = 0 and its gradient (difference between values at x = 1 and
+    // x = 0), all as tri-state values, computed bottom up in a single traversal.
+    private static long lastVariableForm(PolynomialExpression<Boolean> expr) {
+        switch (expr.expressionType()) {
+            case CONSTANT:
+                int value = expr.constantValue() ? ONE : ZERO;
+                return form(-1, value, value, ZERO);
+            case VARIABLE:
+                return form(expr.variableIndex(), UNKNOWN, ZERO, ONE);
+            case SUM:
+                return lastVariableForm(expr.subTerms(), true);
+            case PRODUCT:
+                return lastVariableForm(expr.subTerms(), false);
+        }
+        throw new AssertionError(expr.expressionType()); // unreachable
+    }
+
+    private static long lastVariableForm(List<PolynomialExpression<Boolean>> subTerms, boolean isSum) {
+        long form = isSum ? form(-1, ZERO, ZERO, ZERO) : form(-1, ONE, ONE, ZERO);
+        for (var subTerm : subTerms) {
+            long subForm = lastVariableForm(subTerm);
+            int lvIndex = Math.max(lastVariable(form), lastVariable(subForm));
+            form = isSum ? sum(lift(form, lvIndex), lift(subForm, lvIndex)) : product(lift(form, lvIndex), lift(subForm, lvIndex));
+        }
+        return form;
+    }
+
+    private static long form(int lastVariable, int value, int valueAtZero, int gradient) {
+        return (long) (lastVariable + 1) << 8 | value << 4 | valueAtZero << 2 | gradient;
+    }
+
+    private static int lastVariable(long form) {
+        return (int) (form >>> 8) - 1;
+    }
+
+    private static int value(long form) {
+        return (int) form >>> 4 & 3;
+    }
+
+    private static int valueAtZero(long form) {
+        return (int) form >>> 2 & 3;
+    }
+
+    private static int gradient(long form) {
+        return (int) form & 3;
+    }
+
+    // Re-express the form relative to a (not earlier) last variable, which it doesn't depend on if it's a new one:
+    private static long lift(long form, int lastVariable) {
+        return lastVariable == lastVariable(form) ? form : form(lastVariable, value(form), value(form), ZERO);
+    }
+
+    private static long sum(long left, long right) {
+        return form(lastVariable(left),
+                sum(value(left), value(right)),
+                sum(valueAtZero(left), valueAtZero(right)),
+                sum(gradient(left), gradient(right)));
+    }
+
+    private static long product(long left, long right) {
+        // Product rule for finite differences: d(fg) = df.g + f.dg + df.dg
+        int gradient = sum(sum(
+                product(gradient(left), valueAtZero(right)),
+                product(valueAtZero(left), gradient(right))),
+                product(gradient(left), gradient(right)));
+        return form(lastVariable(left),
+                product(value(left), value(right)),
+                product(valueAtZero(left), valueAtZero(right)),
+                gradient);
+    }
+
+    private static int sum(int x, int y) {
+        return x == UNKNOWN || y == UNKNOWN ? UNKNOWN : x ^ y;
+    }
+
+    private static int product(int x, int y) {
+        return x == ZERO || y == ZERO ? ZERO : x == ONE && y == ONE ? ONE : UNKNOWN;
     }
 
     private static PolynomialExpression<Boolean> removeVariable(PolynomialExpression<Boolean> expr, int index) {
@@ -94,19 +234,49 @@ public class BooleanFunctionConverter {
     }
 
     private int emitGates(PolynomialExpression<Boolean> expr) {
+        if (!shareSubterms) {
+            return emitGates(expr, expr.subTerms().stream().mapToInt(this::emitGates).toArray());
+        }
+        int[] subTermIndices = expr.subTerms().stream().mapToInt(this::emitGates).sorted().toArray();
+        // Key on the already-deduplicated operands, together with the current scope (which all emitted gates carry):
+        var key = new ArrayList<Integer>(subTermIndices.length + 3);
+        key.add(expr.expressionType().ordinal());
+        key.add(outputScopeFn.apply(variableGateIndices.size()).ordinal());
+        switch (expr.expressionType()) {
+            case CONSTANT:
+                key.add(expr.constantValue() ? 1 : 0);
+                break;
+            case VARIABLE:
+                key.add(expr.variableIndex());
+                break;
+            default:
+                key.addAll(Ints.asList(subTermIndices));
+        }
+        Integer index = emittedSubterms.get(key);
+        if (index == null) {
+            emittedSubterms.put(key, index = emitGates(expr, subTermIndices));
+        }
+        return index;
+    }
+
+    private int emitGates(PolynomialExpression<Boolean> expr, int[] subTermIndices) {
         int currentIndex = programBuilder.rawGates().size();
         switch (expr.expressionType()) {
             case CONSTANT:
-                programBuilder.addGate(expr.constantValue() ? GateData.TRUE : GateData.FALSE);
+                addGate(expr.constantValue() ? GateData.TRUE : GateData.FALSE);
                 return currentIndex;
             case VARIABLE:
                 int variableGateIndex = variableGateIndices.get(expr.variableIndex());
                 addRawGate(IDENTITY, currentIndex - variableGateIndex);
                 return currentIndex;
             case SUM:
-                return emitChain(GateData.FALSE, XOR, expr.subTerms().stream().mapToInt(this::emitGates).toArray());
+                return balancedTrees
+                        ? emitTree(GateData.FALSE, XOR, subTermIndices)
+                        : emitChain(GateData.FALSE, XOR, subTermIndices);
             case PRODUCT:
-                return emitChain(GateData.TRUE, AND, expr.subTerms().stream().mapToInt(this::emitGates).toArray());
+                return balancedTrees
+                        ? emitTree(GateData.TRUE, AND, subTermIndices)
+                        : emitChain(GateData.TRUE, AND, subTermIndices);
         }
         throw new AssertionError(expr.expressionType()); // unreachable
     }
@@ -114,7 +284,7 @@ public class BooleanFunctionConverter {
     private int emitChain(GateData source, GateType op, int... inputIndices) {
         int currentIndex = programBuilder.rawGates().size();
         if (inputIndices.length == 0) {
-            programBuilder.addGate(source);
+            addGate(source);
             return currentIndex;
         }
         if (inputIndices.length == 1) {
@@ -128,73 +298,20 @@ public class BooleanFunctionConverter {
         return currentIndex;
     }
 
-    private static IntStream variableIndices(PolynomialExpression<?> expr) {
-        switch (expr.expressionType()) {
-            case CONSTANT:
-                return IntStream.empty();
-            case VARIABLE:
-                return IntStream.of(expr.variableIndex());
-            case SUM:
-            case PRODUCT:
-                return expr.subTerms().stream().flatMapToInt(BooleanFunctionConverter::variableIndices);
-        }
-        throw new AssertionError(expr.expressionType()); // unreachable
-    }
-
-    private static <E> PolynomialExpression<E> partialDerivative(PolynomialExpression<E> expr, int index, Ring<E> ring) {
-        switch (expr.expressionType()) {
-            case CONSTANT:
-                return BasePolynomialExpression.constant(ring.zero());
-            case VARIABLE:
-                return BasePolynomialExpression.constant(expr.variableIndex() == index ? ring.one() : ring.zero());
-            case SUM:
-                return BasePolynomialExpression.sum(expr.subTerms().stream()
-                        .map(subExpr -> partialDerivative(subExpr, index, ring))
-                        .collect(ImmutableList.toImmutableList()));
-            case PRODUCT:
-                return BasePolynomialExpression.sum(mapEachInTurn(expr.subTerms(), subExpr -> partialDerivative(subExpr, index, ring))
-                        .map(BasePolynomialExpression::product)
-                        .collect(ImmutableList.toImmutableList()));
+    // Huffman-style: repeatedly combine the two shallowest operands, which minimizes the depth of the resulting tree.
+    private int emitTree(GateData source, GateType op, int... inputIndices) {
+        if (inputIndices.length < 2) {
+            return emitChain(source, op, inputIndices);
         }
-        throw new AssertionError(expr.expressionType()); // unreachable
-    }
-
-    private static <E> Stream<List<E>> mapEachInTurn(List<E> list, Function<E, E> fn) {
-        return IntStream.range(0, list.size()).mapToObj(i -> ImmutableList.<E>builder()
-                .addAll(list.subList(0, i))
-                .add(fn.apply(list.get(i)))
-                .addAll(list.subList(i + 1, list.size()))
-                .build());
-    }
-
-    private static class NullableRing<E> implements Ring<E> {
-        private final Ring<E> baseRing;
-        private final E zero;
-
-        private NullableRing(Ring<E> baseRing) {
-            this.baseRing = baseRing;
-            zero = baseRing.zero();
-        }
-
-        @Override
-        public E fromBigInteger(BigInteger n) {
-            return baseRing.fromBigInteger(n);
-        }
-
-        @Override
-        public E product(E left, E right) {
-            return left != null && right != null ? baseRing.product(left, right) :
-                    zero.equals(left) || zero.equals(right) ? zero : null;
-        }
-
-        @Override
-        public E sum(E left, E right) {
-            return left != null && right != null ? baseRing.sum(left, right) : null;
-        }
-
-        @Override
-        public E negative(E elt) {
-            return baseRing.negative(elt);
+        var queue = new PriorityQueue<Integer>(inputIndices.length,
+                Comparator.<Integer>comparingInt(gateDepths::get).thenComparingInt(i -> i));
+        queue.addAll(Ints.asList(inputIndices));
+        while (queue.size() > 1) {
+            int currentIndex = programBuilder.rawGates().size();
+            int first = queue.remove(), second = queue.remove();
+            addRawGate(op, currentIndex - first, currentIndex - second);
+            queue.add(currentIndex);
         }
+        return queue.remove();
     }
 }
@@ -0,0 +1,265 @@
+package lightningtrade.cryptography;
+
+import com.google.common.primitives.Ints;
+import lightningtrade.cryptography.Program.GateData;
+import lightningtrade.cryptography.Program.GateType;
+import lightningtrade.cryptography.Program.OutputScope;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StreamTokenizer;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static lightningtrade.cryptography.Program.GateType.*;
+import static lightningtrade.cryptography.Program.OutputScope.KNOWN_TO_NEITHER;
+
+// Reader & writer for the 'Bristol Fashion' netlist format: https://homes.esat.kuleuven.be/~nsmart/MPC/
+public class BristolFormat {
+    private BristolFormat() {
+    }
+
+    public static Program read(Reader reader) throws IOException {
+        return read(reader, i -> KNOWN_TO_NEITHER);
+    }
+
+    // Reads in a single pass, holding only the wire-to-gate index map besides the Program itself. The input wires
+    // become INPUT gates, in order, and the wire scope function is applied to the Bristol wire numbers.
+    public static Program read(Reader reader, IntFunction<OutputScope> wireScopeFn) throws IOException {
+        var tokenizer = new Tokenizer(reader);
+        int gateCount = tokenizer.nextInt(), wireCount = tokenizer.nextInt();
+        int inputCount = tokenizer.nextIntSum(), outputCount = tokenizer.nextIntSum();
+        checkFormat(inputCount + outputCount <= wireCount, "More input & output wires than wires in total");
+
+        var builder = Program.builder();
+        int[] wireGateIndices = new int[wireCount];
+        Arrays.fill(wireGateIndices, -1);
+        for (int i = 0; i < inputCount; i++) {
+            wireGateIndices[i] = i;
+            builder.addGate(GateData.create(INPUT, wireScopeFn.apply(i)));
+        }
+        for (int g = 0; g < gateCount; g++) {
+            int nIn = tokenizer.nextInt(), nOut = tokenizer.nextInt();
+            int[] in = new int[nIn], out = new int[nOut];
+            for (int j = 0; j < nIn; j++) {
+                in[j] = tokenizer.nextInt();
+            }
+            for (int j = 0; j < nOut; j++) {
+                out[j] = tokenizer.nextInt();
+            }
+            String op = tokenizer.nextWord();
+            switch (op) {
+                case "XOR":
+                case "AND":
+                    checkArity(op, nIn, nOut, 2, 1);
+                    addGate(builder, wireGateIndices, wireScopeFn, op.equals("XOR") ? XOR : AND, out[0], in[0], in[1]);
+                    break;
+                case "INV":
+                case "EQW":
+                    checkArity(op, nIn, nOut, 1, 1);
+                    addGate(builder, wireGateIndices, wireScopeFn, op.equals("INV") ? NOT : IDENTITY, out[0], in[0]);
+                    break;
+                case "EQ":
+                    checkArity(op, nIn, nOut, 1, 1);
+                    checkFormat(in[0] == 0 || in[0] == 1, "EQ gate must have constant 0 or 1 input");
+                    addGate(builder, wireGateIndices, wireScopeFn, in[0] == 1 ? TRUE : FALSE, out[0]);
+                    break;
+                case "MAND":
+                    checkArity(op, nIn, nOut, nOut * 2, nOut);
+                    for (int j = 0; j < nOut; j++) {
+                        addGate(builder, wireGateIndices, wireScopeFn, AND, out[j], in[j], in[j + nOut]);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported Bristol gate: " + op);
+            }
+        }
+        int[] outputIndices = new int[outputCount];
+        for (int i = 0; i < outputCount; i++) {
+            outputIndices[i] = wireGateIndices[wireCount - outputCount + i];
+            checkFormat(outputIndices[i] >= 0, "Output wire is never assigned");
+        }
+        return builder.outputIndices(Ints.asList(outputIndices)).build();
+    }
+
+    private static void addGate(Program.Builder builder, int[] wireGateIndices, IntFunction<OutputScope> wireScopeFn,
+                                GateType type, int outputWire, int... inputWires) {
+        int currentIndex = builder.rawGates().size();
+        int[] inputOffsets = new int[inputWires.length];
+        for (int i = 0; i < inputWires.length; i++) {
+            checkFormat(inputWires[i] >= 0 && inputWires[i] < wireGateIndices.length, "Wire number out of range");
+            int inputGateIndex = wireGateIndices[inputWires[i]];
+            checkFormat(inputGateIndex >= 0, "Wire used before it is assigned");
+            inputOffsets[i] = currentIndex - inputGateIndex;
+        }
+        checkFormat(outputWire >= 0 && outputWire < wireGateIndices.length, "Wire number out of range");
+        wireGateIndices[outputWire] = currentIndex;
+        builder.addGate(GateData.create(type, wireScopeFn.apply(outputWire), inputOffsets));
+    }
+
+    // Writes a single group of input wires (the INPUT & RANDOM gates in order) and a single group of output wires.
+    // Negated inputs & outputs of gates are written as INV gates, and outputs are copied onto the final wires, unless
+    // they already end up there.
+    public static void write(Program program, Writer writer) throws IOException {
+        List<GateData> rawGates = program.rawGates();
+        List<Integer> outputIndices = program.outputIndices();
+        boolean copyOutputs = !areFinalWires(rawGates, outputIndices);
+        int inputCount = 0, gateCount = copyOutputs ? outputIndices.size() : 0;
+        for (var rawGate : rawGates) {
+            if (isInput(rawGate.type())) {
+                inputCount++;
+            } else {
+                gateCount += bristolGateCount(rawGate.type());
+            }
+        }
+        int[] gateWires = new int[rawGates.size()];
+        var out = new GateWriter(writer, inputCount);
+
+        writer.write(gateCount + " " + (inputCount + gateCount) + "\n");
+        writer.write("1 " + inputCount + "\n");
+        writer.write("1 " + outputIndices.size() + "\n\n");
+        int nextInputWire = 0;
+        for (int i = 0; i < rawGates.size(); i++) {
+            GateData rawGate = rawGates.get(i);
+            GateType type = rawGate.type();
+            int[] in = new int[rawGate.inputOffsets().size()];
+            for (int j = 0; j < in.length; j++) {
+                in[j] = gateWires[i - rawGate.inputOffsets().get(j)];
+            }
+            switch (type) {
+                case INPUT:
+                case RANDOM:
+                    gateWires[i] = nextInputWire++;
+                    break;
+                case FALSE:
+                case TRUE:
+                    gateWires[i] = out.gate("EQ", type == TRUE ? 1 : 0);
+                    break;
+                case IDENTITY:
+                    gateWires[i] = out.gate("EQW", in[0]);
+                    break;
+                case NOT:
+                    gateWires[i] = out.gate("INV", in[0]);
+                    break;
+                case XOR:
+                    gateWires[i] = out.gate("XOR", in[0], in[1]);
+                    break;
+                case XNOR:
+                    gateWires[i] = out.gate("INV", out.gate("XOR", in[0], in[1]));
+                    break;
+                default:
+                    var gate = (Program.BinaryGate) program.gates().get(i);
+                    int x = gate.isFirstInputNegated() ? out.gate("INV", in[0]) : in[0];
+                    int y = gate.isSecondInputNegated() ? out.gate("INV", in[1]) : in[1];
+                    int z = out.gate("AND", x, y);
+                    gateWires[i] = gate.isOutputNegated() ? out.gate("INV", z) : z;
+            }
+        }
+        if (copyOutputs) {
+            for (int outputIndex : outputIndices) {
+                out.gate("EQW", gateWires[outputIndex]);
+            }
+        }
+        writer.flush();
+    }
+
+    private static boolean areFinalWires(List<GateData> rawGates, List<Integer> outputIndices) {
+        int start = rawGates.size() - outputIndices.size();
+        for (int i = 0; i < outputIndices.size(); i++) {
+            GateType type = rawGates.get(start + i).type();
+            if (outputIndices.get(i) != start + i || isInput(type) || bristolGateCount(type) != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInput(GateType type) {
+        return type == INPUT || type == RANDOM;
+    }
+
+    private static int bristolGateCount(GateType type) {
+        switch (type) {
+            case XNOR:
+            case AND_NOT:
+            case NOT_AND:
+            case NAND:
+                return 2;
+            case NOR:
+            case OR_NOT:
+            case NOT_OR:
+                return 3;
+            case OR:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    private static void checkArity(String op, int nIn, int nOut, int expectedNIn, int expectedNOut) {
+        if (nIn != expectedNIn || nOut != expectedNOut) {
+            throw new IllegalArgumentException("Bad arity " + nIn + ":" + nOut + " for Bristol gate: " + op);
+        }
+    }
+
+    private static void checkFormat(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    private static class GateWriter {
+        private final Writer writer;
+        private int nextWire;
+
+        GateWriter(Writer writer, int firstWire) {
+            this.writer = writer;
+            this.nextWire = firstWire;
+        }
+
+        int gate(String op, int... inputs) throws IOException {
+            var sb = new StringBuilder().append(inputs.length).append(" 1");
+            for (int input : inputs) {
+                sb.append(' ').append(input);
+            }
+            writer.write(sb.append(' ').append(nextWire).append(' ').append(op).append('\n').toString());
+            return nextWire++;
+        }
+    }
+
+    private static class Tokenizer {
+        private final StreamTokenizer tokenizer;
+
+        Tokenizer(Reader reader) {
+            tokenizer = new StreamTokenizer(reader);
+            tokenizer.resetSyntax();
+            tokenizer.wordChars('!', '~');
+            tokenizer.whitespaceChars(0, ' ');
+        }
+
+        String nextWord() throws IOException {
+            checkFormat(tokenizer.nextToken() == StreamTokenizer.TT_WORD, "Unexpected end of Bristol circuit");
+            return tokenizer.sval;
+        }
+
+        int nextInt() throws IOException {
+            String word = nextWord();
+            try {
+                return Integer.parseInt(word);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected an integer but got: " + word, e);
+            }
+        }
+
+        // Reads a count 'n' followed by 'n' wire group sizes and returns their sum:
+        int nextIntSum() throws IOException {
+            int n = nextInt(), sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += nextInt();
+            }
+            return sum;
+        }
+    }
+}
@@ -1,42 +1,190 @@
 package lightningtrade.cryptography;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Preconditions;
 
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.util.AbstractList;
 import java.util.List;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
+// Garbled bits stored contiguously as pairs of (big-endian) longs, so that each 16-byte label is not a separate object.
+// The storage is either an on-heap array or a slice of an off-heap LabelArena.
 public class GarbledBitVector extends AbstractList<GarbledBit> {
-    private final List<GarbledBit> garbledBits;
+    private static final int LABEL_BYTES = 16;
+    private static final GarbledBitVector EMPTY = new GarbledBitVector(LongBuffer.allocate(0), 0, 0);
 
-    private GarbledBitVector(List<GarbledBit> garbledBits) {
-        this.garbledBits = garbledBits;
+    private final LongBuffer words;
+    private final int start, end;
+
+    GarbledBitVector(LongBuffer words, int start, int end) {
+        this.words = words;
+        this.start = start;
+        this.end = end;
     }
 
     public GarbledBitVector concat(GarbledBitVector other) {
-        throw new UnsupportedOperationException();
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        var result = LongBuffer.allocate((size() + other.size()) * 2);
+        result.put(words()).put(other.words()).clear();
+        return new GarbledBitVector(result, 0, size() + other.size());
+    }
+
+    public GarbledBitVector xor(GarbledBitVector other) {
+        Preconditions.checkArgument(size() == other.size(), "Size mismatch: %s vs %s", size(), other.size());
+        long[] result = new long[size() * 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = words.get(start * 2 + i) ^ other.words.get(other.start * 2 + i);
+        }
+        return new GarbledBitVector(LongBuffer.wrap(result), 0, size());
+    }
+
+    // Returns the vector of pairs (x_0, y_0, x_1, y_1, ...):
+    static GarbledBitVector interleave(GarbledBitVector x, GarbledBitVector y) {
+        Preconditions.checkArgument(x.size() == y.size(), "Size mismatch: %s vs %s", x.size(), y.size());
+        long[] result = new long[x.size() * 4];
+        for (int i = 0; i < x.size(); i++) {
+            result[i * 4] = x.words.get((x.start + i) * 2);
+            result[i * 4 + 1] = x.words.get((x.start + i) * 2 + 1);
+            result[i * 4 + 2] = y.words.get((y.start + i) * 2);
+            result[i * 4 + 3] = y.words.get((y.start + i) * 2 + 1);
+        }
+        return new GarbledBitVector(LongBuffer.wrap(result), 0, x.size() * 2);
+    }
+
+    // Picks one garbled bit out of each consecutive pair, according to the given choices:
+    GarbledBitVector selectFromPairs(BitVector choices) {
+        Preconditions.checkArgument(size() == choices.size() * 2, "Size mismatch: %s vs %s", size(), choices.size() * 2);
+        long[] result = new long[choices.size() * 2];
+        for (int i = 0; i < choices.size(); i++) {
+            int index = start + i * 2 + (choices.getAsBoolean(i) ? 1 : 0);
+            result[i * 2] = words.get(index * 2);
+            result[i * 2 + 1] = words.get(index * 2 + 1);
+        }
+        return new GarbledBitVector(LongBuffer.wrap(result), 0, choices.size());
+    }
+
+    public BitVector selectBits() {
+        var builder = BitVector.builder(size());
+        for (int i = start; i < end; i++) {
+            builder.add(words.get(i * 2) < 0);
+        }
+        return builder.build();
+    }
+
+    public byte[] bytes() {
+        var buffer = ByteBuffer.allocate(size() * LABEL_BYTES);
+        buffer.asLongBuffer().put(words());
+        return buffer.array();
+    }
+
+    public static GarbledBitVector copyFrom(byte[] bytes) {
+        Preconditions.checkArgument(bytes.length % LABEL_BYTES == 0,
+                "Expected a multiple of %s bytes, but got %s", LABEL_BYTES, bytes.length);
+        var words = LongBuffer.allocate(bytes.length / 8);
+        words.put(ByteBuffer.wrap(bytes).asLongBuffer()).clear();
+        return new GarbledBitVector(words, 0, bytes.length / LABEL_BYTES);
     }
 
     public static GarbledBitVector zeros(int length) {
-        throw new UnsupportedOperationException();
+        return length == 0 ? EMPTY : new GarbledBitVector(LongBuffer.allocate(length * 2), 0, length);
     }
 
     public static GarbledBitVector copyFrom(List<GarbledBit> garbledBits) {
-        return new GarbledBitVector(ImmutableList.copyOf(garbledBits));
+        if (garbledBits instanceof GarbledBitVector) {
+            return (GarbledBitVector) garbledBits;
+        }
+        return zeros(garbledBits.size()).fill(garbledBits);
+    }
+
+    // Overwrites this vector, which must be freshly allocated (and not shared), with the given garbled bits:
+    GarbledBitVector fill(List<GarbledBit> garbledBits) {
+        Preconditions.checkArgument(size() == garbledBits.size(), "Size mismatch: %s vs %s", size(), garbledBits.size());
+        var buffer = ByteBuffer.allocate(LABEL_BYTES);
+        for (int i = 0; i < garbledBits.size(); i++) {
+            buffer.clear();
+            buffer.put(garbledBits.get(i).bytes()).flip();
+            words.put((start + i) * 2, buffer.getLong());
+            words.put((start + i) * 2 + 1, buffer.getLong());
+        }
+        return this;
+    }
+
+    // Overwrites a single garbled bit, of a vector which must not be shared:
+    void put(int index, GarbledBit garbledBit) {
+        var buffer = ByteBuffer.wrap(garbledBit.bytes());
+        putWords(index, buffer.getLong(), buffer.getLong());
+    }
+
+    // Word-level access to single garbled bits, as their high & low longs, which (unlike 'get' & 'put') allocates
+    // nothing, for the per-gate hot paths of garbling & evaluation:
+    long highWord(int index) {
+        Preconditions.checkElementIndex(index, size());
+        return words.get((start + index) * 2);
+    }
+
+    long lowWord(int index) {
+        Preconditions.checkElementIndex(index, size());
+        return words.get((start + index) * 2 + 1);
+    }
+
+    boolean selectBit(int index) {
+        return highWord(index) < 0;
+    }
+
+    // Overwrites a single garbled bit, of a vector which must not be shared:
+    void putWords(int index, long high, long low) {
+        Preconditions.checkElementIndex(index, size());
+        words.put((start + index) * 2, high);
+        words.put((start + index) * 2 + 1, low);
+    }
+
+    // The 16 bytes of a single garbled bit, without the intermediate GarbledBit of 'get':
+    byte[] bytes(int index) {
+        return ByteBuffer.allocate(LABEL_BYTES).putLong(highWord(index)).putLong(lowWord(index)).array();
     }
 
     public static Collector<GarbledBit, ?, GarbledBitVector> toGarbledBitVector() {
-        return Collectors.collectingAndThen(ImmutableList.toImmutableList(), GarbledBitVector::copyFrom);
+        return Collectors.collectingAndThen(Collectors.toList(), GarbledBitVector::copyFrom);
     }
 
     @Override
     public GarbledBit get(int index) {
-        return garbledBits.get(index);
+        return new GarbledBit(bytes(index));
     }
 
     @Override
     public int size() {
-        return garbledBits.size();
+        return end - start;
+    }
+
+    @Override
+    public GarbledBitVector subList(int fromIndex, int toIndex) {
+        Preconditions.checkPositionIndexes(fromIndex, toIndex, size());
+        return new GarbledBitVector(words, start + fromIndex, start + toIndex);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof GarbledBitVector)) {
+            return super.equals(o);
+        }
+        var other = (GarbledBitVector) o;
+        return words().equals(other.words());
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    private LongBuffer words() {
+        return words.duplicate().limit(end * 2).position(start * 2);
     }
 }
@@ -2,8 +2,6 @@ package lightningtrade.cryptography;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Streams;
 import lightningtrade.cryptography.Program.BinaryGate;
 import lightningtrade.cryptography.Program.Gate;
 import lightningtrade.cryptography.Program.GateType;
@@ -16,46 +14,63 @@ import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.function.BooleanSupplier;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import static lightningtrade.cryptography.GarbledBit.zero;
 
 public class GarbledCircuit {
     private final Program program;
-    private final List<BitVector> garbledGateDataList;
+    // The 128-bit ciphertexts of every half gate, in order of evaluation, followed by the select bit of each gate output
+    // known to the evaluator:
+    private final GarbledBitVector ciphertexts;
+    private final BitVector selectBits;
     private final Cipher cipher;
+    @Nullable
+    private transient final LabelArena labelArena;
     // TODO: Should we make 'inputs' part of 'WorkingState' (making it a lazy GarbledBitVector in the Generator case)?
     private transient GarbledBitVector inputs;
-    private transient BitVector currentGarbledGateData;
-    private transient final WorkingState workingState = new WorkingState();
+    private transient int ciphertextIndex;
+    private transient WorkingState workingState;
 
-    private GarbledCircuit(Program program, List<BitVector> garbledGateDataList, Cipher cipher) {
+    private GarbledCircuit(Program program, GarbledBitVector ciphertexts, BitVector selectBits, Cipher cipher,
+                           @Nullable LabelArena labelArena) {
         this.program = program;
-        this.garbledGateDataList = garbledGateDataList;
+        this.ciphertexts = ciphertexts;
+        this.selectBits = selectBits;
         this.cipher = cipher;
+        this.labelArena = labelArena;
     }
 
     public Result run(GarbledBitVector inputs) {
         this.inputs = inputs;
+        ciphertextIndex = 0;
+        workingState = new WorkingState(program.gates().size(), labelArena);
+        var selectBitIterator = selectBits.iterator();
         program.gates().forEach(gate -> {
-            currentGarbledGateData = this.garbledGateDataList.get(gate.index());
-            GarbledBit output = evaluate(gate);
-            put(workingState.knownGarbledBits, gate, output);
+            evaluateInto(gate);
             if (gate.isOutputKnownToEvaluator()) {
-                put(workingState.knownBits, gate, output.selectBit() ^ currentGarbledGateData.get(0));
+                workingState.putBit(gate, workingState.selectBit(gate) ^ selectBitIterator.nextBoolean());
             }
         });
-        var outputs = program.ungarbledOutputIndices().stream()
-                .map(workingState.knownBits::get)
-                .collect(BitVector.toBitVector());
+        var outputs = BitVector.builder(program.ungarbledOutputIndices().size());
+        for (int index : program.ungarbledOutputIndices()) {
+            outputs.add(workingState.bit(index));
+        }
         var garbledOutputs = program.outputIndices().stream()
-                .map(workingState.knownGarbledBits::get)
+                .map(workingState::garbledBit)
                 .collect(GarbledBitVector.toGarbledBitVector());
-        return new AutoValue_GarbledCircuit_Result(outputs, garbledOutputs);
+        return new AutoValue_GarbledCircuit_Result(outputs.build(), garbledOutputs);
+    }
+
+    @VisibleForTesting
+    long garbledSizeBits() {
+        return ciphertexts.size() * 128L + selectBits.size();
     }
 
     public Result lazyRun(GarbledBitVector inputs) {
@@ -63,6 +78,23 @@ public class GarbledCircuit {
         throw new UnsupportedOperationException();
     }
 
+    // Evaluates the gate into the working state, with the (free) XOR & identity gates done word by word:
+    private void evaluateInto(Gate gate) {
+        switch (gate.type()) {
+            case IDENTITY:
+            case NOT:
+                workingState.putXor(gate, ((UnaryGate) gate).input(), null, 0, 0);
+                return;
+            case XOR:
+            case XNOR:
+                var binaryGate = (BinaryGate) gate;
+                workingState.putXor(gate, binaryGate.firstInput(), binaryGate.secondInput(), 0, 0);
+                return;
+            default:
+                workingState.putGarbledBit(gate, evaluate(gate));
+        }
+    }
+
     private GarbledBit evaluate(Gate gate) {
         BinaryGate binaryGate;
         Gate input1, input2;
@@ -74,16 +106,8 @@ public class GarbledCircuit {
                 if (gate.isOutputKnownToGenerator()) {
                     return zero();
                 }
-                return inputs.get(program.inputIndices().get(gate.index()));
-            case IDENTITY:
-            case NOT:
-                return get(workingState.knownGarbledBits, ((UnaryGate) gate).input());
-            case XOR:
-            case XNOR:
-                binaryGate = (BinaryGate) gate;
-                input1 = binaryGate.firstInput();
-                input2 = binaryGate.secondInput();
-                return get(workingState.knownGarbledBits, input1).xor(get(workingState.knownGarbledBits, input2));
+                // The garbled inputs are ordered as the (ascending) indices of the gates they are for:
+                return inputs.get(Collections.binarySearch(program.inputIndices(), gate.index()));
             default:
                 binaryGate = (BinaryGate) gate;
                 input1 = binaryGate.firstInput();
@@ -103,10 +127,10 @@ public class GarbledCircuit {
 
     private GarbledBit evaluateHalfAndGate_GeneratorKnowsInput(BinaryGate gate) {
         boolean conditionOnFirstInput = gate.firstInput().isOutputKnownToGenerator();
-        var key = get(workingState.knownGarbledBits, conditionOnFirstInput ? gate.secondInput() : gate.firstInput());
+        var key = workingState.garbledBit(conditionOnFirstInput ? gate.secondInput() : gate.firstInput());
+        var storedCiphertext = nextCiphertext();
         // FIXME: We should treat 'key.selectBit()' as secret - make constant-time:
-        var ciphertext = key.selectBit() ? BitVector.copyFrom(new byte[16]) : currentGarbledGateData.subList(0, 128);
-        currentGarbledGateData = currentGarbledGateData.subList(128, currentGarbledGateData.size());
+        var ciphertext = key.selectBit() ? BitVector.copyFrom(new byte[16]) : storedCiphertext;
         return cipher.decrypt(key, ciphertext, gate.index(), gate.subIndex());
     }
 
@@ -115,16 +139,15 @@ public class GarbledCircuit {
         boolean isErasure;
         GarbledBit key, otherInput;
         if (conditionOnFirstInput) {
-            isErasure = get(workingState.knownBits, gate.firstInput()) == gate.isFirstInputNegated();
-            key = get(workingState.knownGarbledBits, gate.firstInput());
-            otherInput = get(workingState.knownGarbledBits, gate.secondInput());
+            isErasure = workingState.bit(gate.firstInput()) == gate.isFirstInputNegated();
+            key = workingState.garbledBit(gate.firstInput());
+            otherInput = workingState.garbledBit(gate.secondInput());
         } else {
-            isErasure = get(workingState.knownBits, gate.secondInput()) == gate.isSecondInputNegated();
-            key = get(workingState.knownGarbledBits, gate.secondInput());
-            otherInput = get(workingState.knownGarbledBits, gate.firstInput());
+            isErasure = workingState.bit(gate.secondInput()) == gate.isSecondInputNegated();
+            key = workingState.garbledBit(gate.secondInput());
+            otherInput = workingState.garbledBit(gate.firstInput());
         }
-        var ciphertext = currentGarbledGateData.subList(0, 128);
-        currentGarbledGateData = currentGarbledGateData.subList(128, currentGarbledGateData.size());
+        var ciphertext = nextCiphertext();
         // FIXME: We should treat 'isErasure' as secret - make constant-time:
         return isErasure
                 ? cipher.decrypt(key, BitVector.copyFrom(new byte[16]), gate.index(), gate.subIndex())
@@ -132,41 +155,55 @@ public class GarbledCircuit {
     }
 
     private GarbledBit evaluateFullAndGate(BinaryGate gate) {
-        workingState.knownBits.put(-2, get(workingState.knownGarbledBits, gate.secondInput()).selectBit());
-        gate.subGates().forEach(subGate -> put(workingState.knownGarbledBits, subGate, evaluate(subGate)));
-        return get(workingState.knownGarbledBits, gate);
-    }
-
-    private static int index(Gate gate) {
-        return gate.subIndex() > 0 ? -gate.subIndex() : gate.index();
-    }
-
-    private static <V> V get(Map<Integer, V> map, Gate gate) {
-        return map.get(index(gate));
+        // Sub-gate 2 is the second input masked by the select bit of its zero label, so is that of its actual label:
+        workingState.putSubGateBit(2, workingState.selectBit(gate.secondInput()));
+        gate.subGates().forEach(this::evaluateInto);
+        return workingState.garbledBit(gate);
     }
 
-    private static <V> void put(Map<Integer, V> map, Gate gate, V value) {
-        map.put(index(gate), value);
+    private BitVector nextCiphertext() {
+        return BitVector.copyFrom(ciphertexts.bytes(ciphertextIndex++));
     }
 
     public static class Generator {
         private final Program program;
         private final GarbledBit secretOffset;
+        private final long secretOffsetHigh, secretOffsetLow;
         private final Cipher cipher;
         private transient final BooleanSupplier inputSource;
         private transient final PushbackBooleanSupplier randomSource;
         private transient final Supplier<GarbledBit> garbledBitSource;
-        private transient final WorkingState workingState = new WorkingState();
+        @Nullable
+        private transient final LabelArena labelArena;
+        private transient final WorkingState workingState;
+        private transient final GarbledBitVector ciphertexts;
+        private transient int ciphertextCount;
 
         public Generator(Program program, GarbledBit secretOffset, Cipher cipher, BitVector inputs,
                          @Nullable SecureRandom randomRnd, @Nullable SecureRandom garbledBitRnd) {
+            this(program, secretOffset, cipher, inputs, randomRnd, garbledBitRnd, null);
+        }
+
+        // The gate labels, ciphertexts & garbled input vectors are allocated from the given arena (if any), for bulk
+        // precomputation runs:
+        public Generator(Program program, GarbledBit secretOffset, Cipher cipher, BitVector inputs,
+                         @Nullable SecureRandom randomRnd, @Nullable SecureRandom garbledBitRnd,
+                         @Nullable LabelArena labelArena) {
             checkArgument(secretOffset.selectBit(), "Select bit of secret offset must be set");
             this.program = program;
             this.secretOffset = secretOffset;
+            var secretOffsetWords = ByteBuffer.wrap(secretOffset.bytes());
+            this.secretOffsetHigh = secretOffsetWords.getLong();
+            this.secretOffsetLow = secretOffsetWords.getLong();
             this.cipher = cipher;
             this.inputSource = inputs.iterator()::nextBoolean;
             this.randomSource = new PushbackBooleanSupplier(() -> checkNotNull(randomRnd).nextBoolean());
             this.garbledBitSource = () -> nextGarbledBit(checkNotNull(garbledBitRnd));
+            this.labelArena = labelArena;
+            this.workingState = new WorkingState(program.gates().size(), labelArena);
+            // NOTE: The analyzer mirrors the case analysis of 'garbleGate', so gives the exact number of ciphertexts:
+            var report = ProgramAnalyzer.analyze(program);
+            this.ciphertexts = allocate(Math.toIntExact(report.halfGateCount() + report.fullGateCount() * 2), labelArena);
         }
 
         private static GarbledBit nextGarbledBit(SecureRandom rnd) {
@@ -176,18 +213,21 @@ public class GarbledCircuit {
         }
 
         public GarbledCircuit generate() {
-            //noinspection UnstableApiUsage
-            var builder = ImmutableList.<BitVector>builderWithExpectedSize(program.gates().size());
+            var selectBits = BitVector.builder();
             program.gates().forEach(gate -> {
-                var ciphertext = garbleGate(gate);
+                garbleGate(gate);
                 if (gate.isOutputKnownToEvaluator()) {
                     // TODO: Avoid writing the select bit in the case that the output is deducible (by the evaluator) from the inputs.
-                    var garbledZero = get(workingState.knownGarbledBits, gate);
-                    ciphertext = ciphertext.concat(BitVector.singleton(garbledZero.selectBit()));
+                    selectBits.add(workingState.selectBit(gate));
                 }
-                builder.add(ciphertext);
             });
-            return new GarbledCircuit(program, builder.build(), cipher);
+            checkState(ciphertextCount == ciphertexts.size(), "Garbled %s ciphertexts, but expected %s",
+                    ciphertextCount, ciphertexts.size());
+            return new GarbledCircuit(program, ciphertexts, selectBits.build(), cipher, labelArena);
+        }
+
+        private void putCiphertext(BitVector ciphertext) {
+            ciphertexts.put(ciphertextCount++, new GarbledBit(ciphertext.bytes()));
         }
 
         private GarbledBit secretOffsetTimes(boolean x) {
@@ -196,10 +236,7 @@ public class GarbledCircuit {
             return x ? secretOffset : zero;
         }
 
-        private BitVector garbleGate(Gate gate) {
-            var garbledBits = workingState.knownGarbledBits;
-            var bits = workingState.knownBits;
-            var outputOffset = gate.isOutputNegated() ? secretOffset : zero();
+        private void garbleGate(Gate gate) {
             BinaryGate binaryGate;
             UnaryGate unaryGate;
             Gate input, input1, input2;
@@ -209,131 +246,135 @@ public class GarbledCircuit {
                 case RANDOM:
                     if (gate.isOutputKnownToGenerator()) {
                         boolean outputBit = (gate.type() == GateType.INPUT ? inputSource : randomSource).getAsBoolean();
-                        put(garbledBits, gate, secretOffsetTimes(outputBit));
-                        put(bits, gate, outputBit);
+                        workingState.putGarbledBit(gate, secretOffsetTimes(outputBit));
+                        workingState.putBit(gate, outputBit);
                     } else {
-                        put(garbledBits, gate, garbledBitSource.get());
+                        workingState.putGarbledBit(gate, garbledBitSource.get());
                     }
-                    return BitVector.empty();
+                    return;
                 case FALSE:
                 case TRUE:
-                    put(garbledBits, gate, outputOffset);
-                    put(bits, gate, outputOffset.selectBit());
-                    return BitVector.empty();
+                    var outputOffset = gate.isOutputNegated() ? secretOffset : zero();
+                    workingState.putGarbledBit(gate, outputOffset);
+                    workingState.putBit(gate, outputOffset.selectBit());
+                    return;
                 case IDENTITY:
                 case NOT:
                     unaryGate = (UnaryGate) gate;
                     input = unaryGate.input();
-                    put(garbledBits, gate, get(garbledBits, input).xor(outputOffset));
+                    putXor(gate, input, null);
                     if (gate.isOutputKnownToGenerator()) {
-                        put(bits, gate, unaryGate.apply(get(bits, input)));
+                        workingState.putBit(gate, unaryGate.apply(workingState.bit(input)));
                     }
-                    return BitVector.empty();
+                    return;
                 case XOR:
                 case XNOR:
                     binaryGate = (BinaryGate) gate;
                     input1 = binaryGate.firstInput();
                     input2 = binaryGate.secondInput();
-                    put(garbledBits, gate, get(garbledBits, input1).xor(get(garbledBits, input2)).xor(outputOffset));
+                    putXor(gate, input1, input2);
                     if (gate.isOutputKnownToGenerator()) {
-                        put(bits, gate, binaryGate.apply(get(bits, input1), get(bits, input2)));
+                        workingState.putBit(gate, binaryGate.apply(workingState.bit(input1), workingState.bit(input2)));
                     }
-                    return BitVector.empty();
+                    return;
                 default:
                     binaryGate = (BinaryGate) gate;
                     input1 = binaryGate.firstInput();
                     input2 = binaryGate.secondInput();
                     if (gate.isOutputKnownToGenerator()) {
-                        put(bits, gate, binaryGate.apply(get(bits, input1), get(bits, input2)));
+                        workingState.putBit(gate, binaryGate.apply(workingState.bit(input1), workingState.bit(input2)));
                         if (gate.isOutputKnownToEvaluator()) {
-                            return garbleTrivialAndGate(binaryGate);
+                            garbleTrivialAndGate(binaryGate);
+                            return;
                         }
                     }
                     if (input1.isOutputKnownToGenerator() || input2.isOutputKnownToGenerator()) {
-                        return garbleHalfAndGate_GeneratorKnownInput(binaryGate);
+                        garbleHalfAndGate_GeneratorKnownInput(binaryGate);
+                        return;
                     }
                     if (input1.isOutputKnownToEvaluator() || input2.isOutputKnownToEvaluator()) {
-                        return garbleHalfAndGate_EvaluatorKnownInput(binaryGate);
+                        garbleHalfAndGate_EvaluatorKnownInput(binaryGate);
+                        return;
                     }
-                    return garbleFullAndGate(binaryGate);
+                    garbleFullAndGate(binaryGate);
             }
         }
 
-        private BitVector garbleTrivialAndGate(BinaryGate gate) {
-            boolean x = get(workingState.knownBits, gate.firstInput());
-            boolean y = get(workingState.knownBits, gate.secondInput());
-            put(workingState.knownGarbledBits, gate, secretOffsetTimes(gate.apply(x, y)));
-            return BitVector.empty();
+        // The free XOR (or identity) of the inputs, plus the secret offset if the output is negated, word by word:
+        private void putXor(Gate gate, Gate input1, @Nullable Gate input2) {
+            boolean isNegated = gate.isOutputNegated();
+            workingState.putXor(gate, input1, input2, isNegated ? secretOffsetHigh : 0, isNegated ? secretOffsetLow : 0);
         }
 
-        private BitVector garbleHalfAndGate_GeneratorKnownInput(BinaryGate gate) {
+        private void garbleTrivialAndGate(BinaryGate gate) {
+            boolean x = workingState.bit(gate.firstInput());
+            boolean y = workingState.bit(gate.secondInput());
+            workingState.putGarbledBit(gate, secretOffsetTimes(gate.apply(x, y)));
+        }
+
+        private void garbleHalfAndGate_GeneratorKnownInput(BinaryGate gate) {
             boolean z0, z1;
             GarbledBit key0;
             int index = gate.index(), subIndex = gate.subIndex();
             boolean conditionOnFirstInput = gate.firstInput().isOutputKnownToGenerator();
             if (conditionOnFirstInput) {
-                boolean x = get(workingState.knownBits, gate.firstInput());
+                boolean x = workingState.bit(gate.firstInput());
                 z0 = gate.apply(x, false);
                 z1 = gate.apply(x, true);
-                key0 = get(workingState.knownGarbledBits, gate.secondInput());
+                key0 = workingState.garbledBit(gate.secondInput());
             } else {
-                boolean y = get(workingState.knownBits, gate.secondInput());
+                boolean y = workingState.bit(gate.secondInput());
                 z0 = gate.apply(false, y);
                 z1 = gate.apply(true, y);
-                key0 = get(workingState.knownGarbledBits, gate.firstInput());
+                key0 = workingState.garbledBit(gate.firstInput());
             }
             GarbledBit key1 = key0.xor(secretOffset);
             GarbledBit plaintext;
-            BitVector ciphertext;
             // FIXME: Secret-dependent branch:
             if (key0.selectBit()) {
                 plaintext = cipher.decrypt(key0, BitVector.copyFrom(new byte[16]), index, subIndex).xor(secretOffsetTimes(z0 ^ z1));
-                ciphertext = cipher.encrypt(key1, plaintext, index, subIndex);
-                put(workingState.knownGarbledBits, gate, plaintext.xor(secretOffsetTimes(z1)));
+                putCiphertext(cipher.encrypt(key1, plaintext, index, subIndex));
+                workingState.putGarbledBit(gate, plaintext.xor(secretOffsetTimes(z1)));
             } else {
                 plaintext = cipher.decrypt(key1, BitVector.copyFrom(new byte[16]), index, subIndex).xor(secretOffsetTimes(z0 ^ z1));
-                ciphertext = cipher.encrypt(key0, plaintext, index, subIndex);
-                put(workingState.knownGarbledBits, gate, plaintext.xor(secretOffsetTimes(z0)));
+                putCiphertext(cipher.encrypt(key0, plaintext, index, subIndex));
+                workingState.putGarbledBit(gate, plaintext.xor(secretOffsetTimes(z0)));
             }
-            return ciphertext;
         }
 
-        private BitVector garbleHalfAndGate_EvaluatorKnownInput(BinaryGate gate) {
+        private void garbleHalfAndGate_EvaluatorKnownInput(BinaryGate gate) {
             GarbledBit firstInputOffset = gate.isFirstInputNegated() ? secretOffset : zero();
             GarbledBit secondInputOffset = gate.isSecondInputNegated() ? secretOffset : zero();
             GarbledBit outputOffset = gate.isOutputNegated() ? secretOffset : zero();
             GarbledBit keyZ, keyI, newGarbledZero, plaintext;
-            BitVector ciphertext;
             int index = gate.index(), subIndex = gate.subIndex();
             boolean conditionOnFirstInput = gate.firstInput().isOutputKnownToEvaluator();
             // TODO: Deduplicate:
             if (conditionOnFirstInput) {
-                keyZ = get(workingState.knownGarbledBits, gate.firstInput()).xor(firstInputOffset);
+                keyZ = workingState.garbledBit(gate.firstInput()).xor(firstInputOffset);
                 keyI = keyZ.xor(secretOffset);
                 newGarbledZero = cipher.decrypt(keyZ, BitVector.copyFrom(new byte[16]), index, subIndex).xor(outputOffset);
-                plaintext = newGarbledZero.xor(get(workingState.knownGarbledBits, gate.secondInput())).xor(secondInputOffset);
-                ciphertext = cipher.encrypt(keyI, plaintext, index, subIndex);
-                put(workingState.knownGarbledBits, gate, newGarbledZero);
+                plaintext = newGarbledZero.xor(workingState.garbledBit(gate.secondInput())).xor(secondInputOffset);
+                putCiphertext(cipher.encrypt(keyI, plaintext, index, subIndex));
+                workingState.putGarbledBit(gate, newGarbledZero);
             } else {
-                keyZ = get(workingState.knownGarbledBits, gate.secondInput()).xor(secondInputOffset);
+                keyZ = workingState.garbledBit(gate.secondInput()).xor(secondInputOffset);
                 keyI = keyZ.xor(secretOffset);
                 newGarbledZero = cipher.decrypt(keyZ, BitVector.copyFrom(new byte[16]), index, subIndex).xor(outputOffset);
-                plaintext = newGarbledZero.xor(get(workingState.knownGarbledBits, gate.firstInput())).xor(firstInputOffset);
-                ciphertext = cipher.encrypt(keyI, plaintext, index, subIndex);
-                put(workingState.knownGarbledBits, gate, newGarbledZero);
+                plaintext = newGarbledZero.xor(workingState.garbledBit(gate.firstInput())).xor(firstInputOffset);
+                putCiphertext(cipher.encrypt(keyI, plaintext, index, subIndex));
+                workingState.putGarbledBit(gate, newGarbledZero);
             }
-            return ciphertext;
         }
 
-        private BitVector garbleFullAndGate(BinaryGate gate) {
-            randomSource.pushBack(get(workingState.knownGarbledBits, gate.secondInput()).selectBit());
-            // NOTE: Stateful map function:
-            return gate.subGates().stream().map(this::garbleGate).reduce(BitVector.empty(), BitVector::concat);
+        private void garbleFullAndGate(BinaryGate gate) {
+            randomSource.pushBack(workingState.selectBit(gate.secondInput()));
+            gate.subGates().forEach(this::garbleGate);
         }
 
         public GarbledBit garbleInput(boolean input, int index) {
             // TODO: Make sure this Generator is initialised, to populate 'workingState'.
-            return workingState.knownGarbledBits.get(program.inputIndices().get(index)).xor(secretOffsetTimes(input));
+            return workingState.garbledBit(program.inputIndices().get(index)).xor(secretOffsetTimes(input));
         }
 
         public ObliviousFunction<Boolean, GarbledBit> garbleInputFn(int index) {
@@ -341,10 +382,16 @@ public class GarbledCircuit {
         }
 
         public ObliviousFunction<BitVector, GarbledBitVector> garbleInputsFn(int startIndex, int endIndex) {
-            var obliviousFns = IntStream.range(startIndex, endIndex)
-                    .mapToObj(this::garbleInputFn)
-                    .collect(Collectors.toUnmodifiableList());
-            return ObliviousFunction.product(v -> v, GarbledBitVector::copyFrom, Boolean.class, obliviousFns);
+            Function<List<GarbledBit>, GarbledBitVector> toVector = labelArena != null
+                    ? labelArena::copyOf
+                    : GarbledBitVector::copyFrom;
+            var garbledZeros = IntStream.range(startIndex, endIndex)
+                    .mapToObj(i -> garbleInput(false, i))
+                    .collect(Collectors.collectingAndThen(Collectors.toList(), toVector));
+            var garbledOnes = IntStream.range(startIndex, endIndex)
+                    .mapToObj(i -> garbleInput(true, i))
+                    .collect(Collectors.collectingAndThen(Collectors.toList(), toVector));
+            return ObliviousFunction.packed(garbledZeros, garbledOnes);
         }
 
         public GarbledBitVector garbleInputs(BitVector inputs, int startIndex) {
@@ -352,12 +399,12 @@ public class GarbledCircuit {
         }
 
         public ObliviousResponse<GarbledBitVector> garbleInputs(ObliviousRequest<BitVector> inputs, int startIndex) {
-            int size = ((ObliviousRequest.Compound<?>) inputs).subRequests().size();
+            int size = ((ObliviousRequest.Compound<?>) inputs).size();
             return garbleInputsFn(startIndex, startIndex + size).apply(inputs);
         }
 
         public Boolean ungarbleOutput(GarbledBit garbledOutput, int index) {
-            var garbledZero = workingState.knownGarbledBits.get(program.outputIndices().get(index));
+            var garbledZero = workingState.garbledBit(program.outputIndices().get(index));
             // FIXME: This should probably be constant-time:
             return garbledOutput.equals(garbledZero) ? Boolean.FALSE :
                     garbledOutput.equals(garbledZero.xor(secretOffset)) ? Boolean.TRUE : null;
@@ -372,9 +419,11 @@ public class GarbledCircuit {
         }
 
         public BitVector ungarbleOutputs(GarbledBitVector garbledOutputs) {
-            //noinspection UnstableApiUsage
-            return Streams.mapWithIndex(garbledOutputs.stream(), this::ungarbleOutputAsBoolean)
-                    .collect(BitVector.toBitVector());
+            var builder = BitVector.builder(garbledOutputs.size());
+            for (int i = 0; i < garbledOutputs.size(); i++) {
+                builder.add(ungarbleOutputAsBoolean(garbledOutputs.get(i), i));
+            }
+            return builder.build();
         }
     }
 
@@ -385,9 +434,72 @@ public class GarbledCircuit {
         public abstract GarbledBitVector outputs();
     }
 
+    private static GarbledBitVector allocate(int length, @Nullable LabelArena labelArena) {
+        return labelArena != null ? labelArena.allocate(length) : GarbledBitVector.zeros(length);
+    }
+
+    // The labels (and bits, where known) of the gates, indexed by gate, followed by those of the sub-gates of the
+    // current full AND gate. The labels are allocated from the arena, if any:
     private static class WorkingState {
-        final Map<Integer, GarbledBit> knownGarbledBits = new HashMap<>();
-        final Map<Integer, Boolean> knownBits = new HashMap<>();
+        private static final int SUB_GATE_COUNT = 5;
+
+        private final int gateCount;
+        private final GarbledBitVector garbledBits;
+        private final BitSet bits = new BitSet();
+
+        WorkingState(int gateCount, @Nullable LabelArena labelArena) {
+            this.gateCount = gateCount;
+            this.garbledBits = allocate(gateCount + SUB_GATE_COUNT, labelArena);
+        }
+
+        private int slot(Gate gate) {
+            return gate.subIndex() > 0 ? gateCount + gate.subIndex() : gate.index();
+        }
+
+        GarbledBit garbledBit(int index) {
+            return garbledBits.get(index);
+        }
+
+        GarbledBit garbledBit(Gate gate) {
+            return garbledBits.get(slot(gate));
+        }
+
+        void putGarbledBit(Gate gate, GarbledBit garbledBit) {
+            garbledBits.put(slot(gate), garbledBit);
+        }
+
+        boolean selectBit(Gate gate) {
+            return garbledBits.selectBit(slot(gate));
+        }
+
+        // Sets the label of the gate to the XOR of those of its inputs (the second of which may be absent) & the given
+        // offset, without allocating:
+        void putXor(Gate gate, Gate input1, @Nullable Gate input2, long offsetHigh, long offsetLow) {
+            int slot1 = slot(input1);
+            long high = garbledBits.highWord(slot1) ^ offsetHigh, low = garbledBits.lowWord(slot1) ^ offsetLow;
+            if (input2 != null) {
+                int slot2 = slot(input2);
+                high ^= garbledBits.highWord(slot2);
+                low ^= garbledBits.lowWord(slot2);
+            }
+            garbledBits.putWords(slot(gate), high, low);
+        }
+
+        boolean bit(int index) {
+            return bits.get(index);
+        }
+
+        boolean bit(Gate gate) {
+            return bits.get(slot(gate));
+        }
+
+        void putBit(Gate gate, boolean bit) {
+            bits.set(slot(gate), bit);
+        }
+
+        void putSubGateBit(int subIndex, boolean bit) {
+            bits.set(gateCount + subIndex, bit);
+        }
     }
 
     private static class PushbackBooleanSupplier implements BooleanSupplier {
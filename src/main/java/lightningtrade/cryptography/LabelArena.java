@@ -0,0 +1,85 @@
+package lightningtrade.cryptography;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Bump allocator for garbled bit vectors in off-heap (direct) memory, so that bulk precomputation runs holding the
+// labels of many circuits at once don't put pressure on the GC. Everything allocated is freed at once by 'reset', which
+// keeps the chunks to reuse for the next batch, or by 'close', which drops them. Vectors allocated from the arena must
+// not be used after either.
+//
+// NOTE: Not thread-safe.
+public class LabelArena implements AutoCloseable {
+    private static final int DEFAULT_CHUNK_LABELS = 1 << 16;
+
+    private final int chunkLabels;
+    private final List<LongBuffer> chunks = new ArrayList<>();
+    private int chunkIndex, chunkUsedLabels;
+    private boolean closed;
+
+    public LabelArena() {
+        this(DEFAULT_CHUNK_LABELS);
+    }
+
+    public LabelArena(int chunkLabels) {
+        Preconditions.checkArgument(chunkLabels > 0, "Chunk size must be positive: %s", chunkLabels);
+        this.chunkLabels = chunkLabels;
+    }
+
+    // Returns a vector of zero labels:
+    public GarbledBitVector allocate(int length) {
+        Preconditions.checkState(!closed, "Arena is closed");
+        Preconditions.checkArgument(length >= 0, "Negative length: %s", length);
+        if (length > chunkLabels) {
+            // Oversized requests get a chunk of their own, which is not reused after a reset:
+            var words = newChunk(length);
+            chunks.add(chunkIndex, words);
+            chunkIndex++;
+            return new GarbledBitVector(words, 0, length);
+        }
+        if (chunkIndex < chunks.size() && chunkUsedLabels + length > chunks.get(chunkIndex).capacity() / 2) {
+            chunkIndex++;
+            chunkUsedLabels = 0;
+        }
+        if (chunkIndex == chunks.size()) {
+            chunks.add(newChunk(chunkLabels));
+        }
+        var words = chunks.get(chunkIndex);
+        int start = chunkUsedLabels;
+        chunkUsedLabels += length;
+        for (int i = start * 2; i < chunkUsedLabels * 2; i++) {
+            words.put(i, 0);
+        }
+        return new GarbledBitVector(words, start, chunkUsedLabels);
+    }
+
+    public GarbledBitVector copyOf(List<GarbledBit> garbledBits) {
+        return allocate(garbledBits.size()).fill(garbledBits);
+    }
+
+    public long allocatedBytes() {
+        return chunks.stream().mapToLong(chunk -> chunk.capacity() * 8L).sum();
+    }
+
+    public void reset() {
+        Preconditions.checkState(!closed, "Arena is closed");
+        chunks.removeIf(chunk -> chunk.capacity() != chunkLabels * 2);
+        chunkIndex = chunkUsedLabels = 0;
+    }
+
+    @Override
+    public void close() {
+        // Direct buffers are only released once unreachable, so drop every reference to them:
+        chunks.clear();
+        closed = true;
+    }
+
+    private static LongBuffer newChunk(int labels) {
+        return ByteBuffer.allocateDirect(labels * 16).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+}
@@ -5,6 +5,9 @@ import com.google.common.collect.Streams;
 import java.util.List;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 public interface ObliviousFunction<T, R> extends Function<T, R> {
     ObliviousResponse<R> apply(ObliviousRequest<T> t);
@@ -36,6 +39,34 @@ public interface ObliviousFunction<T, R> extends Function<T, R> {
         };
     }
 
+    // Bulk equivalent of the product of simple functions choosing between the given pairs of garbled bits, which binds
+    // all the responses to a packed request at once, without creating any per-bit objects:
+    static ObliviousFunction<BitVector, GarbledBitVector> packed(GarbledBitVector responses0,
+                                                                 GarbledBitVector responses1) {
+        var responsePairs = GarbledBitVector.interleave(responses0, responses1);
+        return new ObliviousFunction<>() {
+            @Override
+            public ObliviousResponse<GarbledBitVector> apply(ObliviousRequest<BitVector> t) {
+                var request = (ObliviousRequest.Compound<BitVector>) t;
+                checkArgument(request.size() == responses0.size(), "Request size mismatch: %s vs %s",
+                        request.size(), responses0.size());
+                if (request instanceof ObliviousRequest.Packed) {
+                    return ((ObliviousRequest.Packed) request).bindResponses(responses0, responses1);
+                }
+                var subResponses = IntStream.range(0, request.size())
+                        .mapToObj(i -> ((ObliviousRequest.Simple<Boolean>) request.subRequests().get(i).cast(Boolean.class))
+                                .bindResponses(b -> (b ? responses1 : responses0).get(i)))
+                        .collect(Collectors.toUnmodifiableList());
+                return ObliviousResponse.product(GarbledBitVector::copyFrom, subResponses);
+            }
+
+            @Override
+            public GarbledBitVector apply(BitVector choices) {
+                return responsePairs.selectFromPairs(choices);
+            }
+        };
+    }
+
     static <T, R> ObliviousFunction<T, R> liftSimple(Function<T, R> fn) {
         return new ObliviousFunction<T, R>() {
             @Override
@@ -26,6 +26,15 @@ public abstract class ObliviousRequest<T> {
         }
 
         public abstract List<ObliviousRequest<?>> subRequests();
+
+        public int size() {
+            return subRequests().size();
+        }
+    }
+
+    // A compound request of one-out-of-two choices of garbled bits, which can bind all its responses at once:
+    interface Packed {
+        ObliviousResponse<GarbledBitVector> bindResponses(GarbledBitVector responses0, GarbledBitVector responses1);
     }
 
     public static abstract class Simple<T> extends ObliviousRequest<T> {
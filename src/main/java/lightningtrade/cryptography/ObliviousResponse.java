@@ -1,10 +1,92 @@
 package lightningtrade.cryptography;
 
+import com.google.common.collect.ImmutableList;
+
 import java.util.List;
 import java.util.function.Function;
 
 public abstract class ObliviousResponse<T> {
+    ObliviousResponse() {
+    }
+
     public static <T, Ts> ObliviousResponse<Ts> product(Function<List<T>, Ts> toResponseFn, List<ObliviousResponse<T>> subResponses) {
-        throw new UnsupportedOperationException();
+        return new Compound<>(toResponseFn, subResponses);
+    }
+
+    static final class Compound<T, Ts> extends ObliviousResponse<Ts> {
+        private final Function<List<T>, Ts> toResponseFn;
+        private final List<ObliviousResponse<T>> subResponses;
+
+        private Compound(Function<List<T>, Ts> toResponseFn, List<ObliviousResponse<T>> subResponses) {
+            this.toResponseFn = toResponseFn;
+            this.subResponses = ImmutableList.copyOf(subResponses);
+        }
+
+        List<ObliviousResponse<T>> subResponses() {
+            return subResponses;
+        }
+
+        Ts combine(Function<? super ObliviousResponse<T>, ? extends T> decryptFn) {
+            var builder = ImmutableList.<T>builderWithExpectedSize(subResponses.size());
+            subResponses.forEach(subResponse -> builder.add(decryptFn.apply(subResponse)));
+            return toResponseFn.apply(builder.build());
+        }
+    }
+
+    // The pairs of responses to the choices of a batch of (extended) oblivious transfers, encrypted as for 'Simple'
+    // below and stored contiguously as fixed-size records of two garbled bits each:
+    static final class Packed<T> extends ObliviousResponse<T> {
+        private final long batchIndex;
+        private final GarbledBitVector records;
+        private final Function<GarbledBitVector, T> toResponseFn;
+
+        Packed(long batchIndex, GarbledBitVector records, Function<GarbledBitVector, T> toResponseFn) {
+            this.batchIndex = batchIndex;
+            this.records = records;
+            this.toResponseFn = toResponseFn;
+        }
+
+        long batchIndex() {
+            return batchIndex;
+        }
+
+        int size() {
+            return records.size() / 2;
+        }
+
+        GarbledBitVector records() {
+            return records;
+        }
+
+        T toResponse(GarbledBitVector decryptedResponses) {
+            return toResponseFn.apply(decryptedResponses);
+        }
+    }
+
+    // The pair of responses to the two choices of a single (extended) oblivious transfer, each encrypted so that the
+    // receiver can only decrypt the one it chose:
+    static final class Simple<T> extends ObliviousResponse<T> {
+        private final long batchIndex;
+        private final int index;
+        private final BitVector ciphertext0, ciphertext1;
+
+        Simple(long batchIndex, int index, BitVector ciphertext0, BitVector ciphertext1) {
+            this.batchIndex = batchIndex;
+            this.index = index;
+            this.ciphertext0 = ciphertext0;
+            this.ciphertext1 = ciphertext1;
+        }
+
+        long batchIndex() {
+            return batchIndex;
+        }
+
+        int index() {
+            return index;
+        }
+
+        BitVector ciphertext(boolean choice) {
+            return choice ? ciphertext1 : ciphertext0;
+        }
     }
 }
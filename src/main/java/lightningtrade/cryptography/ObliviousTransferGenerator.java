@@ -1,12 +1,597 @@
 package lightningtrade.cryptography;
 
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+// The receiving side of a session of one-out-of-two oblivious transfers of garbled bits, using IKNP OT extension
+// (Ishai, Kilian, Nissim & Petrank, 2003) over 128 base OTs (Chou & Orlandi's 'simplest OT', in the 2048-bit MODP group
+// of RFC 3526). After a one-off base OT handshake with the sending side:
+//
+//   receiver.baseTransferKey() -> sender.respondToBaseTransfers(..) -> receiver.completeBaseTransfers(..)
+//
+// any number of choice bits may be transferred using only symmetric crypto: the receiver encrypts its choices into a
+// request, the sender binds the request to its half of the session before answering it (with an ObliviousFunction),
+// then the receiver decrypts the response.
+//
+// Random OTs may also be precomputed ahead of time, by passing 'receiver.precompute(..)' to 'sender.precompute(..)', into
+// a bounded pool on each side. Requests are then served from the pools while they last, with the request reduced to a
+// derandomization message (the choices XORed with the random ones) and the online work to XORing pads.
+//
+// NOTE: Secure against semi-honest parties only. Not thread-safe.
 public class ObliviousTransferGenerator<T, U> {
+    static final int SECURITY_PARAMETER = 128;
+    public static final int DEFAULT_POOL_CAPACITY = 1 << 16;
+    // Largest batch accepted from the wire by default, bounding the memory a peer's request header can make us allocate:
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1 << 20;
+    private static final BigInteger P = new BigInteger("" +
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A08798E3404DD" +
+            "EF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED" +
+            "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F" +
+            "83655D23DCA3AD961C62F356208552BB9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B" +
+            "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF6955817183995497CEA956AE515D2261898FA0510" +
+            "15728E5A8AACAA68FFFFFFFFFFFFFFFF", 16);
+    private static final BigInteger G = BigInteger.TWO;
+    private static final int EXPONENT_BITS = 256;
+
+    private final Class<T> requestClass;
+    private final Function<T, BitVector> toChoicesFn;
+    private final SecureRandom rnd;
+    private final GarbledCircuit.Cipher cipher = newHashCipher();
+    private final Map<Long, Batch> pendingBatches = new HashMap<>();
+    private final Pool pool;
+    private BigInteger baseSecret, baseTransferKey;
+    private byte[][] seeds0, seeds1;
+    private long nextBatchIndex;
+
+    public ObliviousTransferGenerator(Class<T> requestClass, Function<T, BitVector> toChoicesFn, SecureRandom rnd) {
+        this(requestClass, toChoicesFn, rnd, DEFAULT_POOL_CAPACITY);
+    }
+
+    public ObliviousTransferGenerator(Class<T> requestClass, Function<T, BitVector> toChoicesFn, SecureRandom rnd,
+                                      int poolCapacity) {
+        this.requestClass = requestClass;
+        this.toChoicesFn = toChoicesFn;
+        this.rnd = rnd;
+        this.pool = new Pool(poolCapacity);
+    }
+
+    public BigInteger baseTransferKey() {
+        if (baseTransferKey == null) {
+            baseSecret = randomExponent(rnd);
+            baseTransferKey = G.modPow(baseSecret, P);
+        }
+        return baseTransferKey;
+    }
+
+    public void completeBaseTransfers(List<BigInteger> senderKeys) {
+        checkState(baseSecret != null && seeds0 == null, "Base transfers not started or already complete");
+        checkArgument(senderKeys.size() == SECURITY_PARAMETER, "Expected %s sender keys", SECURITY_PARAMETER);
+        // NOTE: (senderKey / A)^a = senderKey^a / A^a, so one modPow per transfer suffices, with A^a inverted just once:
+        var inverseSharedKey = baseTransferKey.modPow(baseSecret, P).modInverse(P);
+        var seeds0 = new byte[SECURITY_PARAMETER][];
+        var seeds1 = new byte[SECURITY_PARAMETER][];
+        for (int i = 0; i < SECURITY_PARAMETER; i++) {
+            var senderKey = checkGroupElement(senderKeys.get(i));
+            var key0 = senderKey.modPow(baseSecret, P);
+            seeds0[i] = seed(i, key0);
+            seeds1[i] = seed(i, key0.multiply(inverseSharedKey).mod(P));
+        }
+        this.seeds0 = seeds0;
+        this.seeds1 = seeds1;
+    }
+
+    public int pooledCount() {
+        return pool.size;
+    }
+
+    public Precomputation precompute(int count) {
+        checkState(seeds0 != null, "Base transfers not complete");
+        checkArgument(count >= 0 && pool.size + count <= pool.capacity, "Pool capacity exceeded");
+        var randomBytes = new byte[(count + 7) / 8];
+        rnd.nextBytes(randomBytes);
+        var choices = BitVector.copyFrom(randomBytes).subList(0, count);
+        long batchIndex = nextBatchIndex++;
+        var uColumns = new byte[SECURITY_PARAMETER][];
+        var pads = extend(choices, batchIndex, uColumns);
+        pool.add(new Chunk(choices, pads, null));
+        return new Precomputation(batchIndex, count, uColumns);
+    }
 
     public ObliviousRequest<T> encrypt(T request) {
-        throw new UnsupportedOperationException();
+        var choices = toChoicesFn.apply(request);
+        int size = choices.size();
+        long batchIndex = nextBatchIndex++;
+        if (size > 0 && pool.size >= size) {
+            long poolPosition = pool.position;
+            var chunk = pool.take(size);
+            pendingBatches.put(batchIndex, new Batch(choices, chunk.pads0));
+            var corrections = choices.xor(chunk.choices);
+            return new ExtensionRequest<>(requestClass, batchIndex, size, null, corrections, poolPosition, null);
+        }
+        checkState(seeds0 != null, "Base transfers not complete");
+        var uColumns = new byte[SECURITY_PARAMETER][];
+        pendingBatches.put(batchIndex, new Batch(choices, extend(choices, batchIndex, uColumns)));
+        return new ExtensionRequest<>(requestClass, batchIndex, size, uColumns, null, -1, null);
+    }
+
+    // Fills in the columns 'u' of the (IKNP) message to the sender and returns the receiver's pads:
+    private GarbledBitVector extend(BitVector choices, long batchIndex, byte[][] uColumns) {
+        int size = choices.size();
+        byte[] choiceBytes = Arrays.copyOf(choices.bytes(), (size + 7) / 8);
+        var tColumns = new byte[SECURITY_PARAMETER][];
+        for (int i = 0; i < SECURITY_PARAMETER; i++) {
+            tColumns[i] = expand(seeds0[i], batchIndex, size);
+            uColumns[i] = xor(xor(tColumns[i], expand(seeds1[i], batchIndex, size)), choiceBytes);
+        }
+        return pads(cipher, transpose(tColumns, size), null, batchIndex);
     }
 
     public U decrypt(ObliviousResponse<U> obliviousResponse) {
-        throw new UnsupportedOperationException();
+        var decryptedBatchIndices = new HashSet<Long>();
+        U result = decrypt(obliviousResponse, decryptedBatchIndices);
+        pendingBatches.keySet().removeAll(decryptedBatchIndices);
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> V decrypt(ObliviousResponse<V> response, Set<Long> decryptedBatchIndices) {
+        if (response instanceof ObliviousResponse.Compound) {
+            return ((ObliviousResponse.Compound<?, V>) response).combine(r -> decrypt(r, decryptedBatchIndices));
+        }
+        if (response instanceof ObliviousResponse.Packed) {
+            var packedResponse = (ObliviousResponse.Packed<V>) response;
+            var batch = pendingBatches.get(packedResponse.batchIndex());
+            checkArgument(batch != null, "No pending request for batch %s", packedResponse.batchIndex());
+            checkArgument(packedResponse.size() == batch.pads.size(), "Response size mismatch");
+            decryptedBatchIndices.add(packedResponse.batchIndex());
+            return packedResponse.toResponse(packedResponse.records().selectFromPairs(batch.choices).xor(batch.pads));
+        }
+        var simpleResponse = (ObliviousResponse.Simple<V>) response;
+        var batch = pendingBatches.get(simpleResponse.batchIndex());
+        checkArgument(batch != null, "No pending request for batch %s", simpleResponse.batchIndex());
+        int index = simpleResponse.index();
+        checkArgument(index < batch.pads.size(), "Response index out of range: %s", index);
+        decryptedBatchIndices.add(simpleResponse.batchIndex());
+        var ciphertext = simpleResponse.ciphertext(batch.choices.getAsBoolean(index));
+        return (V) new GarbledBit(ciphertext.bytes()).xor(batch.pads.get(index));
+    }
+
+    // The sending side of the session:
+    public static class Sender {
+        private final SecureRandom rnd;
+        private final GarbledCircuit.Cipher cipher = newHashCipher();
+        private final Set<Long> boundBatchIndices = new HashSet<>();
+        private final Pool pool;
+        private GarbledBit offset;
+        private byte[][] seeds;
+
+        public Sender(SecureRandom rnd) {
+            this(rnd, DEFAULT_POOL_CAPACITY);
+        }
+
+        public Sender(SecureRandom rnd, int poolCapacity) {
+            this.rnd = rnd;
+            this.pool = new Pool(poolCapacity);
+        }
+
+        public List<BigInteger> respondToBaseTransfers(BigInteger baseTransferKey) {
+            checkState(seeds == null, "Base transfers already complete");
+            checkGroupElement(baseTransferKey);
+            var offsetBytes = new byte[SECURITY_PARAMETER / 8];
+            rnd.nextBytes(offsetBytes);
+            var seeds = new byte[SECURITY_PARAMETER][];
+            var builder = ImmutableList.<BigInteger>builderWithExpectedSize(SECURITY_PARAMETER);
+            for (int i = 0; i < SECURITY_PARAMETER; i++) {
+                var secret = randomExponent(rnd);
+                var key = G.modPow(secret, P);
+                builder.add(bit(offsetBytes, i) ? key.multiply(baseTransferKey).mod(P) : key);
+                seeds[i] = seed(i, baseTransferKey.modPow(secret, P));
+            }
+            this.offset = new GarbledBit(offsetBytes);
+            this.seeds = seeds;
+            return builder.build();
+        }
+
+        public int pooledCount() {
+            return pool.size;
+        }
+
+        public void precompute(Precomputation precomputation) {
+            checkArgument(pool.size + precomputation.size <= pool.capacity, "Pool capacity exceeded");
+            var rows = extend(precomputation.batchIndex, precomputation.size, precomputation.uColumns);
+            var pads0 = pads(cipher, rows, null, precomputation.batchIndex);
+            var pads1 = pads(cipher, rows, offset, precomputation.batchIndex);
+            pool.add(new Chunk(null, pads0, pads1));
+        }
+
+        public <T> ObliviousRequest<T> bind(ObliviousRequest<T> request) {
+            checkArgument(request instanceof ExtensionRequest, "Not an extended oblivious transfer request");
+            var extensionRequest = (ExtensionRequest<T>) request;
+            long batchIndex = extensionRequest.batchIndex;
+            Binding binding;
+            if (extensionRequest.corrections != null) {
+                checkArgument(extensionRequest.poolPosition == pool.position,
+                        "Precomputed transfers consumed out of order");
+                checkArgument(extensionRequest.size <= pool.size, "Too few precomputed transfers");
+                checkArgument(boundBatchIndices.add(batchIndex), "Request batch %s already bound", batchIndex);
+                var chunk = pool.take(extensionRequest.size);
+                binding = new Binding(chunk.pads0, chunk.pads1, extensionRequest.corrections);
+            } else {
+                var rows = extend(batchIndex, extensionRequest.size, extensionRequest.uColumns);
+                binding = new Binding(pads(cipher, rows, null, batchIndex), pads(cipher, rows, offset, batchIndex),
+                        null);
+            }
+            return new ExtensionRequest<>(extensionRequest.requestClass, batchIndex, extensionRequest.size,
+                    extensionRequest.uColumns, extensionRequest.corrections, extensionRequest.poolPosition, binding);
+        }
+
+        // Returns the rows 'q' of the IKNP matrix, each equal to the receiver's row 't' XOR (choice * offset):
+        private GarbledBit[] extend(long batchIndex, int size, byte[][] uColumns) {
+            checkState(seeds != null, "Base transfers not complete");
+            checkArgument(boundBatchIndices.add(batchIndex), "Request batch %s already bound", batchIndex);
+            var offsetBytes = offset.bytes();
+            var qColumns = new byte[SECURITY_PARAMETER][];
+            for (int i = 0; i < SECURITY_PARAMETER; i++) {
+                qColumns[i] = expand(seeds[i], batchIndex, size);
+                if (bit(offsetBytes, i)) {
+                    qColumns[i] = xor(qColumns[i], uColumns[i]);
+                }
+            }
+            return transpose(qColumns, size);
+        }
+    }
+
+    // The message from the receiver to the sender which precomputes a batch of random OTs:
+    public static final class Precomputation {
+        private final long batchIndex;
+        private final int size;
+        private final byte[][] uColumns;
+
+        private Precomputation(long batchIndex, int size, byte[][] uColumns) {
+            this.batchIndex = batchIndex;
+            this.size = size;
+            this.uColumns = uColumns;
+        }
+    }
+
+    private static class Batch {
+        final BitVector choices;
+        final GarbledBitVector pads;
+
+        Batch(BitVector choices, GarbledBitVector pads) {
+            this.choices = choices;
+            this.pads = pads;
+        }
+    }
+
+    // The sender's pads for each choice, before any correction of the choices (when consuming precomputed OTs):
+    private static class Binding {
+        final GarbledBitVector pads0, pads1;
+        @Nullable
+        final BitVector corrections;
+
+        Binding(GarbledBitVector pads0, GarbledBitVector pads1, @Nullable BitVector corrections) {
+            this.pads0 = pads0;
+            this.pads1 = pads1;
+            this.corrections = corrections;
+        }
+
+        GarbledBit pad(int index, boolean choice) {
+            boolean correctedChoice = corrections != null ? corrections.getAsBoolean(index) ^ choice : choice;
+            return correctedChoice ? pads1.get(index) : pads0.get(index);
+        }
+
+        GarbledBitVector pads(boolean choice) {
+            if (corrections == null) {
+                return choice ? pads1 : pads0;
+            }
+            var correctedPads0 = GarbledBitVector.interleave(pads0, pads1).selectFromPairs(corrections);
+            return choice ? correctedPads0.xor(pads0).xor(pads1) : correctedPads0;
+        }
+    }
+
+    // A run of precomputed random OTs: the receiver holds the random choices & chosen pads (as 'pads0'), while the
+    // sender holds both pads:
+    private static class Chunk {
+        @Nullable
+        final BitVector choices;
+        final GarbledBitVector pads0;
+        @Nullable
+        final GarbledBitVector pads1;
+
+        Chunk(@Nullable BitVector choices, GarbledBitVector pads0, @Nullable GarbledBitVector pads1) {
+            this.choices = choices;
+            this.pads0 = pads0;
+            this.pads1 = pads1;
+        }
+
+        int size() {
+            return pads0.size();
+        }
+
+        Chunk subList(int fromIndex, int toIndex) {
+            return new Chunk(choices != null ? choices.subList(fromIndex, toIndex) : null,
+                    pads0.subList(fromIndex, toIndex),
+                    pads1 != null ? pads1.subList(fromIndex, toIndex) : null);
+        }
+
+        Chunk concat(Chunk other) {
+            return new Chunk(choices != null ? choices.concat(other.choices) : null,
+                    pads0.concat(other.pads0),
+                    pads1 != null ? pads1.concat(other.pads1) : null);
+        }
+    }
+
+    // Bounded FIFO of precomputed random OTs. Both sides consume them in the same order, tracked by 'position':
+    private static class Pool {
+        final int capacity;
+        final Deque<Chunk> chunks = new ArrayDeque<>();
+        int size;
+        long position;
+
+        Pool(int capacity) {
+            checkArgument(capacity >= 0, "Negative pool capacity: %s", capacity);
+            this.capacity = capacity;
+        }
+
+        void add(Chunk chunk) {
+            chunks.add(chunk);
+            size += chunk.size();
+        }
+
+        Chunk take(int count) {
+            Chunk result = null;
+            for (int remaining = count; remaining > 0; ) {
+                var chunk = chunks.remove();
+                if (chunk.size() > remaining) {
+                    chunks.addFirst(chunk.subList(remaining, chunk.size()));
+                    chunk = chunk.subList(0, remaining);
+                }
+                result = result != null ? result.concat(chunk) : chunk;
+                remaining -= chunk.size();
+            }
+            size -= count;
+            position += count;
+            return result;
+        }
+    }
+
+    private static class ExtensionRequest<T> extends ObliviousRequest.Compound<T> implements ObliviousRequest.Packed {
+        final Class<T> requestClass;
+        final long batchIndex;
+        final int size;
+        // Either the IKNP matrix columns 'u', or the choice corrections for precomputed OTs & their pool position:
+        @Nullable
+        final byte[][] uColumns;
+        @Nullable
+        final BitVector corrections;
+        final long poolPosition;
+        @Nullable
+        final Binding binding;
+        private final Supplier<List<ObliviousRequest<?>>> subRequests;
+
+        ExtensionRequest(Class<T> requestClass, long batchIndex, int size, @Nullable byte[][] uColumns,
+                         @Nullable BitVector corrections, long poolPosition, @Nullable Binding binding) {
+            super(requestClass);
+            this.requestClass = requestClass;
+            this.batchIndex = batchIndex;
+            this.size = size;
+            this.uColumns = uColumns;
+            this.corrections = corrections;
+            this.poolPosition = poolPosition;
+            this.binding = binding;
+            this.subRequests = Suppliers.memoize(() -> IntStream.range(0, size)
+                    .mapToObj(ExtensionSubRequest::new)
+                    .collect(Collectors.toUnmodifiableList()));
+        }
+
+        @Override
+        public List<ObliviousRequest<?>> subRequests() {
+            return subRequests.get();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public ObliviousResponse<GarbledBitVector> bindResponses(GarbledBitVector responses0,
+                                                                 GarbledBitVector responses1) {
+            checkState(binding != null, "Request has not been bound to an oblivious transfer sender");
+            checkArgument(responses0.size() == size && responses1.size() == size, "Expected %s responses", size);
+            var ciphertexts0 = responses0.xor(binding.pads(false));
+            var ciphertexts1 = responses1.xor(binding.pads(true));
+            return new ObliviousResponse.Packed<>(batchIndex, GarbledBitVector.interleave(ciphertexts0, ciphertexts1),
+                    v -> v);
+        }
+
+        private class ExtensionSubRequest extends ObliviousRequest.Simple<Boolean> {
+            private final int index;
+
+            ExtensionSubRequest(int index) {
+                super(Boolean.class);
+                this.index = index;
+            }
+
+            @Override
+            public List<Boolean> choices() {
+                return List.of(false, true);
+            }
+
+            @Override
+            public <R> ObliviousResponse<R> bindResponses(Iterable<R> responses) {
+                checkState(binding != null, "Request has not been bound to an oblivious transfer sender");
+                var responseList = ImmutableList.copyOf(responses);
+                checkArgument(responseList.size() == 2, "Expected a response for each choice");
+                checkArgument(responseList.stream().allMatch(r -> r instanceof GarbledBit),
+                        "Only garbled bits may be transferred obliviously");
+                var ciphertext0 = ((GarbledBit) responseList.get(0)).xor(binding.pad(index, false));
+                var ciphertext1 = ((GarbledBit) responseList.get(1)).xor(binding.pad(index, true));
+                return new ObliviousResponse.Simple<>(batchIndex, index,
+                        BitVector.copyFrom(ciphertext0.bytes()), BitVector.copyFrom(ciphertext1.bytes()));
+            }
+        }
+    }
+
+    // Wire encoding of a request, unbound from any sender: a header, followed by either the IKNP matrix columns 'u' or
+    // the choice corrections (for precomputed OTs), packed into bytes.
+    public static byte[] encodeRequest(ObliviousRequest<?> request) {
+        checkArgument(request instanceof ExtensionRequest, "Not an extended oblivious transfer request");
+        var extensionRequest = (ExtensionRequest<?>) request;
+        int columnBytes = (extensionRequest.size + 7) / 8;
+        boolean isPrecomputed = extensionRequest.corrections != null;
+        var buffer = ByteBuffer.allocate(21 + columnBytes * (isPrecomputed ? 1 : SECURITY_PARAMETER))
+                .put((byte) (isPrecomputed ? 1 : 0))
+                .putLong(extensionRequest.batchIndex)
+                .putInt(extensionRequest.size)
+                .putLong(extensionRequest.poolPosition);
+        if (isPrecomputed) {
+            buffer.put(extensionRequest.corrections.bytes(), 0, columnBytes);
+        } else {
+            Arrays.stream(extensionRequest.uColumns).forEach(buffer::put);
+        }
+        return buffer.array();
+    }
+
+    public static <T> ObliviousRequest<T> decodeRequest(byte[] bytes, Class<T> requestClass) {
+        return decodeRequest(bytes, requestClass, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public static <T> ObliviousRequest<T> decodeRequest(byte[] bytes, Class<T> requestClass, int maxBatchSize) {
+        var buffer = ByteBuffer.wrap(bytes);
+        try {
+            boolean isPrecomputed = buffer.get() != 0;
+            long batchIndex = buffer.getLong();
+            int size = buffer.getInt();
+            long poolPosition = buffer.getLong();
+            checkArgument(size >= 0, "Negative size: %s", size);
+            checkArgument(size <= maxBatchSize, "Batch size %s exceeds maximum %s", size, maxBatchSize);
+            // NOTE: Computed in long arithmetic, so that no header can make the expected length wrap around:
+            long columnBytes = (size + 7L) / 8;
+            checkArgument(buffer.remaining() == columnBytes * (isPrecomputed ? 1 : SECURITY_PARAMETER),
+                    "Bad request length: %s", bytes.length);
+            if (isPrecomputed) {
+                var corrections = new byte[(int) columnBytes];
+                buffer.get(corrections);
+                return new ExtensionRequest<>(requestClass, batchIndex, size, null,
+                        BitVector.copyFrom(corrections).subList(0, size), poolPosition, null);
+            }
+            var uColumns = new byte[SECURITY_PARAMETER][(int) columnBytes];
+            Arrays.stream(uColumns).forEach(buffer::get);
+            return new ExtensionRequest<>(requestClass, batchIndex, size, uColumns, null, poolPosition, null);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated request", e);
+        }
+    }
+
+    // Wire encoding of a packed response: the batch index & size, followed by a 32-byte record for each transfer.
+    public static byte[] encodeResponse(ObliviousResponse<?> response) {
+        checkArgument(response instanceof ObliviousResponse.Packed, "Not a packed response");
+        var packedResponse = (ObliviousResponse.Packed<?>) response;
+        return ByteBuffer.allocate(12 + packedResponse.size() * 32)
+                .putLong(packedResponse.batchIndex())
+                .putInt(packedResponse.size())
+                .put(packedResponse.records().bytes())
+                .array();
+    }
+
+    public static ObliviousResponse<GarbledBitVector> decodeResponse(byte[] bytes) {
+        checkArgument(bytes.length >= 12, "Truncated response");
+        var buffer = ByteBuffer.wrap(bytes);
+        long batchIndex = buffer.getLong();
+        int size = buffer.getInt();
+        checkArgument(size >= 0 && buffer.remaining() == size * 32L, "Bad response length: %s", bytes.length);
+        var records = GarbledBitVector.copyFrom(Arrays.copyOfRange(bytes, 12, bytes.length));
+        return new ObliviousResponse.Packed<>(batchIndex, records, v -> v);
+    }
+
+    // Hashes each row (XORed with the given offset, if any) with fixed-key AES, tweaked by its batch & index:
+    private static GarbledBitVector pads(GarbledCircuit.Cipher cipher, GarbledBit[] rows, @Nullable GarbledBit offset,
+                                         long batchIndex) {
+        var pads = new ArrayList<GarbledBit>(rows.length);
+        for (int j = 0; j < rows.length; j++) {
+            var key = offset != null ? rows[j].xor(offset) : rows[j];
+            pads.add(new GarbledBit(cipher.encrypt(key, GarbledBit.zero(), batchIndex, j).bytes()));
+        }
+        return GarbledBitVector.copyFrom(pads);
+    }
+
+    private static GarbledCircuit.Cipher newHashCipher() {
+        // Fixed-key AES, as a correlation-robust hash of the rows of the OT extension matrix:
+        return new GarbledCircuit.AesHashCipher(new byte[16]);
+    }
+
+    private static BigInteger randomExponent(SecureRandom rnd) {
+        return new BigInteger(EXPONENT_BITS, rnd).setBit(EXPONENT_BITS);
+    }
+
+    private static BigInteger checkGroupElement(BigInteger x) {
+        checkArgument(x.compareTo(BigInteger.ONE) > 0 && x.compareTo(P.subtract(BigInteger.ONE)) < 0,
+                "Invalid group element");
+        return x;
+    }
+
+    private static byte[] seed(int index, BigInteger groupElement) {
+        //noinspection UnstableApiUsage
+        var hash = Hashing.sha256().newHasher().putInt(index).putBytes(groupElement.toByteArray()).hash();
+        return Arrays.copyOf(hash.asBytes(), 16);
+    }
+
+    // Pseudorandom expansion of a seed to the given number of bits (padded to whole bytes), using AES in counter mode:
+    private static byte[] expand(byte[] seed, long batchIndex, int size) {
+        try {
+            var jceCipher = javax.crypto.Cipher.getInstance("AES/CTR/NoPadding");
+            var iv = ByteBuffer.allocate(16).putLong(batchIndex).array();
+            jceCipher.init(javax.crypto.Cipher.ENCRYPT_MODE, new SecretKeySpec(seed, "AES"), new IvParameterSpec(iv));
+            return jceCipher.doFinal(new byte[(size + 7) / 8]);
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Transposes the 128 column bit strings of the OT extension matrix into its rows, as garbled bits:
+    private static GarbledBit[] transpose(byte[][] columns, int size) {
+        var rows = new GarbledBit[size];
+        for (int j = 0; j < size; j++) {
+            var row = new byte[SECURITY_PARAMETER / 8];
+            for (int i = 0; i < SECURITY_PARAMETER; i++) {
+                if (bit(columns[i], j)) {
+                    row[i >> 3] |= 0x80 >>> (i & 7);
+                }
+            }
+            rows[j] = new GarbledBit(row);
+        }
+        return rows;
+    }
+
+    private static boolean bit(byte[] bytes, int index) {
+        return (bytes[index >> 3] >> (7 - (index & 7)) & 1) != 0;
+    }
+
+    private static byte[] xor(byte[] x, byte[] y) {
+        var result = new byte[x.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) (x[i] ^ y[i]);
+        }
+        return result;
     }
 }
@@ -2,6 +2,7 @@ package lightningtrade.cryptography;
 
 import com.google.auto.value.AutoValue;
 import com.google.auto.value.extension.memoized.Memoized;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.Ints;
 
@@ -15,8 +16,10 @@ public class Program {
     private final List<Integer> ungarbledOutputIndices;
     private final List<Integer> outputIndices;
 
+    private int[] callInputOrdinals;
+
     Program(Iterable<GateData> rawGates, Iterable<Integer> outputIndices) {
-        this.rawGates = ImmutableList.copyOf(rawGates);
+        this.rawGates = rawGates instanceof GateList ? (GateList) rawGates : ImmutableList.copyOf(rawGates);
         gates = transformWithIndex(this.rawGates, this::newGate);
         inputIndices = gates.stream()
                 .filter(gate -> gate.type() == GateType.INPUT && !gate.isOutputKnownToGenerator())
@@ -32,6 +35,25 @@ public class Program {
         return rawGates;
     }
 
+    // The ordinal of each INPUT gate amongst the INPUT gates (or -1 for other gates), for binding arguments in a call:
+    private int[] callInputOrdinals() {
+        int[] ordinals = callInputOrdinals;
+        if (ordinals == null) {
+            int n = 0;
+            ordinals = new int[rawGates.size()];
+            for (int i = 0; i < ordinals.length; i++) {
+                ordinals[i] = rawGates.get(i).type() == GateType.INPUT ? n++ : -1;
+            }
+            callInputOrdinals = ordinals;
+        }
+        return ordinals;
+    }
+
+    int callInputCount() {
+        int[] ordinals = callInputOrdinals();
+        return (int) Arrays.stream(ordinals).filter(i -> i >= 0).count();
+    }
+
     public List<Gate> gates() {
         return gates;
     }
@@ -96,7 +118,7 @@ public class Program {
     }
 
     public static class Builder {
-        private final List<GateData> rawGates = new ArrayList<>();
+        private final GateList rawGates = new GateList();
         private final List<GateData> unmodifiableRawGates = Collections.unmodifiableList(rawGates);
         private final Map<GateData, GateData> cache = new HashMap<>();
         private List<Integer> outputIndices;
@@ -131,8 +153,34 @@ public class Program {
             return this;
         }
 
+        // Adds an instance of the given program by reference, with its INPUT gates (in order) bound to the gates at
+        // the given offsets from the start of the instance. The instance occupies the next 'program.rawGates().size()'
+        // gate indices, with each bound input appearing as an IDENTITY gate, and its outputs may be referenced as
+        // usual, by offset from their position inside the instance. Thus it behaves exactly like the flattened program
+        // (with distinct gate indices for each instance), without repeating the gate data in memory.
+        public Builder addCall(Program program, int... inputOffsets) {
+            Preconditions.checkArgument(inputOffsets.length == program.callInputCount(),
+                    "Expected %s input offsets, but got %s", program.callInputCount(), inputOffsets.length);
+            int start = rawGates.size();
+            int[] argumentIndices = new int[inputOffsets.length];
+            for (int i = 0, j = 0; i < program.rawGates().size(); i++) {
+                GateData rawGate = program.rawGates().get(i);
+                if (rawGate.type() == GateType.INPUT) {
+                    Preconditions.checkArgument(inputOffsets[j] > 0 && inputOffsets[j] <= start, "Input offset out of range");
+                    argumentIndices[j] = start - inputOffsets[j];
+                    OutputScope argumentScope = rawGates.get(argumentIndices[j]).outputScope();
+                    // The callee may have been compiled assuming its inputs are known to one or both parties:
+                    Preconditions.checkArgument(argumentScope.join(rawGate.outputScope()) == rawGate.outputScope(),
+                            "Argument scope %s is less than input scope %s", argumentScope, rawGate.outputScope());
+                    j++;
+                }
+            }
+            rawGates.addCall(program, argumentIndices);
+            return this;
+        }
+
         public Program build() {
-            return new Program(rawGates, outputIndices);
+            return new Program(rawGates.copy(), outputIndices);
         }
 
         private static OutputScope minSourceOutputScope(GateType type) {
@@ -140,6 +188,141 @@ public class Program {
         }
     }
 
+    // Gate data list made up of runs of plain gates and (unexpanded) call instances of other programs:
+    static class GateList extends AbstractList<GateData> {
+        private final List<Segment> segments;
+        private int size;
+        private int lastSegmentIndex;
+
+        GateList() {
+            this(new ArrayList<>(), 0);
+        }
+
+        private GateList(List<Segment> segments, int size) {
+            this.segments = segments;
+            this.size = size;
+        }
+
+        @Override
+        public boolean add(GateData rawGate) {
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (!(last instanceof Run)) {
+                segments.add(last = new Run(size));
+            }
+            ((Run) last).rawGates.add(rawGate);
+            size++;
+            return true;
+        }
+
+        void addCall(Program program, int[] argumentIndices) {
+            segments.add(new Call(size, program, argumentIndices));
+            size += program.rawGates().size();
+        }
+
+        GateList copy() {
+            return new GateList(segments.stream()
+                    .map(segment -> segment instanceof Run ? ((Run) segment).copy() : segment)
+                    .collect(ImmutableList.toImmutableList()), size);
+        }
+
+        @Override
+        public GateData get(int index) {
+            Preconditions.checkElementIndex(index, size);
+            // Sequential access is the common case, so try the last used segment and its successor first:
+            int i = lastSegmentIndex;
+            if (i >= segments.size() || !segments.get(i).contains(index)) {
+                i = i + 1 < segments.size() && segments.get(i + 1).contains(index) ? i + 1 : findSegment(index);
+                lastSegmentIndex = i;
+            }
+            return segments.get(i).get(index);
+        }
+
+        private int findSegment(int index) {
+            int low = 0, high = segments.size() - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (segments.get(mid).start <= index) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        private abstract static class Segment {
+            final int start;
+
+            Segment(int start) {
+                this.start = start;
+            }
+
+            abstract int size();
+
+            abstract GateData get(int index);
+
+            boolean contains(int index) {
+                return index >= start && index < start + size();
+            }
+        }
+
+        private static class Run extends Segment {
+            final List<GateData> rawGates;
+
+            Run(int start) {
+                this(start, new ArrayList<>());
+            }
+
+            private Run(int start, List<GateData> rawGates) {
+                super(start);
+                this.rawGates = rawGates;
+            }
+
+            Run copy() {
+                return new Run(start, ImmutableList.copyOf(rawGates));
+            }
+
+            @Override
+            int size() {
+                return rawGates.size();
+            }
+
+            @Override
+            GateData get(int index) {
+                return rawGates.get(index - start);
+            }
+        }
+
+        private static class Call extends Segment {
+            final Program program;
+            final int[] argumentIndices;
+
+            Call(int start, Program program, int[] argumentIndices) {
+                super(start);
+                this.program = program;
+                this.argumentIndices = argumentIndices;
+            }
+
+            @Override
+            int size() {
+                return program.rawGates().size();
+            }
+
+            @Override
+            GateData get(int index) {
+                GateData rawGate = program.rawGates().get(index - start);
+                int ordinal = program.callInputOrdinals()[index - start];
+                return ordinal < 0 ? rawGate
+                        : GateData.create(GateType.IDENTITY, rawGate.outputScope(), index - argumentIndices[ordinal]);
+            }
+        }
+    }
+
     @AutoValue
     public abstract static class GateData {
         static final GateData FALSE = create(GateType.FALSE, OutputScope.KNOWN_TO_BOTH);
@@ -0,0 +1,147 @@
+package lightningtrade.cryptography;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.Maps;
+import lightningtrade.cryptography.Program.GateData;
+import lightningtrade.cryptography.Program.GateType;
+import lightningtrade.cryptography.Program.OutputScope;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static lightningtrade.cryptography.Program.OutputScope.*;
+
+// Linear-time static analysis of a Program. The garbled size & AES call counts mirror the case analysis made by
+// GarbledCircuit.Generator & GarbledCircuit, so must be kept in step with them.
+public class ProgramAnalyzer {
+    private static final int CIPHERTEXT_BITS = 128;
+
+    private ProgramAnalyzer() {
+    }
+
+    public static Report analyze(Program program) {
+        List<GateData> rawGates = program.rawGates();
+        int size = rawGates.size();
+        var typeCounts = new EnumMap<GateType, Integer>(GateType.class);
+        var scopeCounts = new EnumMap<OutputScope, Integer>(OutputScope.class);
+        Arrays.stream(GateType.values()).forEach(type -> typeCounts.put(type, 0));
+        Arrays.stream(OutputScope.values()).forEach(scope -> scopeCounts.put(scope, 0));
+
+        int[] depths = new int[size];
+        int[] lastUses = new int[size];
+        int nonlinearDepth = 0;
+        long garbledSizeBits = 0;
+        long garblingAesCalls = 0, evaluationAesCalls = 0;
+        long trivialGates = 0, halfGates = 0, fullGates = 0;
+
+        for (int i = 0; i < size; i++) {
+            GateData rawGate = rawGates.get(i);
+            typeCounts.merge(rawGate.type(), 1, Integer::sum);
+            scopeCounts.merge(rawGate.outputScope(), 1, Integer::sum);
+            lastUses[i] = i;
+            int depth = 0;
+            for (int offset : rawGate.inputOffsets()) {
+                depth = Math.max(depth, depths[i - offset]);
+                lastUses[i - offset] = i;
+            }
+            if (isNonlinear(rawGate.type())) {
+                OutputScope scope1 = rawGates.get(i - rawGate.inputOffsets().get(0)).outputScope();
+                OutputScope scope2 = rawGates.get(i - rawGate.inputOffsets().get(1)).outputScope();
+                if (rawGate.outputScope() == KNOWN_TO_BOTH) {
+                    trivialGates++;
+                } else if (isKnownToGenerator(scope1) || isKnownToGenerator(scope2)
+                        || isKnownToEvaluator(scope1) || isKnownToEvaluator(scope2)) {
+                    halfGates++;
+                    depth++;
+                } else {
+                    fullGates++;
+                    depth++;
+                }
+            }
+            depths[i] = depth;
+            nonlinearDepth = Math.max(nonlinearDepth, depth);
+            if (isKnownToEvaluator(rawGate.outputScope())) {
+                garbledSizeBits++; // select bit
+            }
+        }
+        // Half gates take one ciphertext, full gates are split into two half gates (see GateData.splitNonlinearGate):
+        garbledSizeBits += (halfGates + fullGates * 2) * CIPHERTEXT_BITS;
+        garblingAesCalls += (halfGates + fullGates * 2) * 2;
+        evaluationAesCalls += halfGates + fullGates * 2;
+
+        for (int outputIndex : program.outputIndices()) {
+            lastUses[outputIndex] = size;
+        }
+        // Sweep for the maximum number of simultaneously live gate values (from definition up to last use):
+        int[] deaths = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            deaths[lastUses[i]]++;
+        }
+        int live = 0, maxLiveWidth = 0;
+        for (int i = 0; i < size; i++) {
+            live++;
+            maxLiveWidth = Math.max(maxLiveWidth, live);
+            live -= deaths[i];
+        }
+
+        return new AutoValue_ProgramAnalyzer_Report(
+                size,
+                Maps.immutableEnumMap(typeCounts),
+                Maps.immutableEnumMap(scopeCounts),
+                nonlinearDepth,
+                maxLiveWidth,
+                trivialGates,
+                halfGates,
+                fullGates,
+                garbledSizeBits,
+                garblingAesCalls,
+                evaluationAesCalls
+        );
+    }
+
+    private static boolean isNonlinear(GateType type) {
+        return type.ordinal() >= GateType.AND.ordinal();
+    }
+
+    private static boolean isKnownToGenerator(OutputScope scope) {
+        return scope == KNOWN_TO_GENERATOR || scope == KNOWN_TO_BOTH;
+    }
+
+    private static boolean isKnownToEvaluator(OutputScope scope) {
+        return scope == KNOWN_TO_EVALUATOR || scope == KNOWN_TO_BOTH;
+    }
+
+    @AutoValue
+    public static abstract class Report {
+        public abstract int gateCount();
+
+        public abstract Map<GateType, Integer> gateCountsByType();
+
+        public abstract Map<OutputScope, Integer> gateCountsByScope();
+
+        public abstract int nonlinearDepth();
+
+        public abstract int maxLiveWidth();
+
+        // Nonlinear gates known to both parties, which need no ciphertexts:
+        public abstract long trivialGateCount();
+
+        // Nonlinear gates with an input known to either party, which take one ciphertext each:
+        public abstract long halfGateCount();
+
+        // Nonlinear gates with no input known to either party, which are split into two half gates each:
+        public abstract long fullGateCount();
+
+        public abstract long garbledSizeBits();
+
+        public abstract long garblingAesCalls();
+
+        public abstract long evaluationAesCalls();
+
+        public long garbledSizeBytes() {
+            return (garbledSizeBits() + 7) / 8;
+        }
+    }
+}
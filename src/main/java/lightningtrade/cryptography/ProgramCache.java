@@ -0,0 +1,175 @@
+package lightningtrade.cryptography;
+
+import com.google.common.hash.HashCode;
+import com.google.common.primitives.Ints;
+import lightningtrade.cryptography.Program.GateData;
+import lightningtrade.cryptography.Program.GateType;
+import lightningtrade.cryptography.Program.OutputScope;
+import securecompute.circuit.BooleanFunction;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// On-disk cache of compiled & simplified Programs, keyed by content hash (e.g. BooleanFunctionConverter.fingerprint).
+public class ProgramCache {
+    private static final int MAGIC = 0x50524f47; // "PROG"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int TRAILER_LENGTH = 8;
+    private static final String FILE_SUFFIX = ".program";
+
+    private final Path directory;
+
+    public ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public Program get(BooleanFunction fn, BooleanFunctionConverter converter) {
+        return get(converter.fingerprint(fn), () -> Simplifier.simplify(converter.buildProgram(fn)));
+    }
+
+    public Program get(HashCode key, Supplier<Program> programSupplier) {
+        Path path = directory.resolve(key + FILE_SUFFIX);
+        try {
+            if (Files.isRegularFile(path)) {
+                try {
+                    return read(path);
+                } catch (IllegalArgumentException e) {
+                    // Corrupt or stale cache entry - fall through and overwrite it.
+                }
+            }
+            Program program = programSupplier.get();
+            Files.createDirectories(directory);
+            Path tmpPath = Files.createTempFile(directory, key.toString(), ".tmp");
+            try {
+                write(program, tmpPath);
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpPath);
+            }
+            return program;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // NOTE: The whole file is decoded into heap GateData at once, so it is simply read, rather than memory-mapped:
+    public static Program read(Path path) throws IOException {
+        return decode(ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+
+    public static void write(Program program, Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = encode(program);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    static ByteBuffer encode(Program program) {
+        List<GateData> rawGates = program.rawGates();
+        List<Integer> outputIndices = program.outputIndices();
+        int length = HEADER_LENGTH + outputIndices.size() * 4 + TRAILER_LENGTH;
+        for (var rawGate : rawGates) {
+            length += 1 + rawGate.inputOffsets().size() * 4;
+        }
+        var buffer = ByteBuffer.allocate(length)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(rawGates.size())
+                .putInt(outputIndices.size());
+        outputIndices.forEach(buffer::putInt);
+        for (var rawGate : rawGates) {
+            buffer.put((byte) (rawGate.type().ordinal() << 2 | rawGate.outputScope().ordinal()));
+            rawGate.inputOffsets().forEach(buffer::putInt);
+        }
+        buffer.putLong(checksum(buffer.array(), buffer.position()));
+        return buffer.flip();
+    }
+
+    static Program decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        checkFormat(buffer.remaining() >= HEADER_LENGTH + TRAILER_LENGTH, "Truncated program");
+        checkFormat(buffer.getInt() == MAGIC, "Bad magic number");
+        checkFormat(buffer.getInt() == VERSION, "Unsupported program format version");
+        int gateCount = buffer.getInt(), outputCount = buffer.getInt();
+        checkFormat(gateCount >= 0 && outputCount >= 0 && outputCount <= buffer.remaining() / 4, "Bad program header");
+
+        int[] outputIndices = new int[outputCount];
+        for (int i = 0; i < outputCount; i++) {
+            outputIndices[i] = buffer.getInt();
+            checkFormat(outputIndices[i] >= 0 && outputIndices[i] < gateCount, "Output index out of range");
+        }
+        // Intern the GateData instances, as Program.Builder does, since most gates of a large program are duplicates:
+        Map<GateData, GateData> cache = new HashMap<>();
+        List<GateData> rawGates = new ArrayList<>(Math.min(gateCount, buffer.remaining()));
+        GateType[] types = GateType.values();
+        OutputScope[] scopes = OutputScope.values();
+        for (int i = 0; i < gateCount; i++) {
+            checkFormat(buffer.remaining() > TRAILER_LENGTH, "Truncated program");
+            int typeAndScope = buffer.get() & 0xff;
+            checkFormat(typeAndScope >>> 2 < types.length, "Bad gate type");
+            GateType type = types[typeAndScope >>> 2];
+            int[] inputOffsets = new int[arity(type)];
+            checkFormat(buffer.remaining() >= inputOffsets.length * 4 + TRAILER_LENGTH, "Truncated program");
+            for (int j = 0; j < inputOffsets.length; j++) {
+                inputOffsets[j] = buffer.getInt();
+                checkFormat(inputOffsets[j] > 0 && inputOffsets[j] <= i, "Input offset out of range");
+            }
+            GateData rawGate = GateData.create(type, scopes[typeAndScope & 3], inputOffsets);
+            rawGates.add(cache.computeIfAbsent(rawGate, k -> k));
+        }
+        int end = buffer.position();
+        checkFormat(buffer.remaining() == TRAILER_LENGTH && buffer.getLong() == checksum(buffer, start, end),
+                "Bad program checksum");
+        return new Program(rawGates, Ints.asList(outputIndices));
+    }
+
+    static int arity(GateType type) {
+        switch (type) {
+            case INPUT:
+            case RANDOM:
+            case FALSE:
+            case TRUE:
+                return 0;
+            case IDENTITY:
+            case NOT:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    private static long checksum(byte[] bytes, int length) {
+        var crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+
+    private static long checksum(ByteBuffer buffer, int start, int end) {
+        var crc = new CRC32();
+        crc.update(buffer.duplicate().limit(end).position(start));
+        return crc.getValue();
+    }
+
+    private static void checkFormat(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+}
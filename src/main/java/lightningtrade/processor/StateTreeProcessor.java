@@ -0,0 +1,420 @@
+package lightningtrade.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.stream.Collectors;
+
+// Generates a 'StateTree_<Root>' class (extending lightningtrade.AbstractStateTree) for each interface annotated with
+// @StateTree. Each child state (a property returning a subtype of Child) becomes an inner class, each input & derived
+// property a field of the outer class, and each node an int constant, indexing the precomputed dependency tables.
+//
+// NOTE: This is compiled ahead of the rest of the module, so must not depend on any of it (or on any library).
+@SupportedAnnotationTypes("lightningtrade.StateTree")
+public class StateTreeProcessor extends AbstractProcessor {
+    private static final String CHILD = "lightningtrade.Child";
+    private static final String DEPENDS_ON = "lightningtrade.DependsOn";
+    private static final String DEPENDS_ON_ALTERNATIVES = "lightningtrade.DependsOnAlternatives";
+    private static final String EVENT = "lightningtrade.Event";
+    private static final String ACTION = "lightningtrade.Action";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                try {
+                    if (element.getKind() != ElementKind.INTERFACE) {
+                        throw new InvalidStateTreeException("@StateTree must annotate an interface", element);
+                    }
+                    generate((TypeElement) element);
+                } catch (InvalidStateTreeException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.getMessage(), e.element);
+                } catch (IOException e) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                            "Could not write state tree: " + e, element);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement rootType) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(rootType).getQualifiedName().toString();
+        String className = "StateTree_" + rootType.getSimpleName();
+        var nodes = new ArrayList<Node>();
+        var scopes = new ArrayList<Scope>();
+        var root = addScope(rootType, "", null, nodes, scopes);
+        var nodesByPath = nodes.stream().collect(Collectors.toMap(n -> n.path, n -> n));
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).index = i;
+        }
+        for (Node node : nodes) {
+            for (List<String> alternative : node.alternatives) {
+                for (String path : alternative) {
+                    var dependency = nodesByPath.get(path);
+                    if (dependency == null) {
+                        throw new InvalidStateTreeException("Unknown dependency '" + path + "'", node.method);
+                    }
+                    dependency.dependents.add(node);
+                }
+            }
+        }
+        var visited = new HashSet<Node>();
+        for (Node node : nodes) {
+            checkAcyclic(node, visited, new HashSet<>());
+        }
+
+        var out = new StringBuilder();
+        out.append("package ").append(packageName).append(";\n\n");
+        out.append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n");
+        out.append("final class ").append(className).append(" extends lightningtrade.AbstractStateTree<")
+                .append(rootType.getQualifiedName()).append("> implements ").append(rootType.getQualifiedName())
+                .append(" {\n");
+        for (Node node : nodes) {
+            out.append("    static final int ").append(node.constantName()).append(" = ").append(node.index).append(";\n");
+        }
+        out.append("\n    private static final String[] PATHS = {\n");
+        for (Node node : nodes) {
+            out.append("            \"").append(node.path).append("\",\n");
+        }
+        out.append("    };\n    private static final lightningtrade.DependencyGraph.Kind[] KINDS = {\n");
+        for (Node node : nodes) {
+            out.append("            lightningtrade.DependencyGraph.Kind.").append(node.kind).append(",\n");
+        }
+        out.append("    };\n    private static final int[][][] ALTERNATIVES = {\n");
+        for (Node node : nodes) {
+            out.append("            {").append(node.alternatives.stream()
+                    .map(alternative -> alternative.stream()
+                            .map(path -> nodesByPath.get(path).constantName())
+                            .collect(Collectors.joining(", ", "{", "}")))
+                    .collect(Collectors.joining(", "))).append("},\n");
+        }
+        out.append("    };\n    private static final int[][] DEPENDENTS = {\n");
+        for (Node node : nodes) {
+            out.append("            {").append(node.dependents.stream()
+                    .map(Node::constantName)
+                    .collect(Collectors.joining(", "))).append("},\n");
+        }
+        out.append("    };\n\n");
+        for (Scope scope : scopes) {
+            if (scope != root) {
+                out.append("    private final ").append(scope.className).append(' ').append(scope.fieldName)
+                        .append(" = new ").append(scope.className).append("();\n");
+            }
+        }
+        for (Node node : nodes) {
+            if (node.kind == Kind.INPUT || node.kind == Kind.DERIVED) {
+                out.append("    private ").append(node.type()).append(' ').append(node.fieldName()).append(";\n");
+            }
+        }
+        out.append("\n    ").append(className).append("() {\n")
+                .append("        super(PATHS, KINDS, ALTERNATIVES, DEPENDENTS);\n    }\n");
+        out.append("\n    @Override\n    public ").append(rootType.getQualifiedName()).append(" root() {\n")
+                .append("        return this;\n    }\n");
+        for (Node node : nodes) {
+            if (node.kind == Kind.INPUT) {
+                out.append("\n    void set").append(upperCamel(node.path)).append('(').append(node.type())
+                        .append(" value) {\n        ").append(node.fieldName()).append(" = value;\n")
+                        .append("        changed(").append(node.constantName()).append(");\n    }\n");
+            }
+        }
+        appendMethods(out, root, "    ");
+
+        out.append("\n    @Override\n    protected Object getValue(int index) {\n        switch (index) {\n");
+        for (Node node : nodes) {
+            if (node.kind == Kind.INPUT || node.kind == Kind.DERIVED) {
+                out.append("            case ").append(node.constantName()).append(":\n                return ")
+                        .append(node.scope == root ? "this" : node.scope.fieldName).append('.')
+                        .append(node.method.getSimpleName()).append("();\n");
+            }
+        }
+        out.append("            default:\n")
+                .append("                throw new IllegalArgumentException(\"Not a property: \" + path(index));\n")
+                .append("        }\n    }\n");
+
+        out.append("\n    @Override\n    @SuppressWarnings(\"unchecked\")\n")
+                .append("    protected void setValue(int index, Object value) {\n        switch (index) {\n");
+        for (Node node : nodes) {
+            if (node.kind == Kind.INPUT) {
+                out.append("            case ").append(node.constantName()).append(":\n                ")
+                        .append(node.fieldName()).append(" = (").append(boxedType(node)).append(") value;\n")
+                        .append("                break;\n");
+            }
+        }
+        out.append("            default:\n")
+                .append("                throw new IllegalArgumentException(\"Not an input: \" + path(index));\n")
+                .append("        }\n    }\n");
+
+        out.append("\n    @Override\n    protected void clearValue(int index) {\n        switch (index) {\n");
+        for (Node node : nodes) {
+            if (node.kind == Kind.DERIVED && !node.method.getReturnType().getKind().isPrimitive()) {
+                out.append("            case ").append(node.constantName()).append(":\n                ")
+                        .append(node.fieldName()).append(" = null;\n                break;\n");
+            }
+        }
+        out.append("        }\n    }\n");
+
+        for (Scope scope : scopes) {
+            if (scope != root) {
+                out.append("\n    final class ").append(scope.className).append(" implements ")
+                        .append(scope.type.getQualifiedName()).append(" {\n");
+                out.append("        @Override\n        public ").append(scope.parentType).append(" parent() {\n")
+                        .append("            return ")
+                        .append(scope.parent == root ? className + ".this" : scope.parent.fieldName)
+                        .append(";\n        }\n");
+                appendMethods(out, scope, "        ");
+                out.append("    }\n");
+            }
+        }
+        out.append("}\n");
+
+        var file = processingEnv.getFiler().createSourceFile(packageName + "." + className, rootType);
+        try (Writer writer = file.openWriter()) {
+            writer.write(out.toString());
+        }
+    }
+
+    private void appendMethods(StringBuilder out, Scope scope, String indent) {
+        for (Node node : scope.nodes) {
+            out.append('\n').append(indent).append("@Override\n").append(indent).append("public ")
+                    .append(node.type()).append(' ').append(node.method.getSimpleName()).append("() {\n");
+            String body = indent + "    ";
+            switch (node.kind) {
+                case CHILD:
+                    out.append(body).append("return ").append(node.childScope.fieldName).append(";\n");
+                    break;
+                case INPUT:
+                    out.append(body).append("return ").append(node.fieldName()).append(";\n");
+                    break;
+                case DERIVED:
+                    out.append(body).append("if (!isValid(").append(node.constantName()).append(")) {\n")
+                            .append(body).append("    ").append(node.fieldName()).append(" = ")
+                            .append(scope.type.getQualifiedName()).append(".super.")
+                            .append(node.method.getSimpleName()).append("();\n")
+                            .append(body).append("    markValid(").append(node.constantName()).append(");\n")
+                            .append(body).append("}\n")
+                            .append(body).append("return ").append(node.fieldName()).append(";\n");
+                    break;
+                default:
+                    out.append(body).append("fire(").append(node.constantName()).append(");\n");
+            }
+            out.append(indent).append("}\n");
+        }
+    }
+
+    private Scope addScope(TypeElement type, String prefix, Scope parent, List<Node> nodes, List<Scope> scopes) {
+        var scope = new Scope(type, prefix, parent);
+        scopes.add(scope);
+        if (parent != null) {
+            scope.parentType = childTypeArgument(type.asType())
+                    .orElseThrow(() -> new InvalidStateTreeException("Child state must extend Child<T>", type));
+        }
+        for (ExecutableElement method : methods(type)) {
+            var modifiers = method.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.PRIVATE)) {
+                continue;
+            }
+            if (!method.getParameters().isEmpty() || !method.getTypeParameters().isEmpty()) {
+                throw new InvalidStateTreeException("State methods must not have parameters", method);
+            }
+            var node = new Node(prefix + method.getSimpleName(), kind(method), method, scope, alternatives(method));
+            scope.nodes.add(node);
+            if (node.kind == Kind.CHILD) {
+                var childType = (TypeElement) ((DeclaredType) method.getReturnType()).asElement();
+                node.childScope = addScope(childType, node.path + ".", scope, nodes, scopes);
+            } else {
+                nodes.add(node);
+            }
+        }
+        return scope;
+    }
+
+    // The methods of the given interface & its superinterfaces (except Child), in declaration order:
+    private List<ExecutableElement> methods(TypeElement type) {
+        var methods = new ArrayList<>(ElementFilter.methodsIn(type.getEnclosedElements()));
+        for (TypeMirror superinterface : type.getInterfaces()) {
+            var element = (TypeElement) ((DeclaredType) superinterface).asElement();
+            if (!element.getQualifiedName().contentEquals(CHILD)) {
+                for (ExecutableElement method : methods(element)) {
+                    if (methods.stream().noneMatch(m -> m.getSimpleName().equals(method.getSimpleName()))) {
+                        methods.add(method);
+                    }
+                }
+            }
+        }
+        return methods;
+    }
+
+    private Optional<String> childTypeArgument(TypeMirror type) {
+        for (TypeMirror supertype : processingEnv.getTypeUtils().directSupertypes(type)) {
+            var declaredType = (DeclaredType) supertype;
+            if (((TypeElement) declaredType.asElement()).getQualifiedName().contentEquals(CHILD)) {
+                return Optional.of(declaredType.getTypeArguments().get(0).toString());
+            }
+            var typeArgument = childTypeArgument(supertype);
+            if (typeArgument.isPresent()) {
+                return typeArgument;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private Kind kind(ExecutableElement method) {
+        var returnType = method.getReturnType();
+        if (returnType.getKind() == TypeKind.VOID) {
+            if (hasAnnotation(method, EVENT)) {
+                return Kind.EVENT;
+            }
+            if (hasAnnotation(method, ACTION)) {
+                return Kind.ACTION;
+            }
+            throw new InvalidStateTreeException("Void method must be an @Event or @Action", method);
+        }
+        var childType = processingEnv.getElementUtils().getTypeElement(CHILD).asType();
+        var types = processingEnv.getTypeUtils();
+        if (returnType.getKind() == TypeKind.DECLARED && types.isAssignable(types.erasure(returnType), types.erasure(childType))) {
+            return Kind.CHILD;
+        }
+        return method.isDefault() ? Kind.DERIVED : Kind.INPUT;
+    }
+
+    private static boolean hasAnnotation(ExecutableElement method, String annotationName) {
+        return method.getAnnotationMirrors().stream().anyMatch(a -> annotationName(a).equals(annotationName));
+    }
+
+    private static String annotationName(AnnotationMirror annotation) {
+        return ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString();
+    }
+
+    private static List<List<String>> alternatives(ExecutableElement method) {
+        var alternatives = new ArrayList<List<String>>();
+        for (AnnotationMirror annotation : method.getAnnotationMirrors()) {
+            if (annotationName(annotation).equals(DEPENDS_ON)) {
+                alternatives.add(strings(value(annotation)));
+            } else if (annotationName(annotation).equals(DEPENDS_ON_ALTERNATIVES)) {
+                for (Object dependsOn : (List<?>) value(annotation).getValue()) {
+                    alternatives.add(strings(value((AnnotationMirror) ((AnnotationValue) dependsOn).getValue())));
+                }
+            }
+        }
+        return alternatives;
+    }
+
+    private static AnnotationValue value(AnnotationMirror annotation) {
+        return annotation.getElementValues().entrySet().stream()
+                .filter(e -> e.getKey().getSimpleName().contentEquals("value"))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElseThrow();
+    }
+
+    private static List<String> strings(AnnotationValue value) {
+        if (value.getValue() instanceof String) {
+            return List.of((String) value.getValue());
+        }
+        return ((List<?>) value.getValue()).stream()
+                .map(v -> (String) ((AnnotationValue) v).getValue())
+                .collect(Collectors.toList());
+    }
+
+    private static void checkAcyclic(Node node, Set<Node> visited, Set<Node> onStack) {
+        if (onStack.contains(node)) {
+            throw new InvalidStateTreeException("Dependency cycle through '" + node.path + "'", node.method);
+        }
+        if (visited.add(node)) {
+            onStack.add(node);
+            node.dependents.forEach(dependent -> checkAcyclic(dependent, visited, onStack));
+            onStack.remove(node);
+        }
+    }
+
+    private String boxedType(Node node) {
+        var type = node.method.getReturnType();
+        return type.getKind().isPrimitive()
+                ? processingEnv.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) type).toString()
+                : type.toString();
+    }
+
+    private static String upperCamel(String path) {
+        return Arrays.stream(path.split("\\."))
+                .filter(s -> !s.isEmpty())
+                .map(s -> Character.toUpperCase(s.charAt(0)) + s.substring(1))
+                .collect(Collectors.joining());
+    }
+
+    private enum Kind {
+        CHILD, INPUT, DERIVED, EVENT, ACTION
+    }
+
+    private static class Scope {
+        final TypeElement type;
+        final Scope parent;
+        final String className, fieldName;
+        final List<Node> nodes = new ArrayList<>();
+        String parentType;
+
+        Scope(TypeElement type, String prefix, Scope parent) {
+            this.type = type;
+            this.parent = parent;
+            String path = prefix.isEmpty() ? "" : prefix.substring(0, prefix.length() - 1);
+            this.className = upperCamel(path);
+            this.fieldName = className.isEmpty() ? "" : Character.toLowerCase(className.charAt(0)) + className.substring(1);
+        }
+    }
+
+    private static class Node {
+        final String path;
+        final Kind kind;
+        final ExecutableElement method;
+        final Scope scope;
+        final List<List<String>> alternatives;
+        final Set<Node> dependents = new LinkedHashSet<>();
+        Scope childScope;
+        int index;
+
+        Node(String path, Kind kind, ExecutableElement method, Scope scope, List<List<String>> alternatives) {
+            this.path = path;
+            this.kind = kind;
+            this.method = method;
+            this.scope = scope;
+            this.alternatives = alternatives;
+        }
+
+        String type() {
+            return method.getReturnType().toString();
+        }
+
+        String constantName() {
+            return path.replace(".", "_").replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+        }
+
+        String fieldName() {
+            String name = upperCamel(path);
+            return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+        }
+    }
+
+    private static class InvalidStateTreeException extends RuntimeException {
+        final Element element;
+
+        InvalidStateTreeException(String message, Element element) {
+            super(message);
+            this.element = element;
+        }
+    }
+}
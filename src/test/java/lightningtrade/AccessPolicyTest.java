@@ -0,0 +1,57 @@
+package lightningtrade;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessPolicyTest {
+    interface Unguarded {
+        @Access("nobody")
+        Integer x();
+    }
+
+    interface BadGuard {
+        @Access("nonexistent => ANY")
+        Integer x();
+    }
+
+    @Test
+    void testTradeStatePolicy() {
+        var policy = AccessPolicy.forType(TradeState.class);
+        assertSame(policy, AccessPolicy.forType(TradeState.class));
+        assertEquals(Set.of("buyer", "seller", "escrow"), Set.copyOf(policy.parties()));
+        assertEquals(Set.of("seller.finalizesPayout", "escrow.finalizesDeposits"), Set.copyOf(policy.guards()));
+
+        long start = policy.progress(path -> false);
+        assertEquals(0, start);
+        assertTrue(policy.isVisible("depositHash", "buyer", start));
+        assertTrue(policy.isVisible("escrow.secret2", "buyer", start));
+        assertTrue(policy.isVisible("escrow.secret2", "escrow", start));
+        assertFalse(policy.isVisible("escrow.secret2", "seller", start));
+        assertFalse(policy.isVisible("seller.garbledCircuitResult", "escrow", start));
+
+        // Guarded properties are only visible to their owners, until the guarding action occurs:
+        assertFalse(policy.isVisible("payoutPreimage", "buyer", start));
+        assertFalse(policy.isVisible("escrow.secret1", "buyer", start));
+        assertTrue(policy.isVisible("escrow.secret1", "escrow", start));
+        long depositsFinalized = policy.progress("escrow.finalizesDeposits"::equals);
+        assertTrue(policy.isVisible("escrow.secret1", "buyer", depositsFinalized));
+        assertTrue(policy.isVisible("escrow.garbledCircuitGenerator", "buyer", depositsFinalized));
+        assertFalse(policy.isVisible("escrow.garbledCircuitGenerator", "seller", depositsFinalized));
+        assertFalse(policy.isVisible("payoutPreimage", "buyer", depositsFinalized));
+        long payoutFinalized = policy.progress("seller.finalizesPayout"::equals);
+        assertTrue(policy.isVisible("payoutPreimage", "buyer", payoutFinalized));
+        assertEquals(0b111, policy.visibleParties(policy.index("payoutPreimage"), payoutFinalized));
+    }
+
+    @Test
+    void testRejectsUnknownPartiesAndGuards() {
+        assertThrows(IllegalArgumentException.class, () -> AccessPolicy.forType(Unguarded.class));
+        assertThrows(IllegalArgumentException.class, () -> AccessPolicy.forType(BadGuard.class));
+        var policy = AccessPolicy.forType(TradeState.class);
+        assertThrows(IllegalArgumentException.class, () -> policy.index("buyer.sendsDeposit"));
+        assertThrows(IllegalArgumentException.class, () -> policy.party("ANY"));
+    }
+}
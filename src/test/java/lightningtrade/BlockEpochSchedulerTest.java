@@ -0,0 +1,89 @@
+package lightningtrade;
+
+import chainrpc.ChainNotifierGrpc;
+import chainrpc.Chainnotifier;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockEpochSchedulerTest {
+    @Test
+    void testSharedSubscriptionDrivesDeadlinesThroughReorg() throws Exception {
+        var requests = new LinkedBlockingQueue<Chainnotifier.BlockEpoch>();
+        var streams = new LinkedBlockingQueue<StreamObserver<Chainnotifier.BlockEpoch>>();
+        String name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new ChainNotifierGrpc.ChainNotifierImplBase() {
+                    @Override
+                    public void registerBlockEpochNtfn(Chainnotifier.BlockEpoch request,
+                                                       StreamObserver<Chainnotifier.BlockEpoch> responseObserver) {
+                        requests.add(request);
+                        streams.add(responseObserver);
+                    }
+                })
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        var executor = Executors.newSingleThreadScheduledExecutor();
+        try (var blockScheduler = new BlockEpochScheduler(channel, LightningServiceTest.NO_CREDENTIALS, executor,
+                MoreExecutors.directExecutor())) {
+            blockScheduler.start();
+            var stream = streams.take();
+            stream.onNext(block(1000, 0));
+            assertEquals(1000, blockScheduler.height());
+
+            List<String> events = new CopyOnWriteArrayList<>();
+            for (long height : new long[]{1001, 1002}) {
+                blockScheduler.schedule(height, new BlockHeightWheel.Callback() {
+                    @Override
+                    public void onReached(long h) {
+                        events.add("reached " + height);
+                    }
+
+                    @Override
+                    public void onReverted(long h) {
+                        events.add("reverted " + height);
+                    }
+                });
+            }
+            stream.onNext(block(1001, 0));
+            stream.onNext(block(1002, 0));
+            // A competing block at the same height reverts the deadline there, then reaches it again:
+            stream.onNext(block(1002, 1));
+            assertEquals(List.of("reached 1001", "reached 1002", "reverted 1002", "reached 1002"), events);
+
+            // The stream is resumed from the last block seen, with any replayed block ignored:
+            stream.onError(Status.UNAVAILABLE.asRuntimeException());
+            stream = streams.take();
+            var resumeRequest = requests.toArray(new Chainnotifier.BlockEpoch[0])[1];
+            assertEquals(1002, resumeRequest.getHeight());
+            assertEquals(block(1002, 1).getHash(), resumeRequest.getHash());
+            stream.onNext(block(1002, 1));
+            assertEquals(4, events.size());
+        } finally {
+            executor.shutdownNow();
+            channel.shutdownNow();
+            server.shutdownNow();
+        }
+    }
+
+    private static Chainnotifier.BlockEpoch block(int height, int fork) {
+        return Chainnotifier.BlockEpoch.newBuilder()
+                .setHeight(height)
+                .setHash(ByteString.copyFrom(new byte[]{(byte) height, (byte) (height >> 8), (byte) fork}))
+                .build();
+    }
+}
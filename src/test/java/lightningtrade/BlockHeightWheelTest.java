@@ -0,0 +1,80 @@
+package lightningtrade;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockHeightWheelTest {
+    @Test
+    void testDeadlinesReachedExactlyOnTime() {
+        long start = 700_000 - 5;
+        var wheel = new BlockHeightWheel(start, 10);
+        var rnd = new Random(1234);
+        var reachedAt = new HashMap<Long, List<Long>>();
+        var deadlines = new ArrayList<BlockHeightWheel.Deadline>();
+        for (int i = 0; i < 5000; i++) {
+            // Spread the deadlines over all the levels of the wheel & the overflow:
+            long height = start + 1 + (long) (Math.pow(rnd.nextDouble(), 3) * 600_000);
+            deadlines.add(wheel.schedule(height, h -> reachedAt.computeIfAbsent(height, k -> new ArrayList<>()).add(h)));
+        }
+        var cancelled = deadlines.get(0);
+        cancelled.cancel();
+        assertEquals(4999, wheel.pendingCount());
+
+        wheel.advanceTo(start + 600_001);
+        assertEquals(0, wheel.pendingCount());
+        for (var deadline : deadlines) {
+            var reached = reachedAt.getOrDefault(deadline.height(), List.of());
+            if (deadline != cancelled) {
+                assertFalse(reached.isEmpty());
+                reached.forEach(h -> assertEquals(deadline.height(), h));
+            }
+        }
+        assertEquals(4999, reachedAt.values().stream().mapToInt(List::size).sum());
+
+        // Deadlines already passed are reached immediately:
+        var late = new ArrayList<Long>();
+        wheel.schedule(start, late::add);
+        assertEquals(List.of(start + 600_001), late);
+    }
+
+    @Test
+    void testReorgRevertsAndReschedules() {
+        var wheel = new BlockHeightWheel(100, 6);
+        var events = new ArrayList<String>();
+        Map<Long, BlockHeightWheel.Deadline> deadlines = new HashMap<>();
+        for (long height = 101; height <= 110; height++) {
+            long h = height;
+            deadlines.put(h, wheel.schedule(h, new BlockHeightWheel.Callback() {
+                @Override
+                public void onReached(long height) {
+                    events.add("reached " + h);
+                }
+
+                @Override
+                public void onReverted(long height) {
+                    events.add("reverted " + h);
+                }
+            }));
+        }
+        wheel.advanceTo(105);
+        assertEquals(List.of("reached 101", "reached 102", "reached 103", "reached 104", "reached 105"), events);
+        deadlines.get(103L).cancel();
+        events.clear();
+
+        wheel.rewindTo(102);
+        assertEquals(102, wheel.height());
+        assertEquals(List.of("reverted 105", "reverted 104"), events);
+        assertEquals(7, wheel.pendingCount());
+        events.clear();
+        wheel.advanceTo(106);
+        assertEquals(List.of("reached 104", "reached 105", "reached 106"), events);
+        assertThrows(IllegalArgumentException.class, () -> wheel.rewindTo(99));
+    }
+}
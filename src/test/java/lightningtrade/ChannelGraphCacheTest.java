@@ -0,0 +1,314 @@
+package lightningtrade;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import lnrpc.LightningGrpc;
+import lnrpc.Rpc;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChannelGraphCacheTest {
+    private static final String A = "0a", B = "0b", C = "0c", D = "0d";
+    private static final long AMOUNT = 1_000_000;
+
+    // Two paths from A to D: through B (fee 1000, delta 40) & through C (fee 100 + 0.1% = 1100, delta 144):
+    private static Rpc.ChannelGraph graph() {
+        return Rpc.ChannelGraph.newBuilder()
+                .addEdges(edge(1, A, B, policy(0, 0, 0), policy(1000, 0, 40)))
+                .addEdges(edge(2, B, D, policy(1000, 0, 40), policy(0, 0, 0)))
+                .addEdges(edge(3, A, C, policy(0, 0, 0), policy(100, 1000, 144)))
+                .addEdges(edge(4, C, D, policy(100, 1000, 144), policy(0, 0, 0)))
+                .build();
+    }
+
+    private static Rpc.ChannelEdge edge(long channelId, String node1, String node2, Rpc.RoutingPolicy policy1,
+                                        Rpc.RoutingPolicy policy2) {
+        return Rpc.ChannelEdge.newBuilder()
+                .setChannelId(channelId)
+                .setNode1Pub(node1)
+                .setNode2Pub(node2)
+                .setCapacity(10_000)
+                .setNode1Policy(policy1)
+                .setNode2Policy(policy2)
+                .build();
+    }
+
+    private static Rpc.RoutingPolicy policy(long baseFeeMsat, long feeRate, int timeLockDelta) {
+        return Rpc.RoutingPolicy.newBuilder()
+                .setFeeBaseMsat(baseFeeMsat)
+                .setFeeRateMilliMsat(feeRate)
+                .setTimeLockDelta(timeLockDelta)
+                .setMinHtlc(1000)
+                .setLastUpdate(1)
+                .build();
+    }
+
+    private static List<ChannelGraphCache.Route> findRoutes(ChannelGraphCache cache, long amount, long maxFee,
+                                                            int maxCltvDelta, Set<Long> outgoingChannelIds,
+                                                            Set<String> lastHops, int count) {
+        return cache.findRoutes(A, D, amount, 18, maxFee, maxCltvDelta, outgoingChannelIds, lastHops, count);
+    }
+
+    @Test
+    void testCheapestRoutesFoundFirst() {
+        var cache = new ChannelGraphCache();
+        cache.apply(graph());
+        assertEquals(4, cache.nodeCount());
+
+        var routes = findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 3);
+        assertEquals(2, routes.size());
+        var route = routes.get(0);
+        assertEquals(List.of(B, D), route.hopPubkeys());
+        assertEquals(List.of(1L, 2L), route.channelIds());
+        assertEquals(1, route.outgoingChannelId());
+        assertEquals(B, route.lastHopPubkey());
+        assertEquals(AMOUNT, route.amountMsat());
+        assertEquals(1000, route.feeMsat());
+        assertEquals(58, route.cltvDelta());
+
+        route = routes.get(1);
+        assertEquals(List.of(C, D), route.hopPubkeys());
+        assertEquals(1100, route.feeMsat());
+        assertEquals(162, route.cltvDelta());
+    }
+
+    @Test
+    void testFeeAndCltvBounds() {
+        var cache = new ChannelGraphCache();
+        cache.apply(graph());
+
+        assertEquals(List.of(List.of(B, D)), hops(findRoutes(cache, AMOUNT, 1050, 1000, Set.of(), Set.of(), 2)));
+        assertEquals(List.of(List.of(B, D)), hops(findRoutes(cache, AMOUNT, 10_000, 100, Set.of(), Set.of(), 2)));
+        assertEquals(List.of(), findRoutes(cache, AMOUNT, 999, 1000, Set.of(), Set.of(), 2));
+        // Amounts beyond the capacity (or below the minimum HTLC) of a channel cannot be routed through it:
+        assertEquals(List.of(), findRoutes(cache, 20_000_000, 100_000, 1000, Set.of(), Set.of(), 2));
+        assertEquals(List.of(), findRoutes(cache, 999, 10_000, 1000, Set.of(), Set.of(), 2));
+    }
+
+    @Test
+    void testCheapPathDoesNotShadowOneWithinCltvBound() {
+        // From A through N & M, then either through P (fee 10, delta 60) or Q (fee 100, delta 20) to D, with N & M
+        // adding deltas of 30 & 10:
+        String n = "1b", m = "1a", p = "1c", q = "1d";
+        var cache = new ChannelGraphCache();
+        cache.apply(Rpc.ChannelGraph.newBuilder()
+                .addEdges(edge(11, A, n, policy(0, 0, 0), policy(0, 0, 0)))
+                .addEdges(edge(12, n, m, policy(0, 0, 30), policy(0, 0, 0)))
+                .addEdges(edge(13, m, p, policy(0, 0, 10), policy(0, 0, 0)))
+                .addEdges(edge(14, m, q, policy(0, 0, 10), policy(0, 0, 0)))
+                .addEdges(edge(15, p, D, policy(10, 0, 60), policy(0, 0, 0)))
+                .addEdges(edge(16, q, D, policy(100, 0, 20), policy(0, 0, 0)))
+                .build());
+
+        var route = findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 1).get(0);
+        assertEquals(List.of(n, m, p, D), route.hopPubkeys());
+        assertEquals(10, route.feeMsat());
+        assertEquals(118, route.cltvDelta());
+
+        // The cheaper path through P still fits the bound at M (with delta 88), but not once N's delta is added:
+        route = findRoutes(cache, AMOUNT, 10_000, 100, Set.of(), Set.of(), 1).get(0);
+        assertEquals(List.of(n, m, q, D), route.hopPubkeys());
+        assertEquals(100, route.feeMsat());
+        assertEquals(78, route.cltvDelta());
+        assertEquals(List.of(), findRoutes(cache, AMOUNT, 10_000, 77, Set.of(), Set.of(), 1));
+    }
+
+    @Test
+    void testCircularRoutes() {
+        var cache = new ChannelGraphCache();
+        cache.apply(graph());
+
+        // A self-payment goes round the cycle A-B-D-C, one way (fee 1000 + 1100) or the other (1000 + 1101):
+        var routes = cache.findRoutes(A, A, AMOUNT, 18, 10_000, 1000, Set.of(), Set.of(), 2);
+        assertEquals(1, routes.size());
+        var route = routes.get(0);
+        assertEquals(List.of(B, D, C, A), route.hopPubkeys());
+        assertEquals(List.of(1L, 2L, 4L, 3L), route.channelIds());
+        assertEquals(2100, route.feeMsat());
+        assertEquals(202, route.cltvDelta());
+
+        route = cache.findRoutes(A, A, AMOUNT, 18, 10_000, 1000, Set.of(3L), Set.of(), 1).get(0);
+        assertEquals(List.of(C, D, B, A), route.hopPubkeys());
+        assertEquals(2101, route.feeMsat());
+        route = cache.findRoutes(A, A, AMOUNT, 18, 10_000, 1000, Set.of(1L), Set.of(C), 1).get(0);
+        assertEquals(1, route.outgoingChannelId());
+        assertEquals(C, route.lastHopPubkey());
+        assertEquals(List.of(), cache.findRoutes(A, A, AMOUNT, 18, 10_000, 1000, Set.of(1L), Set.of(B), 1));
+        assertEquals(List.of(), cache.findRoutes(A, A, AMOUNT, 18, 10_000, 200, Set.of(), Set.of(), 1));
+    }
+
+    @Test
+    void testOutgoingChannelAndLastHopConstraints() {
+        var cache = new ChannelGraphCache();
+        cache.apply(graph());
+
+        assertEquals(List.of(List.of(C, D)), hops(findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(3L), Set.of(), 2)));
+        assertEquals(List.of(List.of(C, D)), hops(findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(C), 2)));
+        assertEquals(List.of(), findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(1L), Set.of(C), 2));
+        // Last hops unknown to the graph leave no route, rather than no restriction:
+        assertEquals(List.of(), findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of("0f"), 2));
+        assertEquals(List.of(List.of(C, D)), hops(findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(C, "0f"), 2)));
+    }
+
+    @Test
+    void testTopologyUpdates() {
+        var cache = new ChannelGraphCache();
+        cache.apply(graph());
+
+        // B disables its side of channel 2, then C's channel to D closes:
+        cache.apply(Rpc.GraphTopologyUpdate.newBuilder()
+                .addChannelUpdates(Rpc.ChannelEdgeUpdate.newBuilder()
+                        .setChanId(2)
+                        .setAdvertisingNode(B)
+                        .setConnectingNode(D)
+                        .setRoutingPolicy(policy(1000, 0, 40).toBuilder().setDisabled(true).setLastUpdate(2)))
+                .build());
+        assertEquals(List.of(List.of(C, D)), hops(findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 2)));
+
+        cache.apply(Rpc.GraphTopologyUpdate.newBuilder()
+                .addClosedChans(Rpc.ClosedChannelUpdate.newBuilder().setChanId(4))
+                .build());
+        assertEquals(List.of(), findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 2));
+
+        // A new channel from B to D, with a new node E:
+        cache.apply(Rpc.GraphTopologyUpdate.newBuilder()
+                .addChannelUpdates(Rpc.ChannelEdgeUpdate.newBuilder()
+                        .setChanId(5)
+                        .setCapacity(10_000)
+                        .setAdvertisingNode(B)
+                        .setConnectingNode("0e")
+                        .setRoutingPolicy(policy(10, 0, 10)))
+                .addChannelUpdates(Rpc.ChannelEdgeUpdate.newBuilder()
+                        .setChanId(6)
+                        .setCapacity(10_000)
+                        .setAdvertisingNode("0e")
+                        .setConnectingNode(D)
+                        .setRoutingPolicy(policy(20, 0, 20)))
+                .build());
+        var route = findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 2).get(0);
+        assertEquals(List.of(B, "0e", D), route.hopPubkeys());
+        assertEquals(List.of(1L, 5L, 6L), route.channelIds());
+        assertEquals(30, route.feeMsat());
+        assertEquals(48, route.cltvDelta());
+
+        // A stale policy (from an older snapshot, say) does not replace a newer one, nor is a closed channel reopened:
+        var staleGraph = graph().toBuilder()
+                .addEdges(edge(5, B, "0e", policy(500, 0, 10).toBuilder().setLastUpdate(0).build(), policy(0, 0, 0)))
+                .addEdges(edge(6, D, "0e", policy(0, 0, 0), policy(500, 0, 20).toBuilder().setLastUpdate(0).build()))
+                .build();
+        cache.apply(staleGraph);
+        route = findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 2).get(0);
+        assertEquals(List.of(B, "0e", D), route.hopPubkeys());
+        assertEquals(30, route.feeMsat());
+        assertEquals(1, findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 2).size());
+
+        // A snapshot missing the channels through E closes them:
+        cache.apply(graph());
+        assertEquals(List.of(), findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 2));
+    }
+
+    @Test
+    void testLoadedAndKeptCurrentFromNode() throws Exception {
+        var streams = new LinkedBlockingQueue<StreamObserver<Rpc.GraphTopologyUpdate>>();
+        var loadCount = new AtomicInteger();
+        String name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new LightningGrpc.LightningImplBase() {
+                    @Override
+                    public void describeGraph(Rpc.ChannelGraphRequest request,
+                                              StreamObserver<Rpc.ChannelGraph> responseObserver) {
+                        // Channel 3 (from A to C) closes while the update stream is down, so is missing on reload:
+                        var graph = graph();
+                        if (loadCount.incrementAndGet() > 1) {
+                            graph = graph.toBuilder().removeEdges(2).build();
+                        }
+                        responseObserver.onNext(graph);
+                        responseObserver.onCompleted();
+                    }
+
+                    @Override
+                    public void subscribeChannelGraph(Rpc.GraphTopologySubscription request,
+                                                      StreamObserver<Rpc.GraphTopologyUpdate> responseObserver) {
+                        streams.add(responseObserver);
+                    }
+                })
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        var executor = Executors.newSingleThreadScheduledExecutor();
+        try (var cache = new ChannelGraphCache()) {
+            cache.start(channel, LightningServiceTest.NO_CREDENTIALS, executor);
+            assertEquals(2, findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 2).size());
+
+            var stream = streams.take();
+            stream.onNext(Rpc.GraphTopologyUpdate.newBuilder()
+                    .addClosedChans(Rpc.ClosedChannelUpdate.newBuilder().setChanId(1))
+                    .build());
+            assertEquals(List.of(List.of(C, D)), hops(findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 2)));
+
+            stream.onError(Status.UNAVAILABLE.asRuntimeException());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (loadCount.get() < 2 || !findRoutes(cache, AMOUNT, 10_000, 1000, Set.of(), Set.of(), 2).isEmpty()) {
+                assertTrue(System.nanoTime() < deadline, "Timed out");
+                Thread.sleep(5);
+            }
+        } finally {
+            executor.shutdownNow();
+            channel.shutdownNow();
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    void testRestartedOnceWhenNodeUnavailable() throws Exception {
+        var subscriptionCount = new AtomicInteger();
+        String name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new LightningGrpc.LightningImplBase() {
+                    @Override
+                    public void describeGraph(Rpc.ChannelGraphRequest request,
+                                              StreamObserver<Rpc.ChannelGraph> responseObserver) {
+                        responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+                    }
+
+                    @Override
+                    public void subscribeChannelGraph(Rpc.GraphTopologySubscription request,
+                                                      StreamObserver<Rpc.GraphTopologyUpdate> responseObserver) {
+                        subscriptionCount.incrementAndGet();
+                        responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+                    }
+                })
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        var executor = new ScheduledThreadPoolExecutor(1);
+        try (var cache = new ChannelGraphCache()) {
+            // Both the update stream & the load fail, but only one restart may be scheduled for them:
+            cache.start(channel, LightningServiceTest.NO_CREDENTIALS, executor);
+            Thread.sleep(100);
+            assertEquals(1, subscriptionCount.get());
+            assertEquals(1, executor.getQueue().size());
+        } finally {
+            executor.shutdownNow();
+            channel.shutdownNow();
+            server.shutdownNow();
+        }
+    }
+
+    private static List<List<String>> hops(List<ChannelGraphCache.Route> routes) {
+        return routes.stream().map(ChannelGraphCache.Route::hopPubkeys).collect(java.util.stream.Collectors.toList());
+    }
+}
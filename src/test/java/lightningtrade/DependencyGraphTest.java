@@ -0,0 +1,179 @@
+package lightningtrade;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DependencyGraphTest {
+    private static final AtomicInteger SUM_EVALUATIONS = new AtomicInteger();
+    private static final AtomicInteger PRODUCT_EVALUATIONS = new AtomicInteger();
+
+    interface Root {
+        Operands operands();
+
+        @DependsOn({"operands.x", "operands.y"})
+        default Integer sum() {
+            SUM_EVALUATIONS.incrementAndGet();
+            return operands().x() + operands().y();
+        }
+
+        @DependsOn({"sum", "operands.z"})
+        default Integer product() {
+            PRODUCT_EVALUATIONS.incrementAndGet();
+            return sum() * operands().z();
+        }
+
+        @DependsOn("operands.ready")
+        @DependsOn("product")
+        default String status() {
+            return operands().parent().product() != null ? "computed" : "waiting";
+        }
+    }
+
+    interface Operands extends Child<Root> {
+        Integer x();
+
+        Integer y();
+
+        Integer z();
+
+        @Event
+        void ready();
+    }
+
+    interface Branching {
+        Integer x();
+
+        // Each branch waits for the other, so they can only complete if evaluated concurrently:
+        @DependsOn("x")
+        default Integer left() {
+            return awaitOtherBranch() + x();
+        }
+
+        @DependsOn("x")
+        default Integer right() {
+            return awaitOtherBranch() + 2 * x();
+        }
+
+        @DependsOn({"left", "right"})
+        default Integer total() {
+            return left() + right();
+        }
+    }
+
+    private static final CyclicBarrier BRANCH_BARRIER = new CyclicBarrier(2);
+
+    private static int awaitOtherBranch() {
+        try {
+            return BRANCH_BARRIER.await(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    interface Cyclic {
+        @DependsOn("b")
+        default Integer a() {
+            return b();
+        }
+
+        @DependsOn("a")
+        default Integer b() {
+            return a();
+        }
+    }
+
+    @Test
+    void testMemoizationAndInvalidation() {
+        var graph = DependencyGraph.create(Root.class);
+        assertEquals(DependencyGraph.Kind.DERIVED, graph.kind("product"));
+        assertEquals(List.of(List.of("operands.ready"), List.of("product")), graph.dependencies("status"));
+        assertFalse(graph.isAvailable("product"));
+        assertFalse(graph.isAvailable("status"));
+
+        graph.set("operands.x", 2);
+        graph.set("operands.y", 3);
+        graph.set("operands.z", 4);
+        assertTrue(graph.isAvailable("status"));
+        var root = graph.root();
+        SUM_EVALUATIONS.set(0);
+        PRODUCT_EVALUATIONS.set(0);
+        assertEquals(20, root.product());
+        assertEquals(20, root.product());
+        assertEquals(5, root.sum());
+        assertEquals(1, SUM_EVALUATIONS.get());
+        assertEquals(1, PRODUCT_EVALUATIONS.get());
+
+        // Only the dependents of a changed input are invalidated:
+        graph.set("operands.z", 5);
+        assertTrue(graph.isCached("sum"));
+        assertFalse(graph.isCached("product"));
+        assertEquals(25, graph.get("product"));
+        assertEquals(1, SUM_EVALUATIONS.get());
+        assertEquals(2, PRODUCT_EVALUATIONS.get());
+
+        assertEquals("computed", root.status());
+        assertFalse(graph.hasOccurred("operands.ready"));
+        root.operands().ready();
+        assertTrue(graph.hasOccurred("operands.ready"));
+        assertFalse(graph.isCached("status"));
+        assertSame(root, root.operands().parent());
+    }
+
+    @Test
+    void testRejectsCyclesAndUnknownDependencies() {
+        assertThrows(IllegalArgumentException.class, () -> DependencyGraph.create(Cyclic.class));
+        var graph = DependencyGraph.create(Root.class);
+        assertThrows(IllegalArgumentException.class, () -> graph.set("sum", 1));
+        assertThrows(IllegalArgumentException.class, () -> graph.set("operands.x", "1"));
+    }
+
+    @Test
+    void testEvaluateAsync() throws Exception {
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            var graph = DependencyGraph.create(Branching.class);
+            assertThrows(IllegalArgumentException.class, () -> graph.evaluateAsync(List.of("total"), executor));
+            graph.set("x", 3);
+            graph.evaluateAsync(List.of("total"), executor).get(20, TimeUnit.SECONDS);
+            assertTrue(graph.isCached("left"));
+            assertTrue(graph.isCached("right"));
+            assertTrue(graph.isCached("total"));
+            // The barrier returns the arrival indices 1 & 0, in either order, to the two branches:
+            assertEquals(1 + 3 * 3, graph.get("total"));
+
+            // Nothing to do once cached:
+            assertTrue(graph.evaluateAsync(List.of("total"), executor).isDone());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testTradeStateGraph() {
+        var graph = DependencyGraph.create(TradeState.class);
+        assertEquals(DependencyGraph.Kind.INPUT, graph.kind("escrow.garbledCircuitGenerator"));
+        assertEquals(DependencyGraph.Kind.ACTION, graph.kind("seller.finalizesPayout"));
+        graph.set("seller.secret", ByteString.copyFrom(new byte[]{1, 2, 3}));
+        graph.set("escrow.secret1", ByteString.copyFrom(new byte[]{4, 5, 6}));
+        graph.set("escrow.secret2", ByteString.copyFrom(new byte[]{7, 8, 9}));
+
+        var trade = graph.root();
+        var payoutHash = trade.payoutHash();
+        assertEquals(ByteString.copyFrom(new byte[]{2, 15, 12}), trade.payoutPreimage());
+        assertTrue(graph.isCached("payoutHash"));
+        assertNotNull(trade.depositHash());
+
+        graph.set("escrow.secret2", ByteString.copyFrom(new byte[]{0, 0, 0}));
+        assertFalse(graph.isCached("payoutHash"));
+        assertTrue(graph.isCached("depositHash"));
+        assertNotEquals(payoutHash, trade.payoutHash());
+    }
+}
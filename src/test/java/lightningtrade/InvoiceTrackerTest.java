@@ -0,0 +1,170 @@
+package lightningtrade;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import invoicesrpc.InvoicesGrpc;
+import invoicesrpc.InvoicesOuterClass;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import lnrpc.Rpc;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InvoiceTrackerTest {
+    @Test
+    void testResumesAndAppliesBackpressure() throws Exception {
+        var subscriptionCount = new AtomicInteger();
+        String name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new InvoicesGrpc.InvoicesImplBase() {
+                    @Override
+                    public void subscribeSingleInvoice(InvoicesOuterClass.SubscribeSingleInvoiceRequest request,
+                                                       StreamObserver<Rpc.Invoice> responseObserver) {
+                        responseObserver.onNext(invoice(request.getRHash(), Rpc.Invoice.InvoiceState.OPEN));
+                        if (subscriptionCount.incrementAndGet() == 1) {
+                            // Simulate the node going away, after which the tracker must resubscribe:
+                            responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+                            return;
+                        }
+                        responseObserver.onNext(invoice(request.getRHash(), Rpc.Invoice.InvoiceState.ACCEPTED));
+                        responseObserver.onNext(invoice(request.getRHash(), Rpc.Invoice.InvoiceState.SETTLED));
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        var scheduler = Executors.newSingleThreadScheduledExecutor();
+        try (var tracker = new InvoiceTracker(channel, LightningServiceTest.NO_CREDENTIALS, scheduler)) {
+            var hash = ByteString.copyFrom(new byte[]{1, 2, 3});
+            List<Rpc.Invoice.InvoiceState> states = new CopyOnWriteArrayList<>();
+            var acceptHandled = SettableFuture.<Void>create();
+            tracker.track(hash, invoice -> {
+                states.add(invoice.getState());
+                return invoice.getState() == Rpc.Invoice.InvoiceState.ACCEPTED ? acceptHandled : Futures.immediateFuture(null);
+            });
+            assertThrows(IllegalArgumentException.class, () -> tracker.track(hash, invoice -> null));
+
+            waitUntil(() -> states.size() == 2);
+            // No more updates are delivered until the listener has handled the last one:
+            Thread.sleep(100);
+            assertEquals(List.of(Rpc.Invoice.InvoiceState.OPEN, Rpc.Invoice.InvoiceState.ACCEPTED), states);
+            acceptHandled.set(null);
+            waitUntil(() -> states.size() == 3);
+            assertEquals(Rpc.Invoice.InvoiceState.SETTLED, states.get(2));
+            assertEquals(2, subscriptionCount.get());
+            waitUntil(() -> tracker.trackedCount() == 0);
+        } finally {
+            scheduler.shutdownNow();
+            channel.shutdownNow();
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    void testRetriesFailedUpdates() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new InvoicesGrpc.InvoicesImplBase() {
+                    @Override
+                    public void subscribeSingleInvoice(InvoicesOuterClass.SubscribeSingleInvoiceRequest request,
+                                                       StreamObserver<Rpc.Invoice> responseObserver) {
+                        responseObserver.onNext(invoice(request.getRHash(), Rpc.Invoice.InvoiceState.ACCEPTED));
+                        responseObserver.onNext(invoice(request.getRHash(), Rpc.Invoice.InvoiceState.SETTLED));
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        var scheduler = Executors.newSingleThreadScheduledExecutor();
+        try (var tracker = new InvoiceTracker(channel, LightningServiceTest.NO_CREDENTIALS, scheduler)) {
+            var hash = ByteString.copyFrom(new byte[]{4, 5, 6});
+            List<Rpc.Invoice.InvoiceState> states = new CopyOnWriteArrayList<>();
+            tracker.track(hash, invoice -> {
+                states.add(invoice.getState());
+                // Handling of the acceptance fails twice (once by throwing), before succeeding:
+                if (states.size() == 1) {
+                    return Futures.immediateFailedFuture(new IllegalStateException("Trade busy"));
+                }
+                if (states.size() == 2) {
+                    throw new IllegalStateException("Trade busy");
+                }
+                return Futures.immediateFuture(null);
+            });
+
+            waitUntil(() -> tracker.trackedCount() == 0);
+            assertEquals(List.of(Rpc.Invoice.InvoiceState.ACCEPTED, Rpc.Invoice.InvoiceState.ACCEPTED,
+                    Rpc.Invoice.InvoiceState.ACCEPTED, Rpc.Invoice.InvoiceState.SETTLED), states);
+        } finally {
+            scheduler.shutdownNow();
+            channel.shutdownNow();
+            server.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFiringOnAcceptOfFinishedOrUnknownTrade() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        Server server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new InvoicesGrpc.InvoicesImplBase() {
+                    @Override
+                    public void subscribeSingleInvoice(InvoicesOuterClass.SubscribeSingleInvoiceRequest request,
+                                                       StreamObserver<Rpc.Invoice> responseObserver) {
+                        responseObserver.onNext(invoice(request.getRHash(), Rpc.Invoice.InvoiceState.ACCEPTED));
+                        responseObserver.onNext(invoice(request.getRHash(), Rpc.Invoice.InvoiceState.SETTLED));
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        ManagedChannel channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+        var scheduler = Executors.newSingleThreadScheduledExecutor();
+        Map<String, TradeScheduler.ActionHandler<TradeSchedulerTest.Trade>> handlers = Map.of(
+                "sendsInvoice", trade -> Futures.immediateFuture(null));
+        try (var tradeScheduler = new TradeScheduler<>(TradeSchedulerTest.Trade.class, handlers, 1);
+             var tracker = new InvoiceTracker(channel, LightningServiceTest.NO_CREDENTIALS, scheduler)) {
+            var completion = tradeScheduler.start("trade", graph -> graph.set("amount", 1));
+            tradeScheduler.fire("trade", "receivesDeposit").get();
+            completion.get(10, TimeUnit.SECONDS);
+            assertFalse(tradeScheduler.isActive("trade"));
+
+            // Neither acceptance can ever be fired, so both are taken as delivered, rather than retried forever:
+            tracker.track(ByteString.copyFrom(new byte[]{7}),
+                    InvoiceTracker.firingOnAccept(tradeScheduler, "trade", "receivesDeposit"));
+            tracker.track(ByteString.copyFrom(new byte[]{8}),
+                    InvoiceTracker.firingOnAccept(tradeScheduler, "unknownTrade", "receivesDeposit"));
+            waitUntil(() -> tracker.trackedCount() == 0);
+        } finally {
+            scheduler.shutdownNow();
+            channel.shutdownNow();
+            server.shutdownNow();
+        }
+    }
+
+    private static Rpc.Invoice invoice(ByteString hash, Rpc.Invoice.InvoiceState state) {
+        return Rpc.Invoice.newBuilder().setRHash(hash).setState(state).build();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out");
+            Thread.sleep(5);
+        }
+    }
+}
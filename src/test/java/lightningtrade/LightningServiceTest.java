@@ -0,0 +1,120 @@
+package lightningtrade;
+
+import com.google.protobuf.ByteString;
+import invoicesrpc.InvoicesGrpc;
+import invoicesrpc.InvoicesOuterClass;
+import io.grpc.CallCredentials;
+import io.grpc.Metadata;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import lnrpc.Rpc;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import routerrpc.RouterGrpc;
+import routerrpc.RouterOuterClass;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LightningServiceTest {
+    static final CallCredentials NO_CREDENTIALS = new CallCredentials() {
+        @Override
+        public void applyRequestMetadata(RequestInfo requestInfo, Executor appExecutor, MetadataApplier applier) {
+            applier.apply(new Metadata());
+        }
+
+        @Override
+        public void thisUsesUnstableApi() {
+        }
+    };
+
+    private Server server;
+    private ManagedChannel channel;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new InvoicesGrpc.InvoicesImplBase() {
+                    @Override
+                    public void addHoldInvoice(InvoicesOuterClass.AddHoldInvoiceRequest request,
+                                               StreamObserver<InvoicesOuterClass.AddHoldInvoiceResp> responseObserver) {
+                        responseObserver.onNext(InvoicesOuterClass.AddHoldInvoiceResp.newBuilder()
+                                .setPaymentRequest("lnbc" + request.getValueMsat()).build());
+                        responseObserver.onCompleted();
+                    }
+
+                    @Override
+                    public void cancelInvoice(InvoicesOuterClass.CancelInvoiceMsg request,
+                                              StreamObserver<InvoicesOuterClass.CancelInvoiceResp> responseObserver) {
+                        responseObserver.onError(Status.NOT_FOUND.asRuntimeException());
+                    }
+                })
+                .addService(new RouterGrpc.RouterImplBase() {
+                    @Override
+                    public void sendPaymentV2(RouterOuterClass.SendPaymentRequest request,
+                                              StreamObserver<Rpc.Payment> responseObserver) {
+                        responseObserver.onNext(Rpc.Payment.newBuilder()
+                                .setStatus(Rpc.Payment.PaymentStatus.IN_FLIGHT).build());
+                        responseObserver.onNext(Rpc.Payment.newBuilder()
+                                .setStatus(Rpc.Payment.PaymentStatus.IN_FLIGHT)
+                                .addHtlcs(Rpc.HTLCAttempt.newBuilder().setStatus(Rpc.HTLCAttempt.HTLCStatus.IN_FLIGHT))
+                                .build());
+                        responseObserver.onNext(Rpc.Payment.newBuilder()
+                                .setStatus(Rpc.Payment.PaymentStatus.SUCCEEDED).build());
+                        responseObserver.onCompleted();
+                    }
+                })
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    }
+
+    @AfterEach
+    void stopServer() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    @Test
+    void testAsyncCalls() throws Exception {
+        var service = new LightningService(channel, NO_CREDENTIALS);
+        assertEquals("lnbc1000", service.addHoldInvoiceAsync("memo", ByteString.EMPTY, 1000, 40)
+                .get(10, TimeUnit.SECONDS));
+
+        List<Rpc.Payment.PaymentStatus> updates = new CopyOnWriteArrayList<>();
+        var progressObserver = new StreamObserver<Rpc.Payment>() {
+            @Override
+            public void onNext(Rpc.Payment payment) {
+                updates.add(payment.getStatus());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+        var payment = service.payInvoiceAsync("lnbc1000", 1, ByteString.EMPTY, progressObserver)
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(1, payment.getHtlcsCount());
+        assertEquals(List.of(Rpc.Payment.PaymentStatus.IN_FLIGHT, Rpc.Payment.PaymentStatus.IN_FLIGHT,
+                Rpc.Payment.PaymentStatus.SUCCEEDED), updates);
+
+        var cancellation = service.cancelInvoiceAsync(ByteString.EMPTY);
+        var e = assertThrows(ExecutionException.class, () -> cancellation.get(10, TimeUnit.SECONDS));
+        assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(e.getCause()).getCode());
+    }
+}
@@ -0,0 +1,265 @@
+package lightningtrade;
+
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import lnrpc.LightningGrpc;
+import lnrpc.Rpc;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import routerrpc.RouterGrpc;
+import routerrpc.RouterOuterClass;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaymentRacerTest {
+    private static final String A = "0a", B = "0b", C = "0c", D = "0d", E = "0e";
+    private static final String PAYMENT_HASH = "11".repeat(32);
+    private static final Set<Long> OUTGOING_CHANNELS = Set.of(1L, 3L, 5L);
+    private static final Set<String> LAST_HOPS = Set.of(B, C, E);
+
+    private Server server;
+    private ManagedChannel channel;
+    private ChannelGraphCache graphCache;
+    // The first hops of the routes probed, those whose probes reach the destination (or falsely claim to) & the pair
+    // success probabilities:
+    private final List<String> probedHops = new CopyOnWriteArrayList<>();
+    private final CountDownLatch probeCancelled = new CountDownLatch(1);
+    private volatile Set<String> reachingHops = Set.of(C);
+    private volatile Set<String> misreportingHops = Set.of();
+    private volatile Map<String, Double> probabilities = Map.of();
+    private volatile Rpc.Route paidRoute;
+    private volatile Rpc.PayReq payReq = Rpc.PayReq.newBuilder()
+            .setDestination(D)
+            .setPaymentHash(PAYMENT_HASH)
+            .setNumMsat(1_000_000)
+            .setCltvExpiry(18)
+            .build();
+
+    @BeforeEach
+    void startServer() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        server = InProcessServerBuilder.forName(name).directExecutor()
+                .addService(new LightningGrpc.LightningImplBase() {
+                    @Override
+                    public void decodePayReq(Rpc.PayReqString request, StreamObserver<Rpc.PayReq> responseObserver) {
+                        responseObserver.onNext(payReq);
+                        responseObserver.onCompleted();
+                    }
+                })
+                .addService(new RouterGrpc.RouterImplBase() {
+                    @Override
+                    public void queryMissionControl(RouterOuterClass.QueryMissionControlRequest request,
+                                                    StreamObserver<RouterOuterClass.QueryMissionControlResponse> responseObserver) {
+                        // E has recently failed to forward to D, for any amount:
+                        responseObserver.onNext(RouterOuterClass.QueryMissionControlResponse.newBuilder()
+                                .addPairs(RouterOuterClass.PairHistory.newBuilder()
+                                        .setNodeFrom(bytes(E))
+                                        .setNodeTo(bytes(D))
+                                        .setHistory(RouterOuterClass.PairData.newBuilder()
+                                                .setFailTime(200)
+                                                .setSuccessTime(100)))
+                                .build());
+                        responseObserver.onCompleted();
+                    }
+
+                    @Override
+                    public void queryProbability(RouterOuterClass.QueryProbabilityRequest request,
+                                                 StreamObserver<RouterOuterClass.QueryProbabilityResponse> responseObserver) {
+                        String toNode = BaseEncoding.base16().lowerCase().encode(request.getToNode().toByteArray());
+                        responseObserver.onNext(RouterOuterClass.QueryProbabilityResponse.newBuilder()
+                                .setProbability(probabilities.getOrDefault(toNode, 0.5))
+                                .build());
+                        responseObserver.onCompleted();
+                    }
+
+                    @Override
+                    public void buildRoute(RouterOuterClass.BuildRouteRequest request,
+                                           StreamObserver<RouterOuterClass.BuildRouteResponse> responseObserver) {
+                        var route = Rpc.Route.newBuilder();
+                        for (ByteString pubkey : request.getHopPubkeysList()) {
+                            route.addHops(Rpc.Hop.newBuilder()
+                                    .setChanId(route.getHopsCount() == 0 ? request.getOutgoingChanId() : 0)
+                                    .setPubKey(BaseEncoding.base16().lowerCase().encode(pubkey.toByteArray())));
+                        }
+                        responseObserver.onNext(RouterOuterClass.BuildRouteResponse.newBuilder().setRoute(route).build());
+                        responseObserver.onCompleted();
+                    }
+
+                    @Override
+                    public void sendToRouteV2(RouterOuterClass.SendToRouteRequest request,
+                                              StreamObserver<Rpc.HTLCAttempt> responseObserver) {
+                        String firstHop = request.getRoute().getHops(0).getPubKey();
+                        if (request.getPaymentHash().equals(bytes(PAYMENT_HASH))) {
+                            paidRoute = request.getRoute();
+                            responseObserver.onNext(Rpc.HTLCAttempt.newBuilder()
+                                    .setStatus(Rpc.HTLCAttempt.HTLCStatus.SUCCEEDED)
+                                    .setRoute(request.getRoute())
+                                    .build());
+                            responseObserver.onCompleted();
+                            return;
+                        }
+                        probedHops.add(firstHop);
+                        if (reachingHops.contains(firstHop) || misreportingHops.contains(firstHop)) {
+                            // A misreporting first hop claims the destination's failure, without forwarding the HTLC:
+                            responseObserver.onNext(Rpc.HTLCAttempt.newBuilder()
+                                    .setStatus(Rpc.HTLCAttempt.HTLCStatus.FAILED)
+                                    .setFailure(Rpc.Failure.newBuilder()
+                                            .setCode(Rpc.Failure.FailureCode.INCORRECT_OR_UNKNOWN_PAYMENT_DETAILS)
+                                            .setFailureSourceIndex(reachingHops.contains(firstHop) ?
+                                                    request.getRoute().getHopsCount() : 1))
+                                    .build());
+                            responseObserver.onCompleted();
+                        } else if (firstHop.equals(B)) {
+                            // A probe stuck along the way, until cancelled:
+                            ((ServerCallStreamObserver<?>) responseObserver).setOnCancelHandler(probeCancelled::countDown);
+                        } else {
+                            responseObserver.onNext(Rpc.HTLCAttempt.newBuilder()
+                                    .setStatus(Rpc.HTLCAttempt.HTLCStatus.FAILED)
+                                    .setFailure(Rpc.Failure.newBuilder()
+                                            .setCode(Rpc.Failure.FailureCode.TEMPORARY_CHANNEL_FAILURE)
+                                            .setFailureSourceIndex(1))
+                                    .build());
+                            responseObserver.onCompleted();
+                        }
+                    }
+                })
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+
+        // Three routes from A to D, through B, C & E (in order of increasing fees):
+        graphCache = new ChannelGraphCache();
+        graphCache.apply(Rpc.ChannelGraph.newBuilder()
+                .addEdges(edge(1, A, B, 0))
+                .addEdges(edge(2, B, D, 1000))
+                .addEdges(edge(3, A, C, 0))
+                .addEdges(edge(4, C, D, 1100))
+                .addEdges(edge(5, A, E, 0))
+                .addEdges(edge(6, E, D, 1200))
+                .build());
+    }
+
+    @AfterEach
+    void stopServer() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    private static Rpc.ChannelEdge edge(long channelId, String node1, String node2, long baseFeeMsat) {
+        var policy = Rpc.RoutingPolicy.newBuilder().setFeeBaseMsat(baseFeeMsat).setTimeLockDelta(40);
+        return Rpc.ChannelEdge.newBuilder()
+                .setChannelId(channelId)
+                .setNode1Pub(node1)
+                .setNode2Pub(node2)
+                .setCapacity(10_000)
+                .setNode1Policy(policy)
+                .setNode2Policy(policy)
+                .build();
+    }
+
+    private static ByteString bytes(String hex) {
+        return ByteString.copyFrom(BaseEncoding.base16().lowerCase().decode(hex));
+    }
+
+    private PaymentRacer racer(int maxConcurrentProbes) {
+        return new PaymentRacer(channel, LightningServiceTest.NO_CREDENTIALS,
+                new LightningService(channel, LightningServiceTest.NO_CREDENTIALS), graphCache, A, maxConcurrentProbes);
+    }
+
+    @Test
+    void testFirstRouteToReachDestinationIsPaidAndRestCancelled() throws Exception {
+        var attempt = racer(3).pay("lnbc1", OUTGOING_CHANNELS, LAST_HOPS, 10_000, 1000).get(10, TimeUnit.SECONDS);
+
+        assertEquals(Rpc.HTLCAttempt.HTLCStatus.SUCCEEDED, attempt.getStatus());
+        assertEquals(3, paidRoute.getHops(0).getChanId());
+        assertEquals(List.of(C, D), List.of(paidRoute.getHops(0).getPubKey(), paidRoute.getHops(1).getPubKey()));
+        // The cheapest route through B is probed first but gets stuck, while the route through E is never probed:
+        assertEquals(List.of(B, C), probedHops);
+        assertTrue(probeCancelled.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testOnlyMostLikelyRoutesProbed() throws Exception {
+        probabilities = Map.of(B, 0.1, C, 0.9);
+        var attempt = racer(1).pay("lnbc1", OUTGOING_CHANNELS, LAST_HOPS, 10_000, 1000).get(10, TimeUnit.SECONDS);
+
+        assertEquals(Rpc.HTLCAttempt.HTLCStatus.SUCCEEDED, attempt.getStatus());
+        assertEquals(List.of(C), probedHops);
+
+        // No probe reaching the destination through C, nor any candidate through E, which Mission Control rules out:
+        reachingHops = Set.of();
+        probabilities = Map.of();
+        var e = assertThrows(ExecutionException.class,
+                () -> racer(3).pay("lnbc1", Set.of(), Set.of(C), 10_000, 1000).get(10, TimeUnit.SECONDS));
+        assertInstanceOf(NoSuchElementException.class, e.getCause());
+        e = assertThrows(ExecutionException.class,
+                () -> racer(3).pay("lnbc1", Set.of(), Set.of(E), 10_000, 1000).get(10, TimeUnit.SECONDS));
+        assertInstanceOf(NoSuchElementException.class, e.getCause());
+    }
+
+    @Test
+    void testFailureFromIntermediateNodeDoesNotWin() throws Exception {
+        // B (probed first) reports the destination's failure itself, before C's probe genuinely reaches it:
+        misreportingHops = Set.of(B);
+        probabilities = Map.of(B, 0.9, C, 0.5);
+        racer(2).pay("lnbc1", OUTGOING_CHANNELS, LAST_HOPS, 10_000, 1000).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(C, D), List.of(paidRoute.getHops(0).getPubKey(), paidRoute.getHops(1).getPubKey()));
+
+        reachingHops = Set.of();
+        var e = assertThrows(ExecutionException.class,
+                () -> racer(3).pay("lnbc1", Set.of(), Set.of(B), 10_000, 1000).get(10, TimeUnit.SECONDS));
+        assertInstanceOf(NoSuchElementException.class, e.getCause());
+    }
+
+    @Test
+    void testPrivateDestinationReachedThroughRouteHints() throws Exception {
+        // F has only a private channel from D, so is absent from the graph, but hinted at in the invoice:
+        String f = "0f";
+        payReq = payReq.toBuilder()
+                .setDestination(f)
+                .addRouteHints(Rpc.RouteHint.newBuilder()
+                        .addHopHints(Rpc.HopHint.newBuilder()
+                                .setNodeId(D)
+                                .setChanId(7)
+                                .setFeeBaseMsat(500)
+                                .setCltvExpiryDelta(40)))
+                .build();
+        var attempt = racer(3).pay("lnbc1", OUTGOING_CHANNELS, Set.of(), 10_000, 1000).get(10, TimeUnit.SECONDS);
+
+        assertEquals(Rpc.HTLCAttempt.HTLCStatus.SUCCEEDED, attempt.getStatus());
+        assertEquals(List.of(C, D, f), List.of(paidRoute.getHops(0).getPubKey(), paidRoute.getHops(1).getPubKey(),
+                paidRoute.getHops(2).getPubKey()));
+        assertEquals(List.of(List.of(B, D, f)), graphCache.findRoutes(A, f, 1_000_000, 18, 10_000, 1000, Set.of(),
+                Set.of(D), 1).stream().map(ChannelGraphCache.Route::hopPubkeys).collect(Collectors.toList()));
+    }
+
+    @Test
+    void testSelfPaymentNeverRacesEmptyRoute() throws Exception {
+        // Paying A's own invoice takes a circular route, but none can leave & return along channel 1 alone:
+        payReq = payReq.toBuilder().setDestination(A).build();
+        var e = assertThrows(ExecutionException.class,
+                () -> racer(3).pay("lnbc1", Set.of(1L), Set.of(B), 10_000, 1000).get(10, TimeUnit.SECONDS));
+        assertInstanceOf(NoSuchElementException.class, e.getCause());
+        assertEquals(List.of(), probedHops);
+
+        reachingHops = Set.of(B);
+        var attempt = racer(3).pay("lnbc1", Set.of(1L), Set.of(), 10_000, 1000).get(10, TimeUnit.SECONDS);
+        assertEquals(Rpc.HTLCAttempt.HTLCStatus.SUCCEEDED, attempt.getStatus());
+        assertEquals(List.of(B, D, C, A), paidRoute.getHopsList().stream().map(Rpc.Hop::getPubKey)
+                .collect(Collectors.toList()));
+    }
+}
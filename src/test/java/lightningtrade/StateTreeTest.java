@@ -0,0 +1,105 @@
+package lightningtrade;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StateTreeTest {
+    private static final AtomicInteger SUM_EVALUATIONS = new AtomicInteger();
+    private static final AtomicInteger PRODUCT_EVALUATIONS = new AtomicInteger();
+
+    @StateTree
+    interface Root {
+        Operands operands();
+
+        @DependsOn({"operands.x", "operands.y"})
+        default Integer sum() {
+            SUM_EVALUATIONS.incrementAndGet();
+            return operands().x() + operands().y();
+        }
+
+        @DependsOn({"sum", "operands.z"})
+        default Integer product() {
+            PRODUCT_EVALUATIONS.incrementAndGet();
+            return sum() * operands().z();
+        }
+
+        @DependsOn("operands.ready")
+        @DependsOn("product")
+        default String status() {
+            return operands().parent().product() != null ? "computed" : "waiting";
+        }
+    }
+
+    interface Operands extends Child<Root> {
+        Integer x();
+
+        Integer y();
+
+        int z();
+
+        @Event
+        void ready();
+    }
+
+    @Test
+    void testMemoizationAndInvalidation() {
+        var tree = new StateTree_Root();
+        assertEquals(DependencyGraph.Kind.DERIVED, tree.kind(StateTree_Root.PRODUCT));
+        assertFalse(tree.isAvailable("product"));
+        assertFalse(tree.isAvailable("status"));
+
+        tree.setOperandsX(2);
+        tree.setOperandsY(3);
+        assertTrue(tree.isAvailable("sum"));
+        assertFalse(tree.isAvailable("operands.z"));
+        assertFalse(tree.isAvailable("product"));
+        tree.set("operands.z", 4);
+        assertTrue(tree.isAvailable("status"));
+        SUM_EVALUATIONS.set(0);
+        PRODUCT_EVALUATIONS.set(0);
+        assertEquals(20, tree.product());
+        assertEquals(20, tree.product());
+        assertEquals(5, tree.sum());
+        assertEquals(1, SUM_EVALUATIONS.get());
+        assertEquals(1, PRODUCT_EVALUATIONS.get());
+
+        // Only the dependents of a changed input are invalidated:
+        tree.setOperandsZ(5);
+        assertTrue(tree.isCached("sum"));
+        assertFalse(tree.isCached("product"));
+        assertEquals(25, tree.get("product"));
+        assertEquals(1, SUM_EVALUATIONS.get());
+        assertEquals(2, PRODUCT_EVALUATIONS.get());
+
+        assertEquals("computed", tree.status());
+        assertFalse(tree.hasOccurred("operands.ready"));
+        tree.operands().ready();
+        assertTrue(tree.hasOccurred("operands.ready"));
+        assertFalse(tree.isCached("status"));
+        assertSame(tree, tree.operands().parent());
+        assertThrows(IllegalArgumentException.class, () -> tree.set("sum", 1));
+    }
+
+    @Test
+    void testTradeStateTree() {
+        var tree = new StateTree_TradeState();
+        assertEquals(DependencyGraph.Kind.ACTION, tree.kind(tree.index("seller.finalizesPayout")));
+        tree.setSellerSecret(ByteString.copyFrom(new byte[]{1, 2, 3}));
+        tree.setEscrowSecret1(ByteString.copyFrom(new byte[]{4, 5, 6}));
+        tree.setEscrowSecret2(ByteString.copyFrom(new byte[]{7, 8, 9}));
+
+        var payoutHash = tree.payoutHash();
+        assertEquals(ByteString.copyFrom(new byte[]{2, 15, 12}), tree.payoutPreimage());
+        assertTrue(tree.isCached("payoutHash"));
+        assertNotNull(tree.depositHash());
+
+        tree.setEscrowSecret2(ByteString.copyFrom(new byte[]{0, 0, 0}));
+        assertFalse(tree.isCached("payoutHash"));
+        assertTrue(tree.isCached("depositHash"));
+        assertNotEquals(payoutHash, tree.payoutHash());
+    }
+}
@@ -0,0 +1,126 @@
+package lightningtrade;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TradeJournalTest {
+    private static final Map<String, TradeJournal.Codec<?>> CODECS = Map.of(
+            "escrow.secret1", TradeJournal.Codec.BYTE_STRING,
+            "escrow.secret2", TradeJournal.Codec.BYTE_STRING);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testRecoveryOfConcurrentTrades() throws Exception {
+        try (var journal = TradeJournal.open(directory, CODECS)) {
+            var results = new ArrayList<ListenableFuture<Void>>();
+            IntStream.range(0, 100).parallel().forEach(i -> {
+                var tradeResults = new ArrayList<ListenableFuture<Void>>();
+                tradeResults.add(journal.recordSet("trade" + i, "escrow.secret1", secret(i)));
+                tradeResults.add(journal.recordSet("trade" + i, "escrow.secret2", secret(i + 1)));
+                tradeResults.add(journal.recordOccurrence("trade" + i, "escrow.receivesPendingBuyerDeposit"));
+                if (i % 2 == 0) {
+                    tradeResults.add(journal.recordFinished("trade" + i));
+                }
+                synchronized (results) {
+                    results.addAll(tradeResults);
+                }
+            });
+            Futures.allAsList(results).get();
+            assertThrows(IllegalArgumentException.class, () -> journal.recordSet("trade0", "seller.secret", secret(0)));
+        }
+        // A torn write at the tail is discarded:
+        try (var segments = Files.list(directory)) {
+            var segment = segments.filter(p -> p.getFileName().toString().startsWith("segment")).findFirst().get();
+            Files.write(segment, new byte[]{0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+        }
+
+        try (var journal = TradeJournal.open(directory, CODECS)) {
+            assertEquals(IntStream.range(0, 100).filter(i -> i % 2 == 1).mapToObj(i -> "trade" + i)
+                    .collect(Collectors.toSet()), journal.recoveredTradeIds());
+            var graph = DependencyGraph.create(TradeState.class);
+            journal.restore("trade7", graph::set, graph::fire);
+            assertEquals(secret(7), graph.root().escrow().secret1());
+            assertEquals(secret(8), graph.root().escrow().secret2());
+            assertTrue(graph.hasOccurred("escrow.receivesPendingBuyerDeposit"));
+            journal.recordFinished("trade7").get();
+        }
+        try (var journal = TradeJournal.open(directory, CODECS)) {
+            assertFalse(journal.recoveredTradeIds().contains("trade7"));
+            assertEquals(49, journal.recoveredTradeIds().size());
+        }
+    }
+
+    @Test
+    void testRecordsAppendedWhileClosingAreCompleted() throws Exception {
+        for (int trial = 0; trial < 20; trial++) {
+            var journal = TradeJournal.open(directory.resolve("trial" + trial), CODECS);
+            var results = new ConcurrentLinkedQueue<ListenableFuture<Void>>();
+            var appender = new Thread(() -> {
+                try {
+                    for (int i = 0; ; i++) {
+                        results.add(journal.recordOccurrence("trade" + i, "escrow.receivesPendingBuyerDeposit"));
+                    }
+                } catch (IllegalStateException e) {
+                    // Closed.
+                }
+            });
+            appender.start();
+            Thread.sleep(5);
+            journal.close();
+            appender.join();
+            // Every record accepted by the journal is either durable or failed, none left pending forever:
+            for (var result : results) {
+                assertDoesNotThrow(() -> result.get(10, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    void testSnapshotsBoundRecoveredHistory() throws Exception {
+        try (var journal = TradeJournal.open(directory, CODECS, 1024)) {
+            for (int i = 0; i < 200; i++) {
+                journal.recordSet("active", "escrow.secret1", secret(i));
+                journal.recordSet("finished" + i, "escrow.secret1", secret(i));
+                journal.recordFinished("finished" + i).get();
+            }
+        }
+        assertTrue(fileNames().stream().anyMatch(name -> name.startsWith("snapshot")));
+        assertTrue(fileNames().size() <= 3, "Old segments should be deleted: " + fileNames());
+
+        try (var journal = TradeJournal.open(directory, CODECS, 1024)) {
+            assertEquals(Set.of("active"), journal.recoveredTradeIds());
+            var graph = DependencyGraph.create(TradeState.class);
+            journal.restore("active", graph::set, graph::fire);
+            assertEquals(secret(199), graph.get("escrow.secret1"));
+        }
+    }
+
+    private Set<String> fileNames() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.map(p -> p.getFileName().toString()).collect(Collectors.toSet());
+        }
+    }
+
+    private static ByteString secret(int i) {
+        return ByteString.copyFrom(new byte[]{(byte) i, (byte) (i >> 8), 7});
+    }
+}
@@ -0,0 +1,124 @@
+package lightningtrade;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TradeSchedulerTest {
+    @StateTree
+    interface Trade {
+        Integer amount();
+
+        @Event
+        void receivesDeposit();
+
+        @Action
+        @DependsOn({"amount", "receivesDeposit"})
+        void sendsInvoice();
+
+        @Event
+        void getsPayment();
+
+        @Action
+        @DependsOn({"sendsInvoice", "getsPayment"})
+        void settles();
+    }
+
+    @Test
+    void testManyTradesSuspendOnEvents() throws Exception {
+        runManyTrades(() -> DependencyGraph.create(Trade.class));
+    }
+
+    @Test
+    void testManyGeneratedStateTreesSuspendOnEvents() throws Exception {
+        runManyTrades(StateTree_Trade::new);
+    }
+
+    private static void runManyTrades(Supplier<? extends StateGraph<Trade>> graphFactory) throws Exception {
+        var invoicesSent = new ConcurrentHashMap<Integer, Boolean>();
+        var settlement = SettableFuture.create();
+        Map<String, TradeScheduler.ActionHandler<Trade>> handlers = Map.of(
+                "sendsInvoice", trade -> {
+                    invoicesSent.put(trade.amount(), true);
+                    return Futures.immediateFuture(null);
+                },
+                "settles", trade -> settlement);
+
+        try (var scheduler = new TradeScheduler<>(graphFactory, handlers, 4)) {
+            int tradeCount = 2000;
+            var completions = new ArrayList<ListenableFuture<Void>>();
+            for (int i = 0; i < tradeCount; i++) {
+                int amount = i;
+                completions.add(scheduler.start("trade" + i, graph -> graph.set("amount", amount)));
+            }
+            assertEquals(Set.of("receivesDeposit", "getsPayment"), scheduler.pendingEvents("trade0").get());
+            var deposits = new ArrayList<ListenableFuture<Void>>();
+            for (int i = 0; i < tradeCount; i++) {
+                deposits.add(scheduler.fire("trade" + i, "receivesDeposit"));
+            }
+            Futures.allAsList(deposits).get();
+            assertEquals(Set.of("getsPayment"), scheduler.pendingEvents("trade0").get());
+            assertEquals(tradeCount, invoicesSent.size());
+            assertEquals(tradeCount, scheduler.activeTradeCount());
+
+            for (int i = 0; i < tradeCount; i++) {
+                scheduler.fireAfter("trade" + i, "getsPayment", 10, TimeUnit.MILLISECONDS);
+            }
+            var all = Futures.allAsList(completions);
+            // The trades stay suspended on the in-flight settlement, without blocking any event loop:
+            assertThrows(TimeoutException.class, () -> all.get(200, TimeUnit.MILLISECONDS));
+            assertEquals(Set.of(), scheduler.pendingEvents("trade0").get());
+            settlement.set(null);
+            all.get(10, TimeUnit.SECONDS);
+            assertEquals(0, scheduler.activeTradeCount());
+        }
+    }
+
+    @Test
+    void testFailedActionFailsTrade() throws Exception {
+        Map<String, TradeScheduler.ActionHandler<Trade>> handlers = Map.of(
+                "sendsInvoice", trade -> Futures.immediateFailedFuture(new IllegalStateException("Node offline")));
+        try (var scheduler = new TradeScheduler<>(Trade.class, handlers, 1)) {
+            var completion = scheduler.start("trade", graph -> graph.set("amount", 1));
+            scheduler.fire("trade", "receivesDeposit").get();
+            var e = assertThrows(ExecutionException.class, () -> completion.get(10, TimeUnit.SECONDS));
+            assertEquals("Node offline", e.getCause().getMessage());
+            assertThrows(IllegalArgumentException.class, () -> scheduler.fire("trade", "receivesDeposit"));
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> new TradeScheduler<>(Trade.class, Map.of("getsPayment", trade -> Futures.immediateFuture(null)), 1));
+    }
+
+    @Test
+    void testFailedTaskFailsTrade() throws Exception {
+        Map<String, TradeScheduler.ActionHandler<Trade>> handlers = Map.of(
+                "sendsInvoice", trade -> Futures.immediateFuture(null));
+        try (var scheduler = new TradeScheduler<>(Trade.class, handlers, 1)) {
+            // An initialisation which throws fails the trade, rather than leaving it active forever:
+            var completion = scheduler.start("trade1", graph -> graph.set("amount", "one"));
+            var e = assertThrows(ExecutionException.class, () -> completion.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, e.getCause());
+            assertEquals(0, scheduler.activeTradeCount());
+
+            // Likewise any event or input which cannot be applied:
+            var completion2 = scheduler.start("trade2", graph -> graph.set("amount", 2));
+            e = assertThrows(ExecutionException.class, () -> scheduler.fire("trade2", "amount").get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, e.getCause());
+            e = assertThrows(ExecutionException.class, () -> completion2.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, e.getCause());
+            assertEquals(0, scheduler.activeTradeCount());
+        }
+    }
+}
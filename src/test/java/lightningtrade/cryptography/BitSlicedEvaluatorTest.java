@@ -0,0 +1,58 @@
+package lightningtrade.cryptography;
+
+import com.google.common.primitives.Longs;
+import org.junit.jupiter.api.Test;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BitSlicedEvaluatorTest {
+    @Test
+    void testAdder() {
+        var evaluator = new BitSlicedEvaluator(GarbledCircuitTest.createAdder(64));
+        var rnd = new Random(0);
+        long[] a = new long[64], b = new long[64], inputs = new long[128];
+        for (int lane = 0; lane < 64; lane++) {
+            a[lane] = rnd.nextLong();
+            b[lane] = rnd.nextLong();
+            // The adder takes its inputs and gives its outputs in big-endian bit order:
+            for (int i = 0; i < 64; i++) {
+                inputs[i] |= (a[lane] >>> 63 - i & 1) << lane;
+                inputs[i + 64] |= (b[lane] >>> 63 - i & 1) << lane;
+            }
+        }
+        long[] outputs = evaluator.evaluate(inputs, 0);
+        for (int lane = 0; lane < 64; lane++) {
+            long sum = 0;
+            for (int i = 0; i < 64; i++) {
+                sum |= (outputs[i] >>> lane & 1) << 63 - i;
+            }
+            assertEquals(a[lane] + b[lane], sum);
+        }
+    }
+
+    @Test
+    void testAgainstGarbledCircuit() throws Exception {
+        var program = GarbledCircuitTest.createAdder(64);
+        var rnd = new Random(1);
+        var inputSets = new ArrayList<BitVector>();
+        for (int lane = 0; lane < 8; lane++) {
+            inputSets.add(BitVector.copyFrom(Longs.toByteArray(rnd.nextLong()))
+                    .concat(BitVector.copyFrom(Longs.toByteArray(rnd.nextLong()))));
+        }
+        var expectedOutputs = new BitSlicedEvaluator(program).evaluate(inputSets, 0);
+
+        var cipher = new GarbledCircuit.AesHashCipher(new byte[16]);
+        var secretOffset = GarbledBit.copyFrom(new byte[]{-1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0});
+        var garbledBitRnd = SecureRandom.getInstance("SHA1PRNG");
+        garbledBitRnd.setSeed(new byte[0]);
+        for (int lane = 0; lane < inputSets.size(); lane++) {
+            var generator = new GarbledCircuit.Generator(program, secretOffset, cipher, BitVector.empty(), null, garbledBitRnd);
+            var result = generator.generate().run(generator.garbleInputs(inputSets.get(lane), 0));
+            assertEquals(expectedOutputs.get(lane), generator.ungarbleOutputs(result.outputs()));
+        }
+    }
+}
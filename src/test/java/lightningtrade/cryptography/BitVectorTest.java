@@ -0,0 +1,100 @@
+package lightningtrade.cryptography;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BitVectorTest {
+    @Test
+    void testUnalignedConcatAndSubList() {
+        var rnd = new Random(0);
+        for (int trial = 0; trial < 200; trial++) {
+            var x = randomBits(rnd, rnd.nextInt(200));
+            var y = randomBits(rnd, rnd.nextInt(200));
+            int from = rnd.nextInt(x.size() + 1), to = from + rnd.nextInt(x.size() - from + 1);
+            var expected = ImmutableList.<Boolean>builder().addAll(x.subList(from, to)).addAll(y).build();
+
+            for (BitVector left : List.of(bytesBacked(x), wordsBacked(x))) {
+                for (BitVector right : List.of(bytesBacked(y), wordsBacked(y))) {
+                    BitVector result = left.subList(from, to).concat(right.subList(0, y.size()));
+                    assertEquals(expected, ImmutableList.copyOf(result));
+                    assertEquals(bytesBacked(expected), result);
+                    assertArrayEquals(bytesBacked(expected).bytes(), result.bytes());
+                    for (int i = 0; i <= result.size(); i += 1 + rnd.nextInt(70)) {
+                        assertEquals(bytesBacked(expected).getLong(i), result.getLong(i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testBulkOperations() {
+        var rnd = new Random(1);
+        for (int trial = 0; trial < 100; trial++) {
+            int size = rnd.nextInt(300);
+            var x = randomBits(rnd, size + 5);
+            var y = randomBits(rnd, size);
+            BitVector xs = bytesBacked(x).subList(5, size + 5), ys = wordsBacked(y);
+            var expectedXor = new ArrayList<Boolean>();
+            var expectedAnd = new ArrayList<Boolean>();
+            for (int i = 0; i < size; i++) {
+                expectedXor.add(xs.get(i) ^ ys.get(i));
+                expectedAnd.add(xs.get(i) & ys.get(i));
+            }
+            assertEquals(expectedXor, xs.xor(ys));
+            assertEquals(expectedAnd, ys.and(xs));
+            assertEquals(expectedXor.stream().filter(b -> b).count(), xs.xor(ys).bitCount());
+        }
+    }
+
+    @Test
+    void testBuilder() {
+        var rnd = new Random(2);
+        var builder = BitVector.builder();
+        var expected = new ArrayList<Boolean>();
+        for (int trial = 0; trial < 100; trial++) {
+            if (rnd.nextBoolean()) {
+                boolean bit = rnd.nextBoolean();
+                builder.add(bit);
+                expected.add(bit);
+            } else {
+                long bits = rnd.nextLong();
+                int n = rnd.nextInt(65);
+                builder.addBits(bits, n);
+                for (int i = n; i-- > 0; ) {
+                    expected.add((bits >>> i & 1) != 0);
+                }
+            }
+        }
+        assertEquals(expected, builder.build());
+        assertEquals(expected, expected.stream().collect(BitVector.toBitVector()));
+        assertEquals(expected, expected.parallelStream().collect(BitVector.toBitVector()));
+    }
+
+    private static List<Boolean> randomBits(Random rnd, int size) {
+        var bits = new ArrayList<Boolean>(size);
+        for (int i = 0; i < size; i++) {
+            bits.add(rnd.nextBoolean());
+        }
+        return bits;
+    }
+
+    private static BitVector bytesBacked(List<Boolean> bits) {
+        return BitVector.copyFrom(bits);
+    }
+
+    private static BitVector wordsBacked(List<Boolean> bits) {
+        long[] words = new long[(bits.size() + 63) / 64 + 1];
+        for (int i = 0; i < bits.size(); i++) {
+            words[i / 64 + 1] |= bits.get(i) ? Long.MIN_VALUE >>> i % 64 : 0;
+        }
+        return BitVector.copyFrom(words, bits.size() + 64).subList(64, bits.size() + 64);
+    }
+}
@@ -9,16 +9,24 @@ import org.junit.jupiter.api.Test;
 import securecompute.algebra.BooleanField;
 import securecompute.algebra.FiniteField;
 import securecompute.algebra.polynomial.BasePolynomialExpression;
+import securecompute.algebra.polynomial.PolynomialExpression;
 import securecompute.circuit.AlgebraicFunction;
 import securecompute.circuit.ArithmeticCircuit;
 import securecompute.circuit.BooleanFunction;
 import securecompute.circuit.cryptography.Sha2;
 
 import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.SplittableRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 import static lightningtrade.cryptography.Program.OutputScope.*;
+import static org.junit.jupiter.api.Assertions.*;
 
 class BooleanFunctionConverterTest {
     private static final String SHA256_IV_HEX = "6a09e667 bb67ae85 3c6ef372 a54ff53a 510e527f 9b05688c 1f83d9ab 5be0cd19";
@@ -40,6 +48,102 @@ class BooleanFunctionConverterTest {
         System.out.println(program.outputIndices());
     }
 
+    @Test
+    void testBuildProgramWithSharedSubtermsAndBalancedTrees() {
+        // Long products & sums of all the inputs, with the products & the input variables repeated across the terms:
+        var product = BasePolynomialExpression.<Boolean>product(variables(0, 8));
+        var product01 = x(0).multiply(x(1));
+        var product23 = x(2).multiply(x(3));
+        var fn = function(8, 5, 8, List.of(
+                sum(product, x(8)),
+                sum(BasePolynomialExpression.sum(variables(0, 8)), x(9)),
+                sum(product, x(0), x(10)),
+                sum(product01, product23, x(11)),
+                sum(product01, product23, x(4), x(12))
+        ));
+
+        var plain = new BooleanFunctionConverter().buildProgram(fn);
+        var shared = new BooleanFunctionConverter().shareSubterms(true).buildProgram(fn);
+        var balanced = new BooleanFunctionConverter().balancedTrees(true).buildProgram(fn);
+        var both = new BooleanFunctionConverter().shareSubterms(true).balancedTrees(true).buildProgram(fn);
+
+        assertTrue(shared.rawGates().size() < plain.rawGates().size());
+        assertTrue(both.rawGates().size() < balanced.rawGates().size());
+        // The deepest term, the product of the 8 inputs plus x0 (& the constant left in place of the output variable), has
+        // depth 7 + 2 as chains, but only 3 + 1 as trees:
+        assertEquals(9, depth(plain));
+        assertEquals(4, depth(balanced));
+        assertEquals(4, depth(both));
+
+        var rnd = new SplittableRandom(1234);
+        long[] x = LongStream.generate(rnd::nextLong).limit(8).toArray();
+        long expectedProduct = LongStream.of(x).reduce(-1, (a, b) -> a & b);
+        long[] expected = {
+                expectedProduct,
+                LongStream.of(x).reduce(0, (a, b) -> a ^ b),
+                expectedProduct ^ x[0],
+                x[0] & x[1] ^ x[2] & x[3],
+                x[0] & x[1] ^ x[2] & x[3] ^ x[4]
+        };
+        for (var program : List.of(plain, shared, balanced, both)) {
+            assertArrayEquals(expected, new BitSlicedEvaluator(program).evaluate(x, 0));
+            assertArrayEquals(expected, new BitSlicedEvaluator(Simplifier.simplify(program)).evaluate(x, 0));
+        }
+    }
+
+    @Test
+    void testLinearityInLastVariable() {
+        // x*x + y is linear in y (and in x, since x^2 = x over GF(2)), so both define y = x:
+        for (var term : List.of(sum(x(0).multiply(x(0)), x(1)), sum(x(0), x(1).multiply(x(1))))) {
+            var program = new BooleanFunctionConverter().buildProgram(function(1, 1, 2, List.of(term)));
+            long[] x = {0x0123456789abcdefL};
+            assertArrayEquals(x, new BitSlicedEvaluator(program).evaluate(x, 0));
+        }
+
+        // The gradient of x*y (+ y) in the last variable y is x (+ 1), which is not constant:
+        for (var term : List.of(x(0).multiply(x(1)), sum(x(0).multiply(x(1)), x(1)))) {
+            var e = assertThrows(IllegalArgumentException.class,
+                    () -> new BooleanFunctionConverter().buildProgram(function(1, 1, 2, List.of(term))));
+            assertTrue(e.getMessage().contains("variable gradient"), e.getMessage());
+        }
+
+        // The gradient of x + y + y in the last variable y is zero, as it is of x + y*0:
+        for (var term : List.of(sum(x(0), x(1), x(1)), sum(x(0), x(1).multiply(BasePolynomialExpression.constant(false))))) {
+            var e = assertThrows(IllegalArgumentException.class,
+                    () -> new BooleanFunctionConverter().buildProgram(function(1, 1, 2, List.of(term))));
+            assertTrue(e.getMessage().contains("zero gradient"), e.getMessage());
+        }
+    }
+
+    @Test
+    void testLinearityCheckIsLinearTime() {
+        // A product of n factors has a formal partial derivative of size O(n^2), which the check must not build, so
+        // this takes well under a second, rather than minutes:
+        int n = 50_000;
+        var term = sum(BasePolynomialExpression.product(variables(0, n)), x(n));
+        var program = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> new BooleanFunctionConverter().buildProgram(function(n, 1, n, List.of(term))));
+        assertTrue(program.rawGates().size() <= 4 * n, "Program size: " + program.rawGates().size());
+    }
+
+    @Test
+    void testLinearityCheckOfSha256SizedFunction() {
+        // Some 100,000 small terms, about as many as the parity-check terms of the SHA-256 compression function, each
+        // defining a new variable from the last three as in a ripple-carry adder. Once warmed up, checking all of them
+        // takes a few tens of milliseconds:
+        int n = 100_000;
+        var terms = new ArrayList<PolynomialExpression<Boolean>>(n);
+        for (int i = 3; i < n + 3; i++) {
+            terms.add(sum(x(i - 1).multiply(x(i - 2)), x(i - 3), x(i)));
+        }
+        terms.forEach(BooleanFunctionConverter::checkLinearInLastVariable);
+        assertTimeout(Duration.ofMillis(250), () -> {
+            for (int i = 0; i < n; i++) {
+                assertEquals(i + 3, BooleanFunctionConverter.checkLinearInLastVariable(terms.get(i)));
+            }
+        });
+    }
+
     @Test
     void testSha256Program() {
         String initialStateHex = "00" + BLOCK_TEMPLATE_HEX + "8000000000000000" + SHA256_IV_HEX + SHA256_IV_HEX;
@@ -145,6 +249,49 @@ class BooleanFunctionConverterTest {
                 .build();
     }
 
+    private static PolynomialExpression<Boolean> x(int index) {
+        return BasePolynomialExpression.variable(index);
+    }
+
+    @SafeVarargs
+    private static PolynomialExpression<Boolean> sum(PolynomialExpression<Boolean>... subTerms) {
+        return BasePolynomialExpression.sum(List.of(subTerms));
+    }
+
+    private static List<PolynomialExpression<Boolean>> variables(int from, int to) {
+        return IntStream.range(from, to).mapToObj(BooleanFunctionConverterTest::x).collect(Collectors.toList());
+    }
+
+    // A function with no auxiliary variables, given by terms (in order) which are each linear in their last variable:
+    private static BooleanFunction function(int inputLength, int outputLength, int degree,
+                                            List<PolynomialExpression<Boolean>> terms) {
+        return (BooleanFunction) AlgebraicFunction.builder(BooleanField.INSTANCE)
+                .degree(degree).inputLength(inputLength).auxiliaryLength(0).outputLength(outputLength)
+                .baseFn(inputs -> {
+                    var values = new ArrayList<>(inputs);
+                    for (var term : terms) {
+                        int index = values.size();
+                        values.add(term.evaluate(BooleanField.INSTANCE, i -> i < index && values.get(i)));
+                    }
+                    return values.subList(inputLength, values.size());
+                })
+                .parityCheckTerms(ImmutableList.copyOf(terms))
+                .build();
+    }
+
+    private static int depth(Program program) {
+        var rawGates = program.rawGates();
+        int[] depths = new int[rawGates.size()];
+        for (int i = 0; i < depths.length; i++) {
+            var inputOffsets = rawGates.get(i).inputOffsets();
+            for (int offset : inputOffsets) {
+                depths[i] = Math.max(depths[i], depths[i - offset]);
+            }
+            depths[i] += inputOffsets.size() == 2 ? 1 : 0;
+        }
+        return program.outputIndices().stream().mapToInt(i -> depths[i]).max().orElse(0);
+    }
+
     private static BooleanFunction unusedOutputsFn() {
         return BooleanFunction.builder().inputLength(833).degree(-1).parityCheckTerms(ImmutableList.of()).simpleBaseFn().build();
     }
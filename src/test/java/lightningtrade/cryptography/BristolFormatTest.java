@@ -0,0 +1,93 @@
+package lightningtrade.cryptography;
+
+import lightningtrade.cryptography.Program.GateData;
+import org.junit.jupiter.api.Test;
+import securecompute.circuit.BooleanFunction;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static lightningtrade.cryptography.Program.GateType.*;
+import static lightningtrade.cryptography.Program.OutputScope.KNOWN_TO_NEITHER;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BristolFormatTest {
+    // 1-bit full adder: inputs a, b, c_in; outputs sum, c_out.
+    private static final String FULL_ADDER = "" +
+            "7 10\n" +
+            "3 1 1 1\n" +
+            "2 1 1\n" +
+            "\n" +
+            "2 1 0 1 3 XOR\n" +
+            "2 1 2 3 8 XOR\n" +
+            "2 1 0 2 4 XOR\n" +
+            "2 1 3 4 5 AND\n" +
+            "1 1 5 6 INV\n" +
+            "1 1 6 7 INV\n" +
+            "2 1 0 7 9 XOR\n";
+
+    @Test
+    void testRead() throws Exception {
+        var program = BristolFormat.read(new StringReader(FULL_ADDER));
+        program.gates().forEach(System.out::println);
+        System.out.println(program.outputIndices());
+
+        assertEquals(3, program.inputIndices().size());
+        assertEquals(1, program.gates().stream().filter(g -> g.type() == AND).count());
+        assertEquals(2, program.outputIndices().size());
+    }
+
+    @Test
+    void testRoundTrip() throws Exception {
+        var orProgram = Simplifier.simplify(new BooleanFunctionConverter().buildProgram(BooleanFunction.OR));
+        var fullAdder = BristolFormat.read(new StringReader(FULL_ADDER));
+        for (var program : List.of(orProgram, fullAdder, allGateTypesProgram())) {
+            var writer = new StringWriter();
+            BristolFormat.write(program, writer);
+            var readProgram = BristolFormat.read(new StringReader(writer.toString()));
+
+            assertEquals(program.inputIndices().size(), readProgram.inputIndices().size());
+            assertEquals(program.outputIndices().size(), readProgram.outputIndices().size());
+            // Any permutation of the wires or flipped negations would change the outputs for some inputs:
+            var rnd = new SplittableRandom(1234);
+            for (int i = 0; i < 16; i++) {
+                long[] inputs = LongStream.generate(rnd::nextLong).limit(program.inputIndices().size()).toArray();
+                assertArrayEquals(new BitSlicedEvaluator(program).evaluate(inputs, 0),
+                        new BitSlicedEvaluator(readProgram).evaluate(inputs, 0));
+            }
+        }
+    }
+
+    @Test
+    void testFullAdderEvaluation() throws Exception {
+        var program = BristolFormat.read(new StringReader(FULL_ADDER));
+        var rnd = new SplittableRandom(5678);
+        long a = rnd.nextLong(), b = rnd.nextLong(), c = rnd.nextLong();
+        assertArrayEquals(new long[]{a ^ b ^ c, a & b | (a ^ b) & c},
+                new BitSlicedEvaluator(program).evaluate(new long[]{a, b, c}, 0));
+    }
+
+    // Every (non-random) gate type, with inputs taken from various earlier gates, and all the gates as outputs:
+    private static Program allGateTypesProgram() {
+        var builder = Program.builder();
+        for (int i = 0; i < 3; i++) {
+            builder.addGate(GateData.create(INPUT, KNOWN_TO_NEITHER));
+        }
+        builder.addGate(GateData.create(FALSE, KNOWN_TO_NEITHER));
+        builder.addGate(GateData.create(TRUE, KNOWN_TO_NEITHER));
+        builder.addGate(GateData.create(IDENTITY, KNOWN_TO_NEITHER, 3));
+        builder.addGate(GateData.create(NOT, KNOWN_TO_NEITHER, 5));
+        int index = 7;
+        for (var type : List.of(XOR, XNOR, AND, NOT_AND, AND_NOT, NOR, NAND, OR_NOT, NOT_OR, OR)) {
+            builder.addGate(GateData.create(type, KNOWN_TO_NEITHER, 1 + index % 3, 2 + index % 5));
+            index++;
+        }
+        return builder.outputIndices(IntStream.range(3, index).boxed().collect(Collectors.toList())).build();
+    }
+}
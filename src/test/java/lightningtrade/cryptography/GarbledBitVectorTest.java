@@ -0,0 +1,96 @@
+package lightningtrade.cryptography;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GarbledBitVectorTest {
+    @Test
+    void testZerosConcatAndSubList() {
+        var rnd = new Random(0);
+        assertTrue(GarbledBitVector.zeros(5).stream().allMatch(GarbledBit.zero()::equals));
+        for (int trial = 0; trial < 50; trial++) {
+            var x = randomBits(rnd, rnd.nextInt(20));
+            var y = randomBits(rnd, rnd.nextInt(20));
+            int from = rnd.nextInt(x.size() + 1), to = from + rnd.nextInt(x.size() - from + 1);
+            var expected = ImmutableList.<GarbledBit>builder().addAll(x.subList(from, to)).addAll(y).build();
+
+            var result = GarbledBitVector.copyFrom(x).subList(from, to).concat(GarbledBitVector.copyFrom(y));
+            assertEquals(expected, result);
+            assertEquals(GarbledBitVector.copyFrom(expected), result);
+            assertEquals(expected.hashCode(), result.hashCode());
+            assertEquals(result, GarbledBitVector.copyFrom(result.bytes()));
+        }
+    }
+
+    @Test
+    void testBulkOperations() {
+        var rnd = new Random(1);
+        var x = randomBits(rnd, 40);
+        var y = randomBits(rnd, 40);
+        var xVector = GarbledBitVector.copyFrom(x);
+        var yVector = GarbledBitVector.copyFrom(y);
+
+        var xor = xVector.subList(10, 30).xor(yVector.subList(5, 25));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(x.get(i + 10).xor(y.get(i + 5)), xor.get(i));
+            assertEquals(x.get(i + 10).selectBit(), xVector.subList(10, 30).selectBits().getAsBoolean(i));
+        }
+        var bytes = xVector.subList(3, 7).bytes();
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(x.get(i + 3).bytes(), Arrays.copyOfRange(bytes, i * 16, i * 16 + 16));
+        }
+
+        // Word-level access & update of single labels, as used on the garbling hot paths:
+        var words = GarbledBitVector.copyFrom(x).subList(5, 15);
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(x.get(i + 5).bytes(), words.bytes(i));
+            assertEquals(x.get(i + 5).selectBit(), words.selectBit(i));
+            words.putWords(i, words.highWord(i) ^ yVector.highWord(i), words.lowWord(i) ^ yVector.lowWord(i));
+            assertEquals(x.get(i + 5).xor(y.get(i)), words.get(i));
+        }
+    }
+
+    @Test
+    void testLabelArena() {
+        var rnd = new Random(2);
+        try (var arena = new LabelArena(16)) {
+            for (int batch = 0; batch < 3; batch++) {
+                var expected = new ArrayList<List<GarbledBit>>();
+                var vectors = new ArrayList<GarbledBitVector>();
+                for (int i = 0; i < 10; i++) {
+                    var x = randomBits(rnd, rnd.nextInt(20));
+                    expected.add(x);
+                    vectors.add(arena.copyOf(x));
+                }
+                assertTrue(arena.allocate(3).stream().allMatch(GarbledBit.zero()::equals));
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(expected.get(i), vectors.get(i));
+                    assertEquals(GarbledBitVector.copyFrom(expected.get(i)), vectors.get(i));
+                    assertArrayEquals(GarbledBitVector.copyFrom(expected.get(i)).bytes(), vectors.get(i).bytes());
+                }
+                long allocatedBytes = arena.allocatedBytes();
+                arena.reset();
+                assertTrue(arena.allocatedBytes() <= allocatedBytes);
+            }
+        }
+    }
+
+    private static List<GarbledBit> randomBits(Random rnd, int length) {
+        var bits = new ArrayList<GarbledBit>(length);
+        for (int i = 0; i < length; i++) {
+            var bytes = new byte[16];
+            rnd.nextBytes(bytes);
+            bits.add(GarbledBit.copyFrom(bytes));
+        }
+        return bits;
+    }
+}
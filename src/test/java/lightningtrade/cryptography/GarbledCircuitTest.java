@@ -15,6 +15,8 @@ import java.util.stream.Stream;
 import static lightningtrade.cryptography.Program.GateType.*;
 import static lightningtrade.cryptography.Program.OutputScope.KNOWN_TO_BOTH;
 import static lightningtrade.cryptography.Program.OutputScope.KNOWN_TO_NEITHER;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class GarbledCircuitTest {
     private static Program TEST_PROGRAM = Program.builder()
@@ -25,6 +27,17 @@ class GarbledCircuitTest {
             .build();
     private static Program TEST_8_BIT_ADDER = createAdder(8);
     private static Program TEST_64_BIT_ADDER = createAdder(64);
+    private static Program TEST_FULL_ADDER = Program.builder()
+            .addGate(GateData.create(INPUT, KNOWN_TO_NEITHER)) // a
+            .addGate(GateData.create(INPUT, KNOWN_TO_NEITHER)) // b
+            .addGate(GateData.create(INPUT, KNOWN_TO_NEITHER)) // c
+            .addGate(GateData.create(XOR, KNOWN_TO_NEITHER, 1, 3)) // c ^ a
+            .addGate(GateData.create(XOR, KNOWN_TO_NEITHER, 2, 3)) // c ^ b
+            .addGate(GateData.create(XOR, KNOWN_TO_NEITHER, 1, 5)) // c ^ a ^ b
+            .addGate(GateData.create(AND, KNOWN_TO_NEITHER, 3, 2)) // (c ^ a) & (c ^ b)
+            .addGate(GateData.create(XOR, KNOWN_TO_NEITHER, 1, 5)) // MAJORITY(a, b, c)
+            .outputIndices(List.of(5, 7))
+            .build();
 
     @Test
     void testSplitGate() {
@@ -81,6 +94,51 @@ class GarbledCircuitTest {
         System.out.println(Integer.toHexString(66666));
     }
 
+    @Test
+    void testCallingAdder() throws Exception {
+        var program = createCallingAdder(64);
+        var inputs = BitVector.copyFrom(Longs.toByteArray(12345)).concat(BitVector.copyFrom(Longs.toByteArray(54321)));
+        assertEquals(new BitSlicedEvaluator(TEST_64_BIT_ADDER).evaluate(List.of(inputs), 0),
+                new BitSlicedEvaluator(program).evaluate(List.of(inputs), 0));
+
+        var cipher = new GarbledCircuit.AesHashCipher(new byte[16]);
+        var secretOffset = GarbledBit.copyFrom(new byte[]{-1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0});
+        var garbledBitRnd = SecureRandom.getInstance("SHA1PRNG");
+        garbledBitRnd.setSeed(new byte[0]);
+        var generator = new GarbledCircuit.Generator(program, secretOffset, cipher, BitVector.empty(), null, garbledBitRnd);
+        var circuit = generator.generate();
+        var result = circuit.run(generator.garbleInputs(inputs, 0));
+        assertEquals(BitVector.copyFrom(Longs.toByteArray(66666)), generator.ungarbleOutputs(result.outputs()));
+    }
+
+    @Test
+    void testAdderWithLabelArena() throws Exception {
+        var inputs = BitVector.copyFrom(Longs.toByteArray(12345)).concat(BitVector.copyFrom(Longs.toByteArray(54321)));
+        var heapResult = runAdder(inputs, null);
+        try (var arena = new LabelArena(64)) {
+            for (int batch = 0; batch < 2; batch++) {
+                // The gate labels & ciphertexts of both sides live in the arena, spanning several chunks:
+                var arenaResult = runAdder(inputs, arena);
+                assertEquals(heapResult, arenaResult);
+                assertTrue(arena.allocatedBytes() > 64 * 16 * 4);
+                arena.reset();
+            }
+        }
+    }
+
+    private static GarbledCircuit.Result runAdder(BitVector inputs, LabelArena arena) throws Exception {
+        var cipher = new GarbledCircuit.AesHashCipher(new byte[16]);
+        var secretOffset = GarbledBit.copyFrom(new byte[]{-1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0});
+        var garbledBitRnd = SecureRandom.getInstance("SHA1PRNG");
+        garbledBitRnd.setSeed(new byte[0]);
+        var generator = new GarbledCircuit.Generator(TEST_64_BIT_ADDER, secretOffset, cipher, BitVector.empty(), null,
+                garbledBitRnd, arena);
+        var circuit = generator.generate();
+        var result = circuit.run(generator.garbleInputs(inputs, 0));
+        assertEquals(BitVector.copyFrom(Longs.toByteArray(66666)), generator.ungarbleOutputs(result.outputs()));
+        return result;
+    }
+
     @Test
     void testShift() {
         System.out.println(Stream.iterate((byte) 1, GarbledCircuit.AesHashCipher::shift)
@@ -88,7 +146,25 @@ class GarbledCircuitTest {
                 .collect(Collectors.toList()));
     }
 
-    private static Program createAdder(int bitWidth) {
+    // Same as 'createAdder', but with each bit position an instance of the full adder, instead of flattened:
+    private static Program createCallingAdder(int bitWidth) {
+        var builder = Program.builder();
+        for (int i = 0; i < bitWidth * 2; i++) {
+            builder.addGate(GateData.create(INPUT, KNOWN_TO_NEITHER));
+        }
+        builder.addGate(GateData.create(FALSE, KNOWN_TO_BOTH)); // carry: c_0
+        int carryIndex = bitWidth * 2;
+        int[] sumIndices = new int[bitWidth];
+        for (int i = 0; i < bitWidth; i++) {
+            int start = builder.rawGates().size();
+            builder.addCall(TEST_FULL_ADDER, start - (bitWidth - 1 - i), start - (bitWidth * 2 - 1 - i), start - carryIndex);
+            sumIndices[bitWidth - 1 - i] = start + 5;
+            carryIndex = start + 7;
+        }
+        return builder.outputIndices(Ints.asList(sumIndices)).build();
+    }
+
+    static Program createAdder(int bitWidth) {
         var builder = ImmutableList.<GateData>builder();
         for (int i = 0; i < bitWidth * 2; i++) {
             builder.add(GateData.create(INPUT, KNOWN_TO_NEITHER));
@@ -0,0 +1,141 @@
+package lightningtrade.cryptography;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ObliviousTransferGeneratorTest {
+    @Test
+    void testExtendedTransfers() {
+        var receiver = new ObliviousTransferGenerator<BitVector, GarbledBitVector>(BitVector.class, v -> v, new SecureRandom());
+        var sender = new ObliviousTransferGenerator.Sender(new SecureRandom());
+        receiver.completeBaseTransfers(sender.respondToBaseTransfers(receiver.baseTransferKey()));
+
+        var rnd = new Random(0);
+        for (int size : List.of(256, 1, 13)) {
+            var labels0 = randomBits(rnd, size);
+            var labels1 = randomBits(rnd, size);
+            var fns = IntStream.range(0, size)
+                    .mapToObj(i -> ObliviousFunction.<Boolean, GarbledBit>liftSimple(b -> (b ? labels1 : labels0).get(i)))
+                    .collect(Collectors.toUnmodifiableList());
+            var fn = ObliviousFunction.product((BitVector v) -> v, GarbledBitVector::copyFrom, Boolean.class, fns);
+
+            var choices = BitVector.builder(size);
+            IntStream.range(0, size).forEach(i -> choices.add(rnd.nextBoolean()));
+            var choiceVector = choices.build();
+            var request = receiver.encrypt(choiceVector);
+            assertThrows(IllegalStateException.class, () -> fn.apply(request));
+
+            var response = fn.apply(sender.bind(request));
+            var expected = IntStream.range(0, size)
+                    .mapToObj(i -> (choiceVector.getAsBoolean(i) ? labels1 : labels0).get(i))
+                    .collect(Collectors.toList());
+            assertEquals(expected, receiver.decrypt(response));
+            assertThrows(IllegalArgumentException.class, () -> sender.bind(request));
+            assertThrows(IllegalArgumentException.class, () -> receiver.decrypt(response));
+        }
+    }
+
+    @Test
+    void testPrecomputedTransfers() {
+        var receiver = new ObliviousTransferGenerator<BitVector, GarbledBitVector>(BitVector.class, v -> v,
+                new SecureRandom(), 300);
+        var sender = new ObliviousTransferGenerator.Sender(new SecureRandom(), 300);
+        receiver.completeBaseTransfers(sender.respondToBaseTransfers(receiver.baseTransferKey()));
+        sender.precompute(receiver.precompute(100));
+        sender.precompute(receiver.precompute(200));
+        assertThrows(IllegalArgumentException.class, () -> receiver.precompute(1));
+        assertEquals(300, receiver.pooledCount());
+        assertEquals(300, sender.pooledCount());
+
+        var rnd = new Random(1);
+        // Served from the pool, straddling the precomputed batches, then (once it runs dry) online:
+        for (int size : List.of(60, 80, 150, 20)) {
+            var labels0 = randomBits(rnd, size);
+            var labels1 = randomBits(rnd, size);
+            var fns = IntStream.range(0, size)
+                    .mapToObj(i -> ObliviousFunction.<Boolean, GarbledBit>liftSimple(b -> (b ? labels1 : labels0).get(i)))
+                    .collect(Collectors.toUnmodifiableList());
+            var fn = ObliviousFunction.product((BitVector v) -> v, GarbledBitVector::copyFrom, Boolean.class, fns);
+
+            var choices = BitVector.builder(size);
+            IntStream.range(0, size).forEach(i -> choices.add(rnd.nextBoolean()));
+            var choiceVector = choices.build();
+            var response = fn.apply(sender.bind(receiver.encrypt(choiceVector)));
+            var expected = IntStream.range(0, size)
+                    .mapToObj(i -> (choiceVector.getAsBoolean(i) ? labels1 : labels0).get(i))
+                    .collect(Collectors.toList());
+            assertEquals(expected, receiver.decrypt(response));
+            assertEquals(receiver.pooledCount(), sender.pooledCount());
+        }
+        assertEquals(10, receiver.pooledCount());
+    }
+
+    @Test
+    void testPackedTransfers() {
+        var receiver = new ObliviousTransferGenerator<BitVector, GarbledBitVector>(BitVector.class, v -> v,
+                new SecureRandom(), 100);
+        var sender = new ObliviousTransferGenerator.Sender(new SecureRandom(), 100);
+        receiver.completeBaseTransfers(sender.respondToBaseTransfers(receiver.baseTransferKey()));
+        sender.precompute(receiver.precompute(100));
+
+        var rnd = new Random(2);
+        // Served from the pool, then online, with every request & response sent over the wire:
+        for (int size : List.of(100, 37)) {
+            var labels0 = GarbledBitVector.copyFrom(randomBits(rnd, size));
+            var labels1 = GarbledBitVector.copyFrom(randomBits(rnd, size));
+            var fn = ObliviousFunction.packed(labels0, labels1);
+
+            var choices = BitVector.builder(size);
+            IntStream.range(0, size).forEach(i -> choices.add(rnd.nextBoolean()));
+            var choiceVector = choices.build();
+            var requestBytes = ObliviousTransferGenerator.encodeRequest(receiver.encrypt(choiceVector));
+            var request = sender.bind(ObliviousTransferGenerator.decodeRequest(requestBytes, BitVector.class));
+            var responseBytes = ObliviousTransferGenerator.encodeResponse(fn.apply(request));
+            assertEquals(12 + size * 32, responseBytes.length);
+
+            var expected = fn.apply(choiceVector);
+            assertEquals(expected, receiver.decrypt(ObliviousTransferGenerator.decodeResponse(responseBytes)));
+        }
+    }
+
+    @Test
+    void testCraftedRequestHeadersRejected() {
+        // A bare header claiming 2^28 transfers, for which the expected length of 128 columns would wrap to 0 in int:
+        var header = ByteBuffer.allocate(21).put((byte) 0).putLong(0).putInt(1 << 28).putLong(-1).array();
+        var e = assertThrows(IllegalArgumentException.class,
+                () -> ObliviousTransferGenerator.decodeRequest(header, BitVector.class));
+        assertTrue(e.getMessage().contains("exceeds maximum"), e.getMessage());
+        // Even with no configured maximum, the length check is not fooled into allocating the columns:
+        e = assertThrows(IllegalArgumentException.class,
+                () -> ObliviousTransferGenerator.decodeRequest(header, BitVector.class, Integer.MAX_VALUE));
+        assertTrue(e.getMessage().contains("Bad request length"), e.getMessage());
+        header[9] = (byte) 0x7f;
+        header[10] = header[11] = header[12] = (byte) 0xff;
+        assertThrows(IllegalArgumentException.class,
+                () -> ObliviousTransferGenerator.decodeRequest(header, BitVector.class, Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class,
+                () -> ObliviousTransferGenerator.decodeRequest(Arrays.copyOf(header, 20), BitVector.class));
+    }
+
+    private static List<GarbledBit> randomBits(Random rnd, int length) {
+        var bits = new ArrayList<GarbledBit>(length);
+        for (int i = 0; i < length; i++) {
+            var bytes = new byte[16];
+            rnd.nextBytes(bytes);
+            bits.add(GarbledBit.copyFrom(bytes));
+        }
+        return bits;
+    }
+}
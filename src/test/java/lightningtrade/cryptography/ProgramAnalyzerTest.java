@@ -0,0 +1,67 @@
+package lightningtrade.cryptography;
+
+import org.junit.jupiter.api.Test;
+import securecompute.circuit.BooleanFunction;
+
+import java.security.SecureRandom;
+
+import static lightningtrade.cryptography.Program.OutputScope.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ProgramAnalyzerTest {
+    @Test
+    void testAgainstGenerator() throws Exception {
+        checkAgainstGenerator(GarbledCircuitTest.createAdder(64));
+        checkAgainstGenerator(Simplifier.simplify(new BooleanFunctionConverter()
+                .outputScopeFn(i -> i == 1 ? KNOWN_TO_EVALUATOR : KNOWN_TO_NEITHER)
+                .buildProgram(BooleanFunction.OR)));
+        // An evaluator input after a generator input:
+        checkAgainstGenerator(Simplifier.simplify(new BooleanFunctionConverter()
+                .outputScopeFn(i -> i == 0 ? KNOWN_TO_GENERATOR : i == 1 ? KNOWN_TO_EVALUATOR : KNOWN_TO_NEITHER)
+                .buildProgram(BooleanFunction.OR)));
+    }
+
+    private static void checkAgainstGenerator(Program program) throws Exception {
+        var report = ProgramAnalyzer.analyze(program);
+        System.out.println(report);
+
+        var cipher = new CountingCipher(new GarbledCircuit.AesHashCipher(new byte[16]));
+        var secretOffset = GarbledBit.copyFrom(new byte[]{-1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0, -1, 0});
+        var rnd = SecureRandom.getInstance("SHA1PRNG");
+        rnd.setSeed(new byte[0]);
+        int generatorInputCount = (int) program.gates().stream()
+                .filter(g -> g.type() == Program.GateType.INPUT && g.isOutputKnownToGenerator())
+                .count();
+        var generator = new GarbledCircuit.Generator(program, secretOffset, cipher,
+                BitVector.copyFrom(new byte[(generatorInputCount + 7) / 8]).subList(0, generatorInputCount), rnd, rnd);
+        var circuit = generator.generate();
+        assertEquals(report.garbledSizeBits(), circuit.garbledSizeBits());
+        assertEquals(report.garblingAesCalls(), cipher.calls);
+
+        cipher.calls = 0;
+        int inputCount = program.inputIndices().size();
+        circuit.run(generator.garbleInputs(BitVector.copyFrom(new byte[(inputCount + 7) / 8]).subList(0, inputCount), 0));
+        assertEquals(report.evaluationAesCalls(), cipher.calls);
+    }
+
+    private static class CountingCipher implements GarbledCircuit.Cipher {
+        private final GarbledCircuit.Cipher delegate;
+        long calls;
+
+        CountingCipher(GarbledCircuit.Cipher delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public BitVector encrypt(GarbledBit garbledInput, GarbledBit garbledOutput, long gateIndex, long gateSubIndex) {
+            calls++;
+            return delegate.encrypt(garbledInput, garbledOutput, gateIndex, gateSubIndex);
+        }
+
+        @Override
+        public GarbledBit decrypt(GarbledBit garbledInput, BitVector ciphertext, long gateIndex, long gateSubIndex) {
+            calls++;
+            return delegate.decrypt(garbledInput, ciphertext, gateIndex, gateSubIndex);
+        }
+    }
+}
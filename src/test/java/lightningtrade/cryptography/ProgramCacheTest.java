@@ -0,0 +1,55 @@
+package lightningtrade.cryptography;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import securecompute.circuit.BooleanFunction;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static lightningtrade.cryptography.Program.OutputScope.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgramCacheTest {
+    @Test
+    void testRoundTrip(@TempDir Path directory) throws Exception {
+        var program = Simplifier.simplify(newConverter().buildProgram(BooleanFunction.OR));
+        var path = directory.resolve("or.program");
+        ProgramCache.write(program, path);
+        var readProgram = ProgramCache.read(path);
+
+        assertEquals(program.rawGates(), readProgram.rawGates());
+        assertEquals(program.outputIndices(), readProgram.outputIndices());
+        assertEquals(program.ungarbledOutputIndices(), readProgram.ungarbledOutputIndices());
+    }
+
+    @Test
+    void testGet(@TempDir Path directory) throws Exception {
+        var cache = new ProgramCache(directory);
+        var program = cache.get(BooleanFunction.OR, newConverter());
+        var cachedProgram = cache.get(BooleanFunction.OR, newConverter());
+        assertEquals(program.rawGates(), cachedProgram.rawGates());
+        assertEquals(program.outputIndices(), cachedProgram.outputIndices());
+
+        // Different converter options should give a different cache entry:
+        cache.get(BooleanFunction.OR, newConverter().balancedTrees(true));
+        try (var files = Files.list(directory)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void testCorruptEntryIsRebuilt(@TempDir Path directory) throws Exception {
+        var cache = new ProgramCache(directory);
+        var key = newConverter().fingerprint(BooleanFunction.OR);
+        Files.write(directory.resolve(key + ".program"), new byte[]{1, 2, 3});
+        var program = cache.get(BooleanFunction.OR, newConverter());
+        assertEquals(program.rawGates(), ProgramCache.read(directory.resolve(key + ".program")).rawGates());
+    }
+
+    private static BooleanFunctionConverter newConverter() {
+        return new BooleanFunctionConverter()
+                .outputScopeFn(i -> i == 0 ? KNOWN_TO_GENERATOR : i == 1 ? KNOWN_TO_EVALUATOR : KNOWN_TO_NEITHER)
+                .isRandomInputFn(i -> i == 0);
+    }
+}